@@ -0,0 +1,309 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+
+/**
+ * Bounded pool of worker threads running a pipeline over many inputs, for
+ * {@code xmlcalabash:process-batch}.
+ *
+ * A batch is worked off by at most as many workers as the pool has
+ * threads. Each worker takes a broker for the subject of the caller and
+ * keeps it while it takes the next input, until all inputs have been run.
+ * A failing input is recorded with its error and does not stop the batch.
+ *
+ * A batch started by a task of another batch, e.g. by a parallel
+ * {@link ParallelForEach} in a pipeline run by a batch, is run on the
+ * worker that starts it, as waiting for other workers could exhaust the pool.
+ */
+public class BatchExecutor {
+
+    private static final Logger LOG = LogManager.getLogger(BatchExecutor.class);
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final BatchExecutor INSTANCE = new BatchExecutor();
+
+    private static final ThreadLocal<Boolean> WORKER = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ThreadPoolExecutor executor;
+
+    private BatchExecutor() {
+        executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "xmlcalabash-batch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static BatchExecutor getInstance() {
+        return INSTANCE;
+    }
+
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @param threads the number of worker threads, at least 1
+     */
+    public synchronized void setThreads(final int threads) {
+        final int size = Math.max(1, threads);
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Run a task for each input of a batch, and wait until all are done.
+     *
+     * @param pool the database
+     * @param subject the subject the workers take their brokers for
+     * @param count the number of inputs
+     * @param task runs one input
+     * @param <T> the result of a run
+     * @return the outcomes, in input order
+     *
+     * @throws InterruptedException if the caller is interrupted while waiting,
+     *     the remaining inputs are not run
+     */
+    public <T> List<Outcome<T>> run(final BrokerPool pool, final Subject subject, final int count, final Task<T> task)
+            throws InterruptedException {
+        return run(pool, subject, count, 0, task);
+    }
+
+    /**
+     * Run a task for each input of a batch on at most a number of workers,
+     * and wait until all are done.
+     *
+     * @param maxWorkers the number of workers to use at most, or 0 to use
+     *     as many as the pool has threads
+     *
+     * @see #run(BrokerPool, Subject, int, Task)
+     */
+    public <T> List<Outcome<T>> run(final BrokerPool pool, final Subject subject, final int count, final int maxWorkers,
+            final Task<T> task) throws InterruptedException {
+        final List<Outcome<T>> outcomes = new ArrayList<>(count);
+        run(pool, subject, count, maxWorkers, task, (index, outcome) -> outcomes.add(outcome));
+        return outcomes;
+    }
+
+    /**
+     * Run a task for each input of a batch on at most a number of workers,
+     * and hand the outcome of each input to a consumer on the calling thread,
+     * in input order, as soon as it and those of the inputs before it are
+     * known. The batch does not keep the outcomes it has handed over.
+     *
+     * @param maxWorkers the number of workers to use at most, or 0 to use
+     *     as many as the pool has threads
+     * @param consumer receives the outcomes; if it throws, the remaining
+     *     inputs are not run
+     *
+     * @throws InterruptedException if the caller is interrupted while waiting,
+     *     the remaining inputs are not run
+     * @throws E if the consumer throws
+     *
+     * @see #run(BrokerPool, Subject, int, Task)
+     */
+    public <T, E extends Exception> void run(final BrokerPool pool, final Subject subject, final int count, final int maxWorkers,
+            final Task<T> task, final Consumer<T, E> consumer) throws InterruptedException, E {
+        final List<Outcome<T>> outcomes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            outcomes.add(null);
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final AtomicInteger running = new AtomicInteger();
+        final Runnable worker = () -> {
+            final boolean nested = WORKER.get();
+            WORKER.set(Boolean.TRUE);
+            try (final DBBroker broker = pool.get(Optional.of(subject))) {
+                int index;
+                while (!cancelled.get() && (index = next.getAndIncrement()) < count) {
+                    Outcome<T> outcome;
+                    try {
+                        outcome = new Outcome<>(task.run(broker, index), null);
+                    } catch (final Exception e) {
+                        LOG.debug("Input {} of the batch failed: {}", index + 1, e.getMessage());
+                        outcome = new Outcome<>(null, e);
+                    }
+                    synchronized (outcomes) {
+                        outcomes.set(index, outcome);
+                        outcomes.notifyAll();
+                    }
+                }
+            } catch (final EXistException e) {
+                LOG.error("No broker for a worker of the batch: {}", e.getMessage(), e);
+            } finally {
+                WORKER.set(nested);
+                synchronized (outcomes) {
+                    running.decrementAndGet();
+                    outcomes.notifyAll();
+                }
+            }
+        };
+
+        if (WORKER.get()) {
+            running.incrementAndGet();
+            worker.run();
+            deliver(outcomes, 0, consumer, true);
+            return;
+        }
+
+        final int workers = Math.min(count, maxWorkers > 0 ? Math.min(maxWorkers, getThreads()) : getThreads());
+        try {
+            for (int i = 0; i < workers; i++) {
+                running.incrementAndGet();
+                try {
+                    executor.submit(worker);
+                } catch (final RuntimeException e) {
+                    running.decrementAndGet();
+                    throw e;
+                }
+            }
+
+            int delivered = 0;
+            while (delivered < count) {
+                synchronized (outcomes) {
+                    while (outcomes.get(delivered) == null && running.get() > 0) {
+                        outcomes.wait();
+                    }
+                    if (outcomes.get(delivered) == null) {
+                        // the workers are gone
+                        break;
+                    }
+                }
+                delivered = deliver(outcomes, delivered, consumer, false);
+            }
+            deliver(outcomes, delivered, consumer, true);
+        } finally {
+            cancelled.set(true);
+        }
+    }
+
+    /**
+     * Hand over the outcomes known from an input on.
+     *
+     * @param done true if the workers are gone, the inputs without an
+     *     outcome are handed over as not run
+     * @return the next input to hand over
+     */
+    private static <T, E extends Exception> int deliver(final List<Outcome<T>> outcomes, final int from,
+            final Consumer<T, E> consumer, final boolean done) throws E {
+        final int count = outcomes.size();
+        int index = from;
+        while (index < count) {
+            Outcome<T> outcome;
+            synchronized (outcomes) {
+                outcome = outcomes.get(index);
+                outcomes.set(index, null);
+            }
+            if (outcome == null) {
+                if (!done) {
+                    break;
+                }
+                outcome = new Outcome<>(null, new EXistException("The input was not run"));
+            }
+            consumer.accept(index, outcome);
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Runs one input of a batch.
+     *
+     * @param <T> the result of the run
+     */
+    @FunctionalInterface
+    public interface Task<T> {
+        /**
+         * @param broker the broker of the worker
+         * @param index the position of the input, from 0
+         * @return the result of the run
+         *
+         * @throws Exception if the run fails
+         */
+        T run(DBBroker broker, int index) throws Exception;
+    }
+
+    /**
+     * Receives the outcomes of a batch, in input order.
+     *
+     * @param <T> the result of a run
+     * @param <E> the exception the consumer throws
+     */
+    @FunctionalInterface
+    public interface Consumer<T, E extends Exception> {
+        /**
+         * @param index the position of the input, from 0
+         * @param outcome the outcome of the input
+         *
+         * @throws E to stop the batch
+         */
+        void accept(int index, Outcome<T> outcome) throws E;
+    }
+
+    /**
+     * The result of a run, or the error it failed with.
+     *
+     * @param <T> the result of the run
+     */
+    public static final class Outcome<T> {
+        private final T result;
+        private final Exception error;
+
+        Outcome(final T result, final Exception error) {
+            this.result = result;
+            this.error = error;
+        }
+
+        public T getResult() {
+            return result;
+        }
+
+        /**
+         * @return the error, or null if the run succeeded
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.collections.Collection;
+import org.exist.collections.CollectionConfiguration;
+import org.exist.collections.triggers.CollectionTrigger;
+import org.exist.collections.triggers.DocumentTrigger;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.xmldb.XmldbURI;
+
+/**
+ * Removes compiled pipelines, stylesheets, queries and schemas from the
+ * caches as soon as a document they were built from is stored, updated,
+ * copied over, moved or deleted, together with everything compiled from
+ * them. Registered in the {@code collection.xconf} of the collections
+ * holding the pipelines with
+ * {@code <trigger class="org.exist.xquery.xproc.xmlcalabash.CacheInvalidationTrigger"/>}.
+ *
+ * Any document of the collection is considered, including documents read
+ * by pipelines, and a change of the media type of a document counts as a
+ * change. Moving or deleting a collection invalidates everything built from
+ * the documents it contains.
+ *
+ * The caches rely on the trigger for the documents it watches: once an
+ * entry has been found current, its documents are not looked up again,
+ * only their permissions are validated, see {@link Dependencies}. Documents
+ * of other collections are still compared by their last-modified time on
+ * every hit.
+ */
+public class CacheInvalidationTrigger implements DocumentTrigger, CollectionTrigger {
+
+    private static final Logger LOG = LogManager.getLogger(CacheInvalidationTrigger.class);
+
+    private boolean validating = false;
+
+    @Override
+    public void configure(final DBBroker broker, final Txn transaction, final Collection parent,
+            final Map<String, List<?>> parameters) throws TriggerException {
+    }
+
+    @Override
+    public boolean isValidating() {
+        return validating;
+    }
+
+    @Override
+    public void setValidating(final boolean validating) {
+        this.validating = validating;
+    }
+
+    /**
+     * @param broker the broker of the caller
+     * @param document a document
+     * @return true if the trigger is registered for the collection of the document
+     */
+    static boolean isWatched(final DBBroker broker, final DocumentImpl document) {
+        final Collection collection = document.getCollection();
+        if (collection == null) {
+            return false;
+        }
+        final CollectionConfiguration configuration = collection.getConfiguration(broker);
+        return configuration != null && configuration.triggerRegistered(CacheInvalidationTrigger.class);
+    }
+
+    /**
+     * Invalidate everything built from a document.
+     *
+     * @param uri the document URI
+     */
+    private static void invalidateDocument(final XmldbURI uri) {
+        LOG.debug("Invalidating what was compiled from '{}'", uri);
+        invalidate(dependencies -> dependencies.dependsOn(uri));
+        DocumentCache.getInstance().invalidate(uri);
+    }
+
+    /**
+     * Invalidate everything built from the documents of a collection and its descendants.
+     *
+     * @param collection the collection URI
+     */
+    private static void invalidateCollection(final XmldbURI collection) {
+        LOG.debug("Invalidating what was compiled from the collection '{}'", collection);
+        invalidate(dependencies -> dependencies.dependsOnCollection(collection));
+        DocumentCache.getInstance().invalidateCollection(collection);
+    }
+
+    private static void invalidate(final Predicate<Dependencies> affected) {
+        CachingProcessor.invalidate(affected);
+        PipelineCache.getInstance().invalidate(affected);
+    }
+
+    private void documentChanged(final XmldbURI uri) {
+        invalidateDocument(uri);
+    }
+
+    @Override
+    public void beforeCreateDocument(final DBBroker broker, final Txn transaction, final XmldbURI uri) {
+    }
+
+    @Override
+    public void afterCreateDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document) {
+        documentChanged(document.getURI());
+    }
+
+    @Override
+    public void beforeUpdateDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document) {
+    }
+
+    @Override
+    public void afterUpdateDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document) {
+        documentChanged(document.getURI());
+    }
+
+    @Override
+    public void beforeUpdateDocumentMetadata(final DBBroker broker, final Txn transaction, final DocumentImpl document) {
+    }
+
+    @Override
+    public void afterUpdateDocumentMetadata(final DBBroker broker, final Txn transaction, final DocumentImpl document) {
+        // e.g. the media type
+        documentChanged(document.getURI());
+    }
+
+    @Override
+    public void beforeCopyDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document, final XmldbURI newUri) {
+    }
+
+    @Override
+    public void afterCopyDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document, final XmldbURI oldUri) {
+        documentChanged(document.getURI());
+    }
+
+    @Override
+    public void beforeMoveDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document, final XmldbURI newUri) {
+    }
+
+    @Override
+    public void afterMoveDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document, final XmldbURI oldUri) {
+        documentChanged(oldUri);
+        documentChanged(document.getURI());
+    }
+
+    @Override
+    public void beforeDeleteDocument(final DBBroker broker, final Txn transaction, final DocumentImpl document) {
+    }
+
+    @Override
+    public void afterDeleteDocument(final DBBroker broker, final Txn transaction, final XmldbURI uri) {
+        documentChanged(uri);
+    }
+
+    @Override
+    public void beforeCreateCollection(final DBBroker broker, final Txn transaction, final XmldbURI uri) {
+    }
+
+    @Override
+    public void afterCreateCollection(final DBBroker broker, final Txn transaction, final Collection collection) {
+    }
+
+    @Override
+    public void beforeCopyCollection(final DBBroker broker, final Txn transaction, final Collection collection, final XmldbURI newUri) {
+    }
+
+    @Override
+    public void afterCopyCollection(final DBBroker broker, final Txn transaction, final Collection collection, final XmldbURI oldUri) {
+        invalidateCollection(collection.getURI());
+    }
+
+    @Override
+    public void beforeMoveCollection(final DBBroker broker, final Txn transaction, final Collection collection, final XmldbURI newUri) {
+    }
+
+    @Override
+    public void afterMoveCollection(final DBBroker broker, final Txn transaction, final Collection collection, final XmldbURI oldUri) {
+        invalidateCollection(oldUri);
+        invalidateCollection(collection.getURI());
+    }
+
+    @Override
+    public void beforeDeleteCollection(final DBBroker broker, final Txn transaction, final Collection collection) {
+    }
+
+    @Override
+    public void afterDeleteCollection(final DBBroker broker, final Txn transaction, final XmldbURI uri) {
+        invalidateCollection(uri);
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import org.exist.dom.QName;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.DayTimeDurationValue;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+
+public class CacheStatisticsFunction extends BasicFunction {
+
+    private final static QName NAME = new QName("cache-statistics", XProcXmlCalabashModule.NAMESPACE_URI, XProcXmlCalabashModule.PREFIX);
+    private final static String DESCRIPTION = "Returns the number of entries, hits and misses of the caches used by the module. " +
+            "The entries for compiled executables also have the number of compilations and the total compile time.";
+
+    private final static FunctionReturnSequenceType RETURN = new FunctionReturnSequenceType(Type.MAP, Cardinality.EXACTLY_ONE, "a map with an entry per cache");
+
+    static final FunctionSignature FNS_CACHE_STATISTICS = new FunctionSignature(
+            NAME,
+            DESCRIPTION,
+            new SequenceType[0],
+            RETURN
+    );
+
+    public CacheStatisticsFunction(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+        final PipelineCache pipelines = PipelineCache.getInstance();
+        final RuntimePool runtimes = RuntimePool.getInstance();
+        final DocumentCache documents = DocumentCache.getInstance();
+        final CatalogRegistry catalogs = CatalogRegistry.getInstance();
+        final LibraryRegistry libraries = LibraryRegistry.getInstance();
+        final ConfigDocumentCache configurations = ConfigDocumentCache.getInstance();
+
+        final MapType map = new MapType(context);
+        map.add(new StringValue("pipelines"), statistics(pipelines.size(), pipelines.getHits(), pipelines.getMisses()));
+        map.add(new StringValue("runtimes"), statistics(runtimes.size(), runtimes.getHits(), runtimes.getMisses()));
+        map.add(new StringValue("documents"), statistics(documents.size(), documents.getHits(), documents.getMisses()));
+        map.add(new StringValue("catalogs"), statistics(catalogs.size(), catalogs.getHits(), catalogs.getMisses()));
+        map.add(new StringValue("libraries"), statistics(libraries.size(), libraries.getHits(), libraries.getMisses()));
+        map.add(new StringValue("configurations"), statistics(configurations.size(), configurations.getHits(), configurations.getMisses()));
+        map.add(new StringValue("stylesheets"), statistics(CachingProcessor.getStylesheetCache()));
+        map.add(new StringValue("queries"), statistics(CachingProcessor.getQueryCache()));
+        map.add(new StringValue("schemas"), statistics(CachingProcessor.getSchemaCache()));
+        return map;
+    }
+
+    private MapType statistics(final ExecutableCache<?> cache) throws XPathException {
+        final MapType map = statistics(cache.size(), cache.getHits(), cache.getMisses());
+        map.add(new StringValue("compilations"), new IntegerValue(cache.getCompilations()));
+        map.add(new StringValue("compile-time"), new DayTimeDurationValue(cache.getCompileTime() / 1000000));
+        return map;
+    }
+
+    private MapType statistics(final long entries, final long hits, final long misses) throws XPathException {
+        final MapType map = new MapType(context);
+        map.add(new StringValue("entries"), new IntegerValue(entries));
+        map.add(new StringValue("hits"), new IntegerValue(hits));
+        map.add(new StringValue("misses"), new IntegerValue(misses));
+        return map;
+    }
+}
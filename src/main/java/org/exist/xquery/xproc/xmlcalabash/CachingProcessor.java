@@ -0,0 +1,515 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.util.function.Predicate;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.URIResolver;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.Controller;
+import net.sf.saxon.lib.ExtensionFunctionCall;
+import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.lib.ModuleURIResolver;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.NoElementsSpaceStrippingRule;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.query.StaticQueryContext;
+import net.sf.saxon.query.XQueryExpression;
+import net.sf.saxon.s9api.XQueryCompiler;
+import net.sf.saxon.s9api.XQueryEvaluator;
+import net.sf.saxon.s9api.XQueryExecutable;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+import net.sf.saxon.value.SequenceType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+
+/**
+ * Saxon processor of a Calabash runtime, which keeps what it compiles
+ * for later runs, see {@link ExecutableCache}.
+ *
+ * The caches are shared by the processors of all runtimes whose
+ * configurations share a name pool, see {@link RuntimeConfiguration}. An
+ * executable compiled by another processor is bound to the resolvers this
+ * processor's configuration has when it is loaded, so it reads documents
+ * and collections like one compiled by this processor. Executables that
+ * call the extension functions Calabash registers for the runtime are only
+ * kept for this processor.
+ */
+public class CachingProcessor extends Processor {
+
+    private static final Logger LOG = LogManager.getLogger(CachingProcessor.class);
+
+    public static final int DEFAULT_STYLESHEET_CACHE_SIZE = 32;
+
+    private static final ExecutableCache<XsltExecutable> STYLESHEETS = new ExecutableCache<>(DEFAULT_STYLESHEET_CACHE_SIZE);
+
+    public static final int DEFAULT_QUERY_CACHE_SIZE = 32;
+
+    private static final ExecutableCache<XQueryExecutable> QUERIES = new ExecutableCache<>(DEFAULT_QUERY_CACHE_SIZE);
+
+    public static final int DEFAULT_SCHEMA_CACHE_SIZE = 32;
+
+    private static final ExecutableCache<Object> SCHEMAS = new ExecutableCache<>(DEFAULT_SCHEMA_CACHE_SIZE);
+
+    /**
+     * Set by the functions of the runtime when a call to them is compiled.
+     */
+    private static final ThreadLocal<boolean[]> RUNTIME_BOUND = new ThreadLocal<>();
+
+    public CachingProcessor(final Configuration configuration) {
+        super(configuration);
+        // like the processors created by XProcConfiguration
+        configuration.getParseOptions().setSpaceStrippingRule(NoElementsSpaceStrippingRule.getInstance());
+    }
+
+    /**
+     * @return the cache of compiled stylesheets
+     */
+    public static ExecutableCache<?> getStylesheetCache() {
+        return STYLESHEETS;
+    }
+
+    /**
+     * @return the cache of compiled queries
+     */
+    public static ExecutableCache<?> getQueryCache() {
+        return QUERIES;
+    }
+
+    /**
+     * @return the cache of compiled schemas
+     */
+    public static ExecutableCache<?> getSchemaCache() {
+        return SCHEMAS;
+    }
+
+    /**
+     * Remove the stylesheets, queries and schemas compiled from documents
+     * that have been changed from the caches.
+     *
+     * @param affected tests the dependencies of an executable
+     */
+    public static void invalidate(final Predicate<Dependencies> affected) {
+        STYLESHEETS.invalidate(affected);
+        QUERIES.invalidate(affected);
+        SCHEMAS.invalidate(affected);
+    }
+
+    /**
+     * Remove the executables that only this processor can use from the
+     * caches, when its runtime is closed.
+     */
+    public void release() {
+        STYLESHEETS.release(this);
+        QUERIES.release(this);
+        SCHEMAS.release(this);
+    }
+
+    @Override
+    public void registerExtensionFunction(final ExtensionFunctionDefinition function) {
+        super.registerExtensionFunction(new RuntimeFunction(function));
+    }
+
+    @Override
+    public XsltCompiler newXsltCompiler() {
+        return new CachingXsltCompiler(this);
+    }
+
+    @Override
+    public XQueryCompiler newXQueryCompiler() {
+        return new CachingXQueryCompiler(this);
+    }
+
+    /**
+     * Get a compiled schema from the cache, or compile it. Used by the
+     * validation steps for grammars that do not depend on the processor,
+     * such as XML Schemas and RELAX NG grammars, as well as for compiled
+     * Schematron schemas.
+     *
+     * @param key the key of the schema, its options should name the kind of schema
+     * @param type the type of the compiled schema
+     * @param compilation compiles the schema on a miss
+     * @param <S> the type of the compiled schema
+     * @param <X> the exception thrown by the compilation
+     * @return the compiled schema
+     *
+     * @throws X if the schema can not be compiled
+     */
+    public <S, X extends Exception> S getSchema(final ExecutableCache.Key key, final Class<S> type,
+            final Compilation<S, X> compilation) throws X {
+        final Object schema = cached(SCHEMAS, "schema", key, compilation::compile);
+        return type.cast(schema instanceof XsltExecutable ? bind((XsltExecutable) schema) : schema);
+    }
+
+    /**
+     * Compiles something that may be cached.
+     *
+     * @param <E> the type of what is compiled
+     * @param <X> the exception thrown by the compilation
+     */
+    @FunctionalInterface
+    public interface Compilation<E, X extends Exception> {
+        E compile() throws X;
+    }
+
+    /**
+     * Get an executable from a cache, or compile it and add it to the cache together
+     * with the database documents read while compiling.
+     *
+     * @param key the key of the executable, or null if it may not be cached
+     */
+    private <E, X extends Exception> E cached(final ExecutableCache<E> cache, final String kind,
+            final ExecutableCache.Key key, final Compilation<E, X> compilation) throws X {
+        final EXistURIResolver resolver = EXistURIResolver.getResolver(getUnderlyingConfiguration());
+        if (key == null || resolver == null || cache.getMaxSize() == 0) {
+            return compile(cache, kind, key, compilation, new boolean[1]);
+        }
+
+        // executables are shared by the runtimes of a name pool, see RuntimeConfiguration
+        final ExecutableCache.Key shared = key.ownedBy(getUnderlyingConfiguration() instanceof RuntimeConfiguration
+                ? getUnderlyingConfiguration().getNamePool()
+                : this);
+        final ExecutableCache.Key owned = key.ownedBy(this);
+
+        try (final DBBroker broker = resolver.borrowBroker()) {
+            final Dependencies cachedDependencies = new Dependencies();
+            E cached = cache.get(broker, shared, cachedDependencies);
+            if (cached == null && owned != shared) {
+                cached = cache.get(broker, owned, cachedDependencies);
+                if (cached != null) {
+                    runtimeBound();
+                }
+            }
+            if (cached != null) {
+                cache.hit();
+                resolver.addCached(cachedDependencies);
+                return cached;
+            }
+        } catch (final PermissionDeniedException e) {
+            // compile it, the resolver reports it if the user may not read a module
+            LOG.debug("Cached {} '{}' is not readable: {}", kind, key, e.getMessage());
+        } catch (final EXistException e) {
+            LOG.warn("No broker to look up the cached {} '{}': {}", kind, key, e.getMessage());
+        }
+        cache.miss();
+
+        final Dependencies dependencies = new Dependencies();
+        final boolean[] runtimeBound = new boolean[1];
+        resolver.startRecording(dependencies);
+        final E executable;
+        try {
+            executable = compile(cache, kind, key, compilation, runtimeBound);
+        } finally {
+            resolver.stopRecording(dependencies);
+        }
+        cache.put(runtimeBound[0] ? owned : shared, executable, dependencies);
+        return executable;
+    }
+
+    private static <E, X extends Exception> E compile(final ExecutableCache<E> cache, final String kind,
+            final ExecutableCache.Key key, final Compilation<E, X> compilation, final boolean[] runtimeBound) throws X {
+        final boolean[] enclosing = RUNTIME_BOUND.get();
+        RUNTIME_BOUND.set(runtimeBound);
+        final long start = System.nanoTime();
+        final E executable;
+        try {
+            executable = compilation.compile();
+        } finally {
+            if (enclosing == null) {
+                RUNTIME_BOUND.remove();
+            } else {
+                RUNTIME_BOUND.set(enclosing);
+            }
+        }
+        final long time = System.nanoTime() - start;
+        cache.compiled(time);
+        if (runtimeBound[0]) {
+            // e.g. a Schematron schema compiled to such a stylesheet
+            runtimeBound();
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Compiled {} '{}' in {} ms", kind, key, time / 1000000);
+        }
+        return executable;
+    }
+
+    /**
+     * Tell the compilation in progress on this thread, if any, that what it
+     * compiles can only be used by this processor.
+     */
+    private static void runtimeBound() {
+        final boolean[] runtimeBound = RUNTIME_BOUND.get();
+        if (runtimeBound != null) {
+            runtimeBound[0] = true;
+        }
+    }
+
+    /**
+     * A stylesheet compiled by another processor, loaded with the resolvers
+     * of this one.
+     */
+    private XsltExecutable bind(final XsltExecutable executable) {
+        if (executable.getUnderlyingCompiledStylesheet().getConfiguration() == getUnderlyingConfiguration()) {
+            return executable;
+        }
+        return new BoundXsltExecutable(executable);
+    }
+
+    private XQueryExecutable bind(final XQueryExecutable executable) {
+        if (executable.getUnderlyingCompiledQuery().getConfiguration() == getUnderlyingConfiguration()) {
+            return executable;
+        }
+        return new BoundXQueryExecutable(executable);
+    }
+
+    /**
+     * Compiles stylesheets given as a tree through the cache. Stylesheets
+     * from other sources, or compiled with static parameters or a URI
+     * resolver of their own, are compiled as usual.
+     */
+    private class CachingXsltCompiler extends XsltCompiler {
+        private boolean cacheable = true;
+
+        CachingXsltCompiler(final Processor processor) {
+            super(processor);
+        }
+
+        @Override
+        public void setURIResolver(final URIResolver resolver) {
+            cacheable = false;
+            super.setURIResolver(resolver);
+        }
+
+        @Override
+        public void setParameter(final QName name, final XdmValue value) {
+            cacheable = false;
+            super.setParameter(name, value);
+        }
+
+        @Override
+        public XsltExecutable compile(final Source source) throws SaxonApiException {
+            ExecutableCache.Key key = null;
+            if (source instanceof NodeInfo && cacheable && STYLESHEETS.getMaxSize() > 0) {
+                final NodeInfo node = (NodeInfo) source;
+                key = new ExecutableCache.Key(
+                        node.getBaseURI(),
+                        ExecutableCache.content(CachingProcessor.this, node),
+                        "schema-aware=" + isSchemaAware() + ";version=" + getXsltLanguageVersion());
+            }
+            return bind(cached(STYLESHEETS, "stylesheet", key, () -> super.compile(source)));
+        }
+    }
+
+    /**
+     * Compiles queries given as a string through the cache. Queries compiled
+     * with namespaces, collations or a module URI resolver of their own, or
+     * with a static context changed directly, are compiled as usual.
+     */
+    private class CachingXQueryCompiler extends XQueryCompiler {
+        private boolean cacheable = true;
+
+        CachingXQueryCompiler(final Processor processor) {
+            super(processor);
+        }
+
+        @Override
+        public void setModuleURIResolver(final ModuleURIResolver resolver) {
+            // p:xquery sets the module resolver of the runtime, which resolves through ours
+            if (resolver != getUnderlyingConfiguration().getURIResolver()) {
+                cacheable = false;
+            }
+            super.setModuleURIResolver(resolver);
+        }
+
+        @Override
+        public void declareNamespace(final String prefix, final String uri) {
+            cacheable = false;
+            super.declareNamespace(prefix, uri);
+        }
+
+        @Override
+        public void declareDefaultCollation(final String uri) {
+            cacheable = false;
+            super.declareDefaultCollation(uri);
+        }
+
+        @Override
+        public StaticQueryContext getUnderlyingStaticContext() {
+            cacheable = false;
+            return super.getUnderlyingStaticContext();
+        }
+
+        @Override
+        public XQueryExecutable compile(final String query) throws SaxonApiException {
+            ExecutableCache.Key key = null;
+            if (cacheable && QUERIES.getMaxSize() > 0) {
+                // the text is short and compared as it is, rather than through a digest
+                key = new ExecutableCache.Key(
+                        getBaseURI() == null ? null : getBaseURI().toString(),
+                        query,
+                        "schema-aware=" + isSchemaAware()
+                                + ";updating=" + isUpdatingEnabled()
+                                + ";version=" + getLanguageVersion()
+                                + ";tracing=" + isCompileWithTracing()
+                                + ";context=" + getRequiredContextItemType());
+            }
+            return bind(cached(QUERIES, "query", key, () -> super.compile(query)));
+        }
+    }
+
+    /**
+     * A stylesheet compiled by another processor. Saxon runs it with the
+     * configuration it was compiled with, so the transformers it loads are
+     * given the resolvers of this processor's configuration, which Calabash
+     * sets for the step that loads it.
+     */
+    private class BoundXsltExecutable extends XsltExecutable {
+
+        BoundXsltExecutable(final XsltExecutable executable) {
+            super(CachingProcessor.this, executable.getUnderlyingCompiledStylesheet());
+        }
+
+        @Override
+        public XsltTransformer load() {
+            final XsltTransformer transformer = super.load();
+            bind(transformer.getUnderlyingController());
+            final Configuration configuration = getUnderlyingConfiguration();
+            if (configuration.getOutputURIResolver() != null) {
+                transformer.getUnderlyingController().setOutputURIResolver(configuration.getOutputURIResolver());
+            }
+            return transformer;
+        }
+
+        @Override
+        public Xslt30Transformer load30() {
+            final Xslt30Transformer transformer = super.load30();
+            bind(transformer.getUnderlyingController());
+            final Configuration configuration = getUnderlyingConfiguration();
+            if (configuration.getOutputURIResolver() != null) {
+                transformer.getUnderlyingController().setOutputURIResolver(configuration.getOutputURIResolver());
+            }
+            return transformer;
+        }
+
+        private void bind(final Controller controller) {
+            final Configuration configuration = getUnderlyingConfiguration();
+            controller.setURIResolver(configuration.getURIResolver());
+            controller.setErrorListener(configuration.getErrorListener());
+            if (configuration.getUnparsedTextURIResolver() != null) {
+                controller.setUnparsedTextURIResolver(configuration.getUnparsedTextURIResolver());
+            }
+            controller.setCollectionFinder(configuration.getCollectionFinder());
+            controller.setDefaultCollection(configuration.getDefaultCollection());
+        }
+    }
+
+    /**
+     * A query compiled by another processor. Its evaluators are given the
+     * resolvers of this processor's configuration; the collections of the
+     * step are found through the {@link RuntimeConfiguration}.
+     */
+    private class BoundXQueryExecutable extends XQueryExecutable {
+
+        BoundXQueryExecutable(final XQueryExecutable executable) {
+            super(CachingProcessor.this, executable.getUnderlyingCompiledQuery());
+        }
+
+        @Override
+        public XQueryEvaluator load() {
+            final XQueryEvaluator evaluator = super.load();
+            final Configuration configuration = getUnderlyingConfiguration();
+            evaluator.setURIResolver(configuration.getURIResolver());
+            evaluator.setErrorListener(configuration.getErrorListener());
+            if (configuration.getUnparsedTextURIResolver() != null) {
+                evaluator.getUnderlyingQueryContext().setUnparsedTextURIResolver(configuration.getUnparsedTextURIResolver());
+            }
+            return evaluator;
+        }
+    }
+
+    /**
+     * An extension function Calabash registers for the runtime, which marks
+     * the stylesheets and queries calling it as bound to the processor.
+     */
+    private static class RuntimeFunction extends ExtensionFunctionDefinition {
+        private final ExtensionFunctionDefinition function;
+
+        RuntimeFunction(final ExtensionFunctionDefinition function) {
+            this.function = function;
+        }
+
+        @Override
+        public StructuredQName getFunctionQName() {
+            return function.getFunctionQName();
+        }
+
+        @Override
+        public int getMinimumNumberOfArguments() {
+            return function.getMinimumNumberOfArguments();
+        }
+
+        @Override
+        public int getMaximumNumberOfArguments() {
+            return function.getMaximumNumberOfArguments();
+        }
+
+        @Override
+        public SequenceType[] getArgumentTypes() {
+            return function.getArgumentTypes();
+        }
+
+        @Override
+        public SequenceType getResultType(final SequenceType[] suppliedArgumentTypes) {
+            return function.getResultType(suppliedArgumentTypes);
+        }
+
+        @Override
+        public boolean trustResultType() {
+            return function.trustResultType();
+        }
+
+        @Override
+        public boolean dependsOnFocus() {
+            return function.dependsOnFocus();
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return function.hasSideEffects();
+        }
+
+        @Override
+        public ExtensionFunctionCall makeCallExpression() {
+            // called when a call to the function is compiled
+            runtimeBound();
+            return function.makeCallExpression();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SAXDestination;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import com.thaiopensource.util.PropertyMap;
+import com.thaiopensource.util.PropertyMapBuilder;
+import com.thaiopensource.validate.IncorrectSchemaException;
+import com.thaiopensource.validate.Schema;
+import com.thaiopensource.validate.SchemaReader;
+import com.thaiopensource.validate.ValidateProperty;
+import com.thaiopensource.validate.Validator;
+import com.thaiopensource.validate.auto.AutoSchemaReader;
+import com.thaiopensource.validate.prop.rng.RngProperty;
+import com.thaiopensource.validate.rng.CompactSchemaReader;
+import com.xmlcalabash.config.JingConfigurer;
+import com.xmlcalabash.core.XProcConstants;
+import com.xmlcalabash.core.XProcException;
+import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.io.ReadablePipe;
+import com.xmlcalabash.io.WritablePipe;
+import com.xmlcalabash.library.ValidateJing;
+import com.xmlcalabash.runtime.XAtomicStep;
+import com.xmlcalabash.util.Base64;
+import com.xmlcalabash.util.S9apiUtils;
+
+/**
+ * <code>p:validate-with-relax-ng</code> that keeps the grammars it compiles
+ * with Jing in the schema cache shared by the runtimes, see
+ * {@link CachingProcessor}.
+ *
+ * Grammars included by the grammar are read through the runtime's resolver,
+ * so the compiled grammar is compiled again once one of them is modified
+ * in the database. Documents are validated from their tree, without being
+ * serialized and parsed again.
+ */
+public class CachingValidateJing extends ValidateJing {
+
+    public static final QName TYPE = new QName(XProcConstants.NS_XPROC, "validate-with-relax-ng");
+
+    private static final QName _assert_valid = new QName("", "assert-valid");
+    private static final QName _dtd_id_idref_warnings = new QName("", "dtd-id-idref-warnings");
+    private static final QName _encoding = new QName("encoding");
+
+    private ReadablePipe source = null;
+    private ReadablePipe schemaSource = null;
+    private WritablePipe result = null;
+
+    public CachingValidateJing(final XProcRuntime runtime, final XAtomicStep step) {
+        super(runtime, step);
+    }
+
+    @Override
+    public void setInput(final String port, final ReadablePipe pipe) {
+        super.setInput(port, pipe);
+        if ("source".equals(port)) {
+            source = pipe;
+        } else if ("schema".equals(port)) {
+            schemaSource = pipe;
+        }
+    }
+
+    @Override
+    public void setOutput(final String port, final WritablePipe pipe) {
+        super.setOutput(port, pipe);
+        result = pipe;
+    }
+
+    @Override
+    public void run() throws SaxonApiException {
+        final Processor processor = runtime.getProcessor();
+        if (!(processor instanceof CachingProcessor)) {
+            super.run();
+            return;
+        }
+
+        run("");
+
+        final boolean assertValid = getOption(_assert_valid, true);
+        final boolean checkIdRefs = getOption(_dtd_id_idref_warnings, false);
+
+        final XdmNode doc = source.read();
+        final XdmNode schemaNode = schemaSource.read();
+        final ValidationErrors errors = new ValidationErrors(runtime, step, doc.getBaseURI());
+
+        final PropertyMapBuilder properties = new PropertyMapBuilder();
+        properties.put(ValidateProperty.ERROR_HANDLER, errors);
+        properties.put(ValidateProperty.URI_RESOLVER, runtime.getResolver());
+        properties.put(ValidateProperty.ENTITY_RESOLVER, runtime.getResolver());
+        if (checkIdRefs) {
+            RngProperty.CHECK_ID_IDREF.add(properties);
+        }
+
+        try {
+            final Schema schema = getSchema((CachingProcessor) processor, schemaNode, properties, checkIdRefs);
+            final Validator validator = schema.createValidator(properties.toPropertyMap());
+            processor.writeXdmValue(doc, new SAXDestination(validator.getContentHandler()));
+            if (errors.getError() != null && assertValid) {
+                throw XProcException.stepError(53, errors.getError());
+            }
+        } catch (final SAXException e) {
+            throw new XProcException("SAX Exception", e);
+        }
+
+        result.write(doc);
+    }
+
+    private Schema getSchema(final CachingProcessor processor, final XdmNode schemaNode, final PropertyMapBuilder properties,
+            final boolean checkIdRefs) throws SaxonApiException, SAXException {
+        final XdmNode root = S9apiUtils.getDocumentElement(schemaNode);
+        boolean compact = XProcConstants.c_data.equals(root.getNodeName());
+        final String contentType = root.getAttributeValue(XProcConstants.c_content_type);
+        if (contentType != null) {
+            compact |= contentType.startsWith("text/") || contentType.equals("application/relax-ng-compact-syntax");
+        }
+
+        final JingConfigurer configurer = runtime.getConfigurer().getJingConfigurer();
+        final SchemaReader reader;
+        final InputSource schemaInputSource;
+        final Object content;
+        if (compact) {
+            configurer.configRNC(properties);
+            reader = CompactSchemaReader.getInstance();
+            final String text = compactSchema(root);
+            schemaInputSource = new InputSource(new StringReader(text));
+            schemaInputSource.setSystemId(root.getBaseURI().toASCIIString());
+            content = text;
+        } else {
+            configurer.configRNG(properties);
+            reader = new AutoSchemaReader();
+            schemaInputSource = S9apiUtils.xdmToInputSource(runtime, schemaNode);
+            content = ExecutableCache.content(processor, schemaNode.getUnderlyingNode());
+        }
+
+        final ExecutableCache.Key key = new ExecutableCache.Key(
+                root.getBaseURI().toASCIIString(),
+                content,
+                (compact ? "rnc" : "rng") + ";check-id-idref=" + checkIdRefs);
+        final PropertyMap schemaProperties = properties.toPropertyMap();
+        return processor.getSchema(key, Schema.class, () -> {
+            try {
+                return reader.createSchema(schemaInputSource, schemaProperties);
+            } catch (final IncorrectSchemaException e) {
+                throw new XProcException(step.getNode(), "Error loading schema");
+            } catch (final IOException e) {
+                throw new XProcException("IO Exception", e);
+            }
+        });
+    }
+
+    private static String compactSchema(final XdmNode root) {
+        if ("base64".equals(root.getAttributeValue(_encoding))) {
+            return new String(Base64.decode(root.getStringValue()), StandardCharsets.UTF_8);
+        }
+        return root.getStringValue();
+    }
+}
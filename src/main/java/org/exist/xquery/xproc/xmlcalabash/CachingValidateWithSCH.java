@@ -0,0 +1,223 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXSource;
+
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmDestination;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+import net.sf.saxon.type.SchemaType;
+import org.xml.sax.InputSource;
+
+import com.xmlcalabash.core.XProcConstants;
+import com.xmlcalabash.core.XProcException;
+import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.io.ReadablePipe;
+import com.xmlcalabash.io.WritablePipe;
+import com.xmlcalabash.library.ValidateWithSCH;
+import com.xmlcalabash.model.RuntimeValue;
+import com.xmlcalabash.runtime.XAtomicStep;
+import com.xmlcalabash.util.S9apiUtils;
+
+/**
+ * <code>p:validate-with-schematron</code> that keeps the stylesheets it
+ * compiles Schematron schemas to in the schema cache shared by the
+ * runtimes, see {@link CachingProcessor}, so a schema is only transformed
+ * with the ISO Schematron skeleton and compiled on the first use.
+ *
+ * The compiled schema depends on the phase and the parameters of the step,
+ * and is compiled again once a schema it includes is modified in the database.
+ */
+public class CachingValidateWithSCH extends ValidateWithSCH {
+
+    public static final QName TYPE = new QName(XProcConstants.NS_XPROC, "validate-with-schematron");
+
+    private static final StructuredQName _untyped = StructuredQName.fromClarkName("{http://www.w3.org/2001/XMLSchema}untyped");
+    private static final QName _assert_valid = new QName("", "assert-valid");
+    private static final QName _phase = new QName("", "phase");
+
+    private static final String SKELETON = "iso_schematron_skeleton_for_saxon.xsl";
+
+    private ReadablePipe source = null;
+    private ReadablePipe schema = null;
+    private WritablePipe resultPipe = null;
+    private WritablePipe reportPipe = null;
+    private final Map<QName, RuntimeValue> params = new TreeMap<>((a, b) -> a.getClarkName().compareTo(b.getClarkName()));
+
+    public CachingValidateWithSCH(final XProcRuntime runtime, final XAtomicStep step) {
+        super(runtime, step);
+    }
+
+    @Override
+    public void setInput(final String port, final ReadablePipe pipe) {
+        super.setInput(port, pipe);
+        if ("source".equals(port)) {
+            source = pipe;
+        } else if ("schema".equals(port)) {
+            schema = pipe;
+        }
+    }
+
+    @Override
+    public void setOutput(final String port, final WritablePipe pipe) {
+        super.setOutput(port, pipe);
+        if ("result".equals(port)) {
+            resultPipe = pipe;
+        } else if ("report".equals(port)) {
+            reportPipe = pipe;
+        }
+    }
+
+    @Override
+    public void setParameter(final QName name, final RuntimeValue value) {
+        super.setParameter(name, value);
+        params.put(name, value);
+    }
+
+    @Override
+    public void run() throws SaxonApiException {
+        final Processor processor = runtime.getProcessor();
+        if (!(processor instanceof CachingProcessor)) {
+            super.run();
+            return;
+        }
+
+        run("");
+
+        final XdmNode sourceXML = source.read();
+        final SchemaType type = sourceXML.getUnderlyingNode().getSchemaType();
+        final boolean schemaAware = type != null && !type.getStructuredQName().equals(_untyped);
+        final XdmNode schemaXML = schema.read();
+        final String phase = getOption(_phase) == null ? null : getOption(_phase).getString();
+
+        final StringBuilder options = new StringBuilder("schematron;schema-aware=").append(schemaAware).append(";phase=").append(phase);
+        for (final Map.Entry<QName, RuntimeValue> param : params.entrySet()) {
+            options.append(';').append(param.getKey().getClarkName()).append('=').append(param.getValue().getString());
+        }
+        final ExecutableCache.Key key = new ExecutableCache.Key(
+                schemaXML.getBaseURI().toASCIIString(),
+                ExecutableCache.content(processor, schemaXML.getUnderlyingNode()),
+                options.toString());
+        final XsltExecutable exec = ((CachingProcessor) processor).getSchema(key, XsltExecutable.class,
+                () -> compileSchema(schemaXML, schemaAware, phase));
+
+        final XsltTransformer transformer = exec.load();
+        for (final Map.Entry<QName, RuntimeValue> param : params.entrySet()) {
+            transformer.setParameter(param.getKey(), param.getValue().getUntypedAtomic(runtime));
+        }
+        transformer.setInitialContextNode(sourceXML);
+        final XdmDestination result = new XdmDestination();
+        transformer.setDestination(result);
+        transformer.transform();
+
+        final XdmNode report = result.getXdmNode();
+        reportPipe.write(report);
+        if (hasFailedAsserts(report) && getOption(_assert_valid, false)) {
+            throw XProcException.stepError(54);
+        }
+        resultPipe.write(sourceXML);
+    }
+
+    /**
+     * Compiles a schema to a stylesheet with the ISO Schematron skeleton, like Calabash does.
+     */
+    private XsltExecutable compileSchema(final XdmNode schemaXML, final boolean schemaAware, final String phase) throws SaxonApiException {
+        final XdmNode included = transform(schemaXML, "iso_dsdl_include.xsl", schemaAware);
+        final XdmNode expanded = transform(included, "iso_abstract_expand.xsl", schemaAware);
+
+        final XsltTransformer schemaCompiler = compileSkeleton("iso_svrl_for_xslt2.xsl", schemaAware).load();
+        if (phase != null) {
+            schemaCompiler.setParameter(_phase, new XdmAtomicValue(phase));
+        }
+        for (final Map.Entry<QName, RuntimeValue> param : params.entrySet()) {
+            schemaCompiler.setParameter(param.getKey(), new XdmAtomicValue(param.getValue().getString()));
+        }
+        schemaCompiler.setInitialContextNode(expanded);
+        final XdmDestination result = new XdmDestination();
+        schemaCompiler.setDestination(result);
+        runtime.getConfigurer().getSaxonConfigurer().configSchematron(schemaCompiler.getUnderlyingController().getConfiguration());
+        schemaCompiler.transform();
+
+        final XdmNode compiledSchema = result.getXdmNode();
+        if (S9apiUtils.getDocumentElement(compiledSchema) == null) {
+            final XdmNode schemaRoot = S9apiUtils.getDocumentElement(schemaXML);
+            final String root = schemaRoot == null ? "null" : schemaRoot.getNodeName().toString();
+            throw new XProcException("p:validate-with-schematron failed to compile provided schema: " + root);
+        }
+
+        final XsltCompiler compiler = runtime.getProcessor().newXsltCompiler();
+        compiler.setSchemaAware(schemaAware);
+        return compiler.compile(compiledSchema.asSource());
+    }
+
+    private XdmNode transform(final XdmNode source, final String xslt, final boolean schemaAware) throws SaxonApiException {
+        final XsltTransformer transformer = compileSkeleton(xslt, schemaAware).load();
+        transformer.setInitialContextNode(source);
+        final XdmDestination result = new XdmDestination();
+        transformer.setDestination(result);
+        transformer.transform();
+        return result.getXdmNode();
+    }
+
+    private XsltExecutable compileSkeleton(final String xslt, final boolean schemaAware) throws SaxonApiException {
+        final XsltCompiler compiler = runtime.getProcessor().newXsltCompiler();
+        compiler.setSchemaAware(schemaAware);
+        compiler.setURIResolver(this::resolveSkeleton);
+        return compiler.compile(schematronXSLT(xslt));
+    }
+
+    private Source resolveSkeleton(final String href, final String base) throws TransformerException {
+        if (SKELETON.equals(href)) {
+            return schematronXSLT(SKELETON);
+        }
+        throw new XProcException(step.getNode(), "Failed to resolve " + href + " from JAR file.");
+    }
+
+    private static SAXSource schematronXSLT(final String xslt) {
+        final InputStream instream = ValidateWithSCH.class.getResourceAsStream("/etc/schematron/" + xslt);
+        if (instream == null) {
+            throw new UnsupportedOperationException("Failed to load " + xslt + " from JAR file.");
+        }
+        return new SAXSource(new InputSource(instream));
+    }
+
+    private boolean hasFailedAsserts(final XdmNode report) throws SaxonApiException {
+        final XPathCompiler xcomp = runtime.getProcessor().newXPathCompiler();
+        xcomp.setBaseURI(step.getNode().getBaseURI());
+        xcomp.declareNamespace("svrl", "http://purl.oclc.org/dsdl/svrl");
+        final XPathSelector selector = xcomp.compile("//svrl:failed-assert|//svrl:successful-report").load();
+        selector.setContextItem(report);
+        return selector.iterator().hasNext();
+    }
+}
@@ -0,0 +1,339 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.exist.xmldb.XmldbURI;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import com.xmlcalabash.core.XProcConstants;
+import com.xmlcalabash.core.XProcException;
+import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.io.ReadablePipe;
+import com.xmlcalabash.io.WritablePipe;
+import com.xmlcalabash.library.ValidateWithXSD;
+import com.xmlcalabash.runtime.XAtomicStep;
+import com.xmlcalabash.util.S9apiUtils;
+
+/**
+ * <code>p:validate-with-xml-schema</code> that keeps the schemas it compiles
+ * with Xerces in the schema cache shared by the runtimes, see
+ * {@link CachingProcessor}.
+ *
+ * Schemas included or imported by the schema are read through the
+ * {@link EXistURIResolver}, so the compiled schema is compiled again once
+ * one of them is modified in the database. With a schema aware Saxon
+ * processor the step validates like Calabash does.
+ */
+public class CachingValidateWithXSD extends ValidateWithXSD {
+
+    public static final QName TYPE = new QName(XProcConstants.NS_XPROC, "validate-with-xml-schema");
+
+    private static final QName _assert_valid = new QName("", "assert-valid");
+
+    private ReadablePipe source = null;
+    private ReadablePipe schemas = null;
+    private WritablePipe result = null;
+
+    public CachingValidateWithXSD(final XProcRuntime runtime, final XAtomicStep step) {
+        super(runtime, step);
+    }
+
+    @Override
+    public void setInput(final String port, final ReadablePipe pipe) {
+        super.setInput(port, pipe);
+        if ("source".equals(port)) {
+            source = pipe;
+        } else if ("schema".equals(port)) {
+            schemas = pipe;
+        }
+    }
+
+    @Override
+    public void setOutput(final String port, final WritablePipe pipe) {
+        super.setOutput(port, pipe);
+        result = pipe;
+    }
+
+    @Override
+    public void run() throws SaxonApiException {
+        final Processor processor = runtime.getProcessor();
+        if (!(processor instanceof CachingProcessor) || processor.getSchemaManager() != null) {
+            super.run();
+            return;
+        }
+
+        run("");
+
+        final List<XdmNode> schemaDocuments = new ArrayList<>();
+        while (schemas.moreDocuments()) {
+            final XdmNode schemaNode = schemas.read();
+            schemaDocuments.add(schemaNode);
+        }
+
+        final XdmNode doc = source.read();
+        try {
+            final Schema schema = getSchema((CachingProcessor) processor, schemaDocuments);
+
+            final ValidationErrors errors = new ValidationErrors(runtime, step, doc.getBaseURI());
+            final Validator validator = schema.newValidator();
+            validator.setErrorHandler(errors);
+
+            final InputSource docSource = S9apiUtils.xdmToInputSource(runtime, doc);
+            docSource.setSystemId(doc.getBaseURI().toASCIIString());
+            try {
+                validator.validate(new SAXSource(docSource));
+                if (errors.getError() != null) {
+                    throw errors.getError();
+                }
+            } catch (final SAXParseException e) {
+                if (getOption(_assert_valid, false)) {
+                    throw new XProcException(XProcConstants.stepError(53), e);
+                }
+            }
+        } catch (final SAXException | IOException e) {
+            throw new XProcException(e);
+        }
+
+        result.write(doc);
+    }
+
+    private Schema getSchema(final CachingProcessor processor, final List<XdmNode> schemaDocuments) throws SaxonApiException, SAXException {
+        final XdmNode schemaNode = schemaDocuments.get(0);
+        final String schemaSystemId = systemId(schemaNode);
+
+        // the other schema documents of the port are found by the includes and imports
+        final Map<String, XdmNode> supplied = new HashMap<>();
+        final List<Object> content = new ArrayList<>();
+        for (final XdmNode document : schemaDocuments) {
+            supplied.putIfAbsent(systemId(document), document);
+            content.add(ExecutableCache.content(processor, document.getUnderlyingNode()));
+        }
+        final ExecutableCache.Key key = new ExecutableCache.Key(
+                schemaSystemId,
+                content.size() == 1 ? content.get(0) : content,
+                "xsd");
+
+        return processor.getSchema(key, Schema.class, () -> {
+            final SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            runtime.getConfigurer().getJaxpConfigurer().configSchemaFactory(factory);
+            final EXistURIResolver resolver = EXistURIResolver.getResolver(processor.getUnderlyingConfiguration());
+            if (factory.getResourceResolver() == null && resolver != null) {
+                factory.setResourceResolver(new ResourceResolver(processor, resolver, supplied));
+            }
+
+            final InputSource is;
+            try {
+                is = S9apiUtils.xdmToInputSource(runtime, schemaNode);
+            } catch (final SaxonApiException e) {
+                throw new SAXException(e);
+            }
+            is.setSystemId(schemaSystemId);
+            return factory.newSchema(new SAXSource(is));
+        });
+    }
+
+    private static String systemId(final XdmNode document) {
+        final String systemId = document.getBaseURI().toASCIIString();
+        if (systemId.startsWith("/")) {
+            // a database path, which Xerces would take for a file
+            return XmldbURI.EMBEDDED_SERVER_URI_PREFIX + systemId;
+        }
+        return systemId;
+    }
+
+    /**
+     * Reads included and imported schemas through the {@link EXistURIResolver},
+     * so that they are recorded as dependencies of the compiled schema, unless
+     * they are among the schema documents of the step.
+     */
+    private static class ResourceResolver implements LSResourceResolver {
+        private final Processor processor;
+        private final EXistURIResolver resolver;
+        private final Map<String, XdmNode> supplied;
+
+        ResourceResolver(final Processor processor, final EXistURIResolver resolver, final Map<String, XdmNode> supplied) {
+            this.processor = processor;
+            this.resolver = resolver;
+            this.supplied = supplied;
+        }
+
+        @Override
+        public LSInput resolveResource(final String type, final String namespaceURI, final String publicId,
+                final String systemId, final String baseURI) {
+            if (systemId == null) {
+                return null;
+            }
+
+            final XdmNode document = supplied.get(absolute(systemId, baseURI));
+            if (document != null) {
+                return serialize(publicId, systemId(document), document);
+            }
+
+            final Source source;
+            try {
+                source = resolver.resolve(systemId, baseURI);
+            } catch (final TransformerException e) {
+                throw new XProcException(e);
+            }
+
+            if (source instanceof StreamSource && ((StreamSource) source).getInputStream() != null) {
+                return new Input(publicId, source.getSystemId(), ((StreamSource) source).getInputStream());
+            } else if (source instanceof NodeInfo) {
+                return serialize(publicId, source.getSystemId(), new XdmNode((NodeInfo) source));
+            }
+            return null;
+        }
+
+        private Input serialize(final String publicId, final String systemId, final XdmNode node) {
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            try {
+                processor.newSerializer(os).serializeNode(node);
+            } catch (final SaxonApiException e) {
+                throw new XProcException(e);
+            }
+            return new Input(publicId, systemId, new ByteArrayInputStream(os.toByteArray()));
+        }
+
+        private static String absolute(final String systemId, final String baseURI) {
+            try {
+                return baseURI == null ? systemId : new URI(baseURI).resolve(systemId).toASCIIString();
+            } catch (final URISyntaxException | IllegalArgumentException e) {
+                return systemId;
+            }
+        }
+    }
+
+    private static class Input implements LSInput {
+        private String publicId;
+        private String systemId;
+        private String baseURI;
+        private InputStream byteStream;
+
+        Input(final String publicId, final String systemId, final InputStream byteStream) {
+            this.publicId = publicId;
+            this.systemId = systemId;
+            this.byteStream = byteStream;
+        }
+
+        @Override
+        public Reader getCharacterStream() {
+            return null;
+        }
+
+        @Override
+        public void setCharacterStream(final Reader characterStream) {
+        }
+
+        @Override
+        public InputStream getByteStream() {
+            return byteStream;
+        }
+
+        @Override
+        public void setByteStream(final InputStream byteStream) {
+            this.byteStream = byteStream;
+        }
+
+        @Override
+        public String getStringData() {
+            return null;
+        }
+
+        @Override
+        public void setStringData(final String stringData) {
+        }
+
+        @Override
+        public String getSystemId() {
+            return systemId;
+        }
+
+        @Override
+        public void setSystemId(final String systemId) {
+            this.systemId = systemId;
+        }
+
+        @Override
+        public String getPublicId() {
+            return publicId;
+        }
+
+        @Override
+        public void setPublicId(final String publicId) {
+            this.publicId = publicId;
+        }
+
+        @Override
+        public String getBaseURI() {
+            return baseURI;
+        }
+
+        @Override
+        public void setBaseURI(final String baseURI) {
+            this.baseURI = baseURI;
+        }
+
+        @Override
+        public String getEncoding() {
+            return null;
+        }
+
+        @Override
+        public void setEncoding(final String encoding) {
+        }
+
+        @Override
+        public boolean getCertifiedText() {
+            return false;
+        }
+
+        @Override
+        public void setCertifiedText(final boolean certifiedText) {
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xmlresolver.Catalog;
+import org.xmlresolver.CatalogResult;
+import org.xmlresolver.ResourceCache;
+
+/**
+ * Registry of the XML catalogs used by pipelines.
+ *
+ * The catalogs of a catalog list are parsed once and shared by all runs
+ * using the same list. They are parsed again when one of the catalog files
+ * on the file system has been modified. The results of URI lookups are
+ * kept with the catalogs, so resolving the same reference again does not
+ * search the catalogs.
+ */
+public class CatalogRegistry {
+
+    private static final Logger LOG = LogManager.getLogger(CatalogRegistry.class);
+
+    /**
+     * Lookups remembered per catalog list, the remembered lookups are
+     * forgotten when there are more.
+     */
+    public static final int MAX_LOOKUPS = 4096;
+
+    private static final CatalogRegistry INSTANCE = new CatalogRegistry();
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static CatalogRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the catalogs of a catalog list.
+     *
+     * @param catalogList the catalog list, separated by semicolons
+     * @return the catalogs
+     */
+    public Entry get(final String catalogList) {
+        return entries.compute(catalogList, (k, entry) -> {
+            if (entry != null && entry.isCurrent()) {
+                return entry;
+            }
+            if (entry != null) {
+                LOG.debug("Catalogs '{}' have been modified, reloading", catalogList);
+            }
+            return new Entry(catalogList);
+        });
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The catalogs of a catalog list, with the URI lookups done so far.
+     */
+    public final class Entry {
+        private final Catalog catalog;
+        private final ResourceCache cache;
+        private final Map<Path, FileTime> files = new HashMap<>();
+        private final Map<LookupKey, Lookup> lookups = new ConcurrentHashMap<>();
+
+        private Entry(final String catalogList) {
+            for (final String item : catalogList.split(";")) {
+                final Path file = toPath(item.trim());
+                if (file != null) {
+                    files.put(file, lastModified(file));
+                }
+            }
+            this.catalog = new Catalog(catalogList);
+            this.cache = catalog.cache();
+        }
+
+        public Catalog getCatalog() {
+            return catalog;
+        }
+
+        public ResourceCache getCache() {
+            return cache;
+        }
+
+        private boolean isCurrent() {
+            for (final Map.Entry<Path, FileTime> file : files.entrySet()) {
+                if (!Objects.equals(file.getValue(), lastModified(file.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Look up a URI reference in the catalogs, first as it is and then
+         * resolved against the base URI.
+         *
+         * @param href the URI reference
+         * @param base the base URI, or null
+         * @return the result of the lookup
+         */
+        public Lookup lookupURI(final String href, final String base) {
+            final LookupKey key = new LookupKey(href, base);
+            Lookup lookup = lookups.get(key);
+            if (lookup != null) {
+                hits.incrementAndGet();
+                return lookup;
+            }
+            misses.incrementAndGet();
+
+            boolean skipCache = false;
+            String uri = href;
+
+            // the catalog is a DOM tree, which may not be read concurrently
+            synchronized (catalog) {
+                CatalogResult resolved = catalog.lookupURI(href);
+                if (resolved == null && base != null) {
+                    try {
+                        uri = new URI(base)
+                                .resolve(uri)
+                                .toURL()
+                                .toString();
+
+                        resolved = catalog.lookupURI(uri);
+
+                    } catch (final URISyntaxException | MalformedURLException e) {
+                        resolved = null;
+
+                    } catch (final IllegalArgumentException e) {
+                        resolved = null;
+                        skipCache = true;
+                    }
+                }
+                lookup = new Lookup(resolved, uri, skipCache);
+            }
+
+            if (lookups.size() >= MAX_LOOKUPS) {
+                lookups.clear();
+            }
+            lookups.put(key, lookup);
+            return lookup;
+        }
+
+        /**
+         * Look up a system or public identifier in the catalogs.
+         */
+        public CatalogResult lookupPublic(final String systemId, final String publicId) {
+            synchronized (catalog) {
+                return catalog.lookupPublic(systemId, publicId);
+            }
+        }
+    }
+
+    /**
+     * The result of a URI lookup.
+     */
+    public static final class Lookup {
+        private final CatalogResult result;
+        private final String uri;
+        private final boolean skipCache;
+
+        private Lookup(final CatalogResult result, final String uri, final boolean skipCache) {
+            this.result = result;
+            this.uri = uri;
+            this.skipCache = skipCache;
+        }
+
+        /**
+         * @return the catalog entry, or null if the catalogs have none
+         */
+        public CatalogResult getResult() {
+            return result;
+        }
+
+        /**
+         * @return the absolute URI to read when the catalogs have no entry
+         */
+        public String getUri() {
+            return uri;
+        }
+
+        /**
+         * @return true if the reference can not be resolved at all
+         */
+        public boolean isSkipCache() {
+            return skipCache;
+        }
+    }
+
+    private static final class LookupKey {
+        private final String href;
+        private final String base;
+
+        LookupKey(final String href, final String base) {
+            this.href = href;
+            this.base = base;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof LookupKey)) {
+                return false;
+            }
+            final LookupKey other = (LookupKey) o;
+            return href.equals(other.href) && Objects.equals(base, other.base);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(href, base);
+        }
+    }
+
+    /**
+     * @return the file of a catalog on the file system, or null if it is not a local file
+     */
+    private static Path toPath(final String item) {
+        if (item.isEmpty()) {
+            return null;
+        }
+        try {
+            if (item.startsWith("file:")) {
+                return Paths.get(new URI(item));
+            }
+            if (item.indexOf(':') > 1) {
+                // some other URI scheme, changes are not detected
+                return null;
+            }
+            return Paths.get(item).toAbsolutePath();
+        } catch (final URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static FileTime lastModified(final Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import com.xmlcalabash.model.Step;
+import com.xmlcalabash.runtime.XPipeline;
+import com.xmlcalabash.runtime.XRootStep;
+
+/**
+ * A pipeline that has been loaded by a runtime and can be run
+ * again without parsing and compiling its source documents.
+ *
+ * A compiled pipeline is used by one run at a time; {@link PipelineCache}
+ * hands it out and takes it back once the run has finished.
+ *
+ * Runtime level state, such as cookie stores and collections, is
+ * cleared before each run, see {@link #newInstance()}. The runtime keeps
+ * the documents its resolver has cached, so compiled pipelines are not
+ * shared between users, see {@link PipelineCache.Key}.
+ */
+public class CompiledPipeline {
+
+    private final PipelineCache.Key key;
+    private final PooledRuntime runtime;
+    private final Step step;
+    private final Dependencies dependencies;
+
+    private XPipeline loaded;
+    private volatile boolean invalidated = false;
+
+    CompiledPipeline(final PipelineCache.Key key, final PooledRuntime runtime, final XPipeline loaded, final Dependencies dependencies) {
+        this.key = key;
+        this.runtime = runtime;
+        this.step = loaded.getStep();
+        this.loaded = loaded;
+        this.dependencies = dependencies;
+    }
+
+    public PipelineCache.Key getKey() {
+        return key;
+    }
+
+    public PooledRuntime getRuntime() {
+        return runtime;
+    }
+
+    public Dependencies getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * Get a pipeline instance ready to receive inputs and options.
+     *
+     * The first call returns the pipeline built by the runtime when it was
+     * loaded, later calls clear the state the previous run left in the
+     * runtime and instantiate a fresh one from the compiled model.
+     *
+     * @return the pipeline to run
+     */
+    public XPipeline newInstance() {
+        if (loaded != null) {
+            final XPipeline pipeline = loaded;
+            loaded = null;
+            return pipeline;
+        }
+
+        runtime.clearRunState();
+
+        final XPipeline pipeline = new XPipeline(runtime, step, new XRootStep(runtime));
+        pipeline.instantiate(step.getDeclaration());
+        return pipeline;
+    }
+
+    /**
+     * Mark the pipeline as built from documents that have been changed
+     * since, it is closed instead of being cached when it is released.
+     */
+    public void invalidate() {
+        invalidated = true;
+    }
+
+    public boolean isInvalidated() {
+        return invalidated;
+    }
+
+    public void close() {
+        runtime.close();
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import com.xmlcalabash.util.Input;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.Permission;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.TransactionException;
+import org.exist.storage.txn.Txn;
+import org.exist.xmldb.XmldbURI;
+
+/**
+ * Cache of the Calabash configuration documents given with the
+ * <code>config</code> option.
+ *
+ * A configuration stored in the database is read as the current user, and
+ * its tree is built again only when the document has been modified. The same
+ * applies to configuration files on the file system. Configurations read from
+ * other URLs or given as a stream are read on each call, and their tree is
+ * only built again when the digest of the content changes.
+ *
+ * The version of a configuration is part of the configuration key of the
+ * runtimes, see {@link UserArgs#getConfigurationKey()}, so that runtimes set
+ * up with a configuration that has been modified since are not used again;
+ * the idle ones are closed when the modification is noticed.
+ */
+public class ConfigDocumentCache {
+
+    private static final Logger LOG = LogManager.getLogger(ConfigDocumentCache.class);
+
+    /**
+     * Configurations kept, the least recently used configuration is forgotten when there are more.
+     */
+    public static final int MAX_CONFIGURATIONS = 32;
+
+    private static final ConfigDocumentCache INSTANCE = new ConfigDocumentCache();
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, ConfigDocumentCache.Entry> eldest) {
+            return size() > MAX_CONFIGURATIONS;
+        }
+    };
+
+    // the trees are only copied into the configuration of each runtime
+    private final Processor processor = new Processor(false);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static ConfigDocumentCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a configuration document.
+     *
+     * @param broker the broker to read the database with as the current user,
+     *     or null to read <code>xmldb:</code> URIs as other URLs
+     * @param config the configuration
+     * @return the configuration document
+     *
+     * @throws IOException if the configuration cannot be read or parsed
+     * @throws PermissionDeniedException if the current user may not read the configuration
+     */
+    public Entry get(final DBBroker broker, final Input config) throws IOException, PermissionDeniedException {
+        switch (config.getKind()) {
+            case URI:
+                final String uri = config.getUri();
+
+                final XmldbURI databaseURI = EXistURIResolver.toDatabaseURI(uri);
+                if (databaseURI != null && broker != null) {
+                    return fromDatabase(broker, databaseURI, uri);
+                }
+
+                final Path file = toPath(uri);
+                if (file != null) {
+                    return fromFile(file, uri);
+                }
+
+                try (final InputStream is = URI.create(uri).toURL().openStream()) {
+                    return fromContent(uri, is);
+                }
+
+            case INPUT_STREAM:
+                try (final InputStream is = config.getInputStream()) {
+                    return fromContent(null, is);
+                }
+
+            default:
+                throw new UnsupportedOperationException(String.format("Unsupported config kind '%s'", config.getKind()));
+        }
+    }
+
+    private Entry fromDatabase(final DBBroker broker, final XmldbURI databaseURI, final String uri) throws IOException, PermissionDeniedException {
+        final DocumentImpl doc = broker.getResource(databaseURI, Permission.READ);
+        if (doc == null) {
+            throw new IOException("Configuration " + uri + " not found in database.");
+        }
+
+        if (doc instanceof BinaryDocument) {
+            try (final Txn transaction = broker.getBrokerPool().getTransactionManager().beginTransaction();
+                 final InputStream is = broker.getBinaryResource(transaction, (BinaryDocument) doc)) {
+                final Entry entry = fromContent(uri, is);
+                transaction.commit();
+                return entry;
+            } catch (final TransactionException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        final Source source = EXistURIResolver.documentSource(broker, doc);
+        source.setSystemId(uri);
+        return get(uri, "db:" + doc.getLastModified(), source);
+    }
+
+    private Entry fromFile(final Path file, final String uri) throws IOException {
+        return get(uri, "file:" + Files.getLastModifiedTime(file).toMillis(), new StreamSource(file.toFile()));
+    }
+
+    private Entry fromContent(final String uri, final InputStream is) throws IOException {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            content.write(buffer, 0, read);
+        }
+
+        final String digest = ExecutableCache.digest(content.toByteArray());
+        return get(uri == null ? digest : uri, digest, new StreamSource(new ByteArrayInputStream(content.toByteArray()), uri));
+    }
+
+    private Entry get(final String key, final String version, final Source source) throws IOException {
+        final Entry previous;
+        synchronized (entries) {
+            previous = entries.get(key);
+        }
+        if (previous != null && previous.version.equals(version)) {
+            hits.incrementAndGet();
+            return previous;
+        }
+        misses.incrementAndGet();
+
+        final NodeInfo document;
+        try {
+            document = processor.newDocumentBuilder().build(source).getUnderlyingNode();
+        } catch (final SaxonApiException e) {
+            throw new IOException("Failed to parse configuration " + (source.getSystemId() == null ? "" : source.getSystemId()) + ": " + e.getMessage(), e);
+        }
+
+        final Entry entry = new Entry(key, version, document);
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+
+        if (previous != null) {
+            // the runtimes set up with the old version will not be borrowed again
+            LOG.debug("Configuration '{}' has been modified, closing the runtimes set up with it", key);
+            final String stale = UserArgs.configurationKeyPart(previous);
+            RuntimePool.getInstance().evict(configurationKey -> configurationKey.contains(stale));
+        }
+        return entry;
+    }
+
+    private static Path toPath(final String uri) {
+        if (!uri.startsWith("file:")) {
+            return null;
+        }
+        try {
+            return Paths.get(new URI(uri));
+        } catch (final URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * A parsed configuration document.
+     */
+    public static final class Entry {
+        private final String key;
+        private final String version;
+        private final NodeInfo document;
+
+        private Entry(final String key, final String version, final NodeInfo document) {
+            this.key = key;
+            this.version = version;
+            this.document = document;
+        }
+
+        /**
+         * @return identifies the configuration and its version
+         */
+        public String getKey() {
+            return key + "@" + version;
+        }
+
+        /**
+         * @return the configuration document, to be copied into the tree of a runtime
+         */
+        public Source getSource() {
+            return document;
+        }
+    }
+}
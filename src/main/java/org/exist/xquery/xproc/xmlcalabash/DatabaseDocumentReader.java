@@ -0,0 +1,177 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import org.exist.EXistException;
+import org.exist.Namespaces;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.serializers.EXistOutputKeys;
+import org.exist.storage.serializers.Serializer;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Reports the events of a stored XML document to a SAX handler, using
+ * eXist's serializer instead of parsing.
+ *
+ * Used in a {@link javax.xml.transform.sax.SAXSource}, it lets Saxon build
+ * its own tree from a stored document, which is much faster than navigating
+ * the persistent DOM through a {@link javax.xml.transform.dom.DOMSource}.
+ * The document is read as stored: XIncludes and stylesheet processing
+ * instructions are not expanded.
+ *
+ * The document may be read after the broker it was opened with has been
+ * released, and on another thread, so the reader borrows a broker for the
+ * same subject while it reads.
+ */
+public class DatabaseDocumentReader implements XMLReader {
+
+    private static final String FEATURE_NAMESPACES = "http://xml.org/sax/features/namespaces";
+    private static final String FEATURE_NAMESPACE_PREFIXES = "http://xml.org/sax/features/namespace-prefixes";
+
+    private final BrokerPool pool;
+    private final Subject subject;
+    private final DocumentImpl document;
+
+    private ContentHandler contentHandler;
+    private LexicalHandler lexicalHandler;
+    private ErrorHandler errorHandler;
+    private DTDHandler dtdHandler;
+    private EntityResolver entityResolver;
+
+    public DatabaseDocumentReader(final DBBroker broker, final DocumentImpl document) {
+        this.pool = broker.getBrokerPool();
+        this.subject = broker.getCurrentSubject();
+        this.document = document;
+    }
+
+    @Override
+    public void parse(final InputSource input) throws IOException, SAXException {
+        parse();
+    }
+
+    @Override
+    public void parse(final String systemId) throws IOException, SAXException {
+        parse();
+    }
+
+    private void parse() throws SAXException {
+        try (final DBBroker broker = pool.get(Optional.of(subject))) {
+            final Serializer serializer = broker.getSerializer();
+            serializer.reset();
+            try {
+                serializer.setProperty(EXistOutputKeys.EXPAND_XINCLUDES, "no");
+                serializer.setProperty(EXistOutputKeys.PROCESS_XSL_PI, "no");
+                serializer.setProperty(Serializer.GENERATE_DOC_EVENTS, "true");
+                serializer.setSAXHandlers(contentHandler, lexicalHandler);
+                serializer.toSAX(document);
+            } finally {
+                serializer.reset();
+            }
+        } catch (final EXistException e) {
+            throw new SAXException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean getFeature(final String name) throws SAXNotRecognizedException {
+        if (FEATURE_NAMESPACES.equals(name)) {
+            return true;
+        } else if (FEATURE_NAMESPACE_PREFIXES.equals(name)) {
+            return false;
+        }
+        throw new SAXNotRecognizedException(name);
+    }
+
+    @Override
+    public void setFeature(final String name, final boolean value) throws SAXNotRecognizedException {
+        if (getFeature(name) != value) {
+            throw new SAXNotRecognizedException(name + " cannot be set to " + value);
+        }
+    }
+
+    @Override
+    public Object getProperty(final String name) throws SAXNotRecognizedException {
+        if (Namespaces.SAX_LEXICAL_HANDLER.equals(name)) {
+            return lexicalHandler;
+        }
+        throw new SAXNotRecognizedException(name);
+    }
+
+    @Override
+    public void setProperty(final String name, final Object value) throws SAXNotRecognizedException {
+        if (Namespaces.SAX_LEXICAL_HANDLER.equals(name)) {
+            lexicalHandler = (LexicalHandler) value;
+        } else {
+            throw new SAXNotRecognizedException(name);
+        }
+    }
+
+    @Override
+    public void setEntityResolver(final EntityResolver resolver) {
+        this.entityResolver = resolver;
+    }
+
+    @Override
+    public EntityResolver getEntityResolver() {
+        return entityResolver;
+    }
+
+    @Override
+    public void setDTDHandler(final DTDHandler handler) {
+        this.dtdHandler = handler;
+    }
+
+    @Override
+    public DTDHandler getDTDHandler() {
+        return dtdHandler;
+    }
+
+    @Override
+    public void setContentHandler(final ContentHandler handler) {
+        this.contentHandler = handler;
+    }
+
+    @Override
+    public ContentHandler getContentHandler() {
+        return contentHandler;
+    }
+
+    @Override
+    public void setErrorHandler(final ErrorHandler handler) {
+        this.errorHandler = handler;
+    }
+
+    @Override
+    public ErrorHandler getErrorHandler() {
+        return errorHandler;
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.Txn;
+import org.exist.util.LockException;
+import org.exist.util.MimeTable;
+import org.exist.util.MimeType;
+import org.exist.xmldb.XmldbURI;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import com.xmlcalabash.core.XProcException;
+import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.io.ReadablePipe;
+import com.xmlcalabash.io.WritableDocument;
+import com.xmlcalabash.model.Serialization;
+
+/**
+ * Stores the documents of an output port bound to a database URI, according
+ * to the serialization of the port.
+ *
+ * With the xml or xhtml method, the port must produce a single document,
+ * which is stored as an XML resource with the media type of the serialization,
+ * if any. The database receives the events of its Saxon tree through an
+ * {@link XdmNodeReader}, which adds the document type declaration and the
+ * Unicode normalization of the serialization, so the document is never
+ * serialized and parsed again. The encoding only applies to serialized
+ * documents, XML resources are stored as nodes.
+ *
+ * With any other method, e.g. text or html, the documents are serialized
+ * into an {@link OutputBuffer}, in the encoding of the serialization, and
+ * stored as a binary resource from it.
+ */
+class DatabaseOutput {
+
+    private DatabaseOutput() {
+    }
+
+    static void store(
+        final DBBroker broker,
+        final XProcRuntime runtime,
+        final XmldbURI uri,
+        final Serialization serial,
+        final ReadablePipe pipe
+    ) throws SaxonApiException, IOException, PermissionDeniedException, EXistException, LockException, SAXException {
+
+        final List<XdmNode> documents = new ArrayList<>();
+        while (pipe.moreDocuments()) {
+            documents.add(pipe.read());
+        }
+        if (documents.isEmpty()) {
+            return;
+        }
+
+        if (isXml(serial) && documents.size() != 1) {
+            throw new XProcException("Cannot store " + documents.size() + " documents as the XML resource '" + uri
+                    + "', a sequence can only be stored with a method other than xml or xhtml, e.g. text");
+        }
+
+        final XmldbURI collectionUri = uri.removeLastSegment();
+        final XmldbURI name = uri.lastSegment();
+
+        try (final Txn transaction = broker.getBrokerPool().getTransactionManager().beginTransaction();
+             final Collection collection = broker.openCollection(collectionUri, LockMode.WRITE_LOCK)) {
+
+            if (collection == null) {
+                throw new XProcException("Collection '" + collectionUri + "' does not exist, cannot store '" + uri + "'");
+            }
+
+            if (isXml(serial)) {
+                final XdmNodeReader reader = new XdmNodeReader(runtime.getProcessor(), documents.get(0), serial);
+                final IndexInfo info = collection.validateXMLResource(transaction, broker, name, new InputSource(uri.toString()), reader);
+                setMimeType(info, serial);
+                collection.store(transaction, broker, info, new InputSource(uri.toString()), reader);
+            } else {
+                final OutputBuffer buffer = serialize(runtime, serial, documents);
+                try {
+                    try (final InputStream is = buffer.openInputStream()) {
+                        collection.addBinaryResource(transaction, broker, name, is, mimeType(serial, name), buffer.size());
+                    }
+                } finally {
+                    buffer.discard();
+                }
+            }
+
+            transaction.commit();
+        }
+    }
+
+    private static OutputBuffer serialize(final XProcRuntime runtime, final Serialization serial, final List<XdmNode> documents) throws IOException {
+        final OutputBuffer buffer = new OutputBuffer();
+        try {
+            final WritableDocument wd = new WritableDocument(runtime, null, serial, buffer);
+            for (final XdmNode document : documents) {
+                wd.write(document);
+            }
+            buffer.close();
+            return buffer;
+        } catch (final IOException | RuntimeException e) {
+            buffer.discard();
+            throw e;
+        }
+    }
+
+    private static void setMimeType(final IndexInfo info, final Serialization serial) {
+        final String mediaType = serial.getMediaType();
+        if (mediaType != null) {
+            final MimeType mimeType = MimeTable.getInstance().getContentType(mediaType);
+            if (mimeType == null || mimeType.isXMLType()) {
+                info.getDocument().setMimeType(mediaType);
+            }
+        }
+    }
+
+    private static boolean isXml(final Serialization serial) {
+        final QName method = serial.getMethod();
+        return method == null
+                || "xml".equals(method.getLocalName())
+                || "xhtml".equals(method.getLocalName());
+    }
+
+    private static String mimeType(final Serialization serial, final XmldbURI name) {
+        if (serial.getMediaType() != null) {
+            return serial.getMediaType();
+        }
+
+        final MimeType mimeType = MimeTable.getInstance().getContentTypeFor(name);
+        if (mimeType != null && !mimeType.isXMLType()) {
+            return mimeType.getName();
+        }
+
+        final QName method = serial.getMethod();
+        if (method != null && "text".equals(method.getLocalName())) {
+            return "text/plain";
+        }
+        if (method != null && "html".equals(method.getLocalName())) {
+            return MimeType.HTML_TYPE.getName();
+        }
+        return MimeType.BINARY_TYPE.getName();
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.exist.collections.Collection;
+import org.exist.collections.CollectionCache;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.Permission;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
+import org.exist.storage.DBBroker;
+import org.exist.xmldb.XmldbURI;
+
+/**
+ * The database documents that something was built from, together with
+ * the last-modified time each document had when it was read.
+ *
+ * Used to decide whether a cached artifact is still current. When all the
+ * documents are stored in collections watched by the
+ * {@link CacheInvalidationTrigger}, which removes the artifact from its
+ * cache as soon as one of them is changed, they are looked up once; later
+ * checks only validate the permissions of the documents found then.
+ */
+public class Dependencies {
+
+    private final Map<XmldbURI, Long> documents = new HashMap<>();
+
+    // the documents as they were found, while all of them are watched
+    private volatile List<DocumentImpl> watched = null;
+
+    public synchronized void addDocument(final XmldbURI uri, final long lastModified) {
+        documents.put(uri, lastModified);
+        watched = null;
+    }
+
+    /**
+     * Records a document by looking up its current last-modified time.
+     * Nothing is recorded if the document does not exist.
+     */
+    public void addDocument(final DBBroker broker, final XmldbURI uri) throws PermissionDeniedException {
+        final DocumentImpl doc = broker.getResource(uri, Permission.READ);
+        if (doc != null) {
+            addDocument(uri, doc.getLastModified());
+        }
+    }
+
+    /**
+     * Records all documents of other dependencies.
+     */
+    public void addAll(final Dependencies other) {
+        final Map<XmldbURI, Long> others = other.getDocuments();
+        synchronized (this) {
+            documents.putAll(others);
+            watched = null;
+        }
+    }
+
+    public synchronized Map<XmldbURI, Long> getDocuments() {
+        return Collections.unmodifiableMap(new HashMap<>(documents));
+    }
+
+    public synchronized boolean dependsOn(final XmldbURI uri) {
+        return documents.containsKey(uri);
+    }
+
+    /**
+     * @param collection the URI of a collection
+     * @return true if any document is stored in the collection or one of its descendants
+     */
+    public synchronized boolean dependsOnCollection(final XmldbURI collection) {
+        final String prefix = collection.getCollectionPath() + "/";
+        for (final XmldbURI uri : documents.keySet()) {
+            if (uri.getCollectionPath().startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks every recorded document against the database, unless they are
+     * all watched by the {@link CacheInvalidationTrigger} and have been
+     * checked before.
+     *
+     * @param broker the broker of the caller; the caller must have read access to each document
+     *
+     * @return false if any document was removed or modified since it was recorded
+     *
+     * @throws PermissionDeniedException if the caller may not read one of the documents
+     */
+    public boolean isCurrent(final DBBroker broker) throws PermissionDeniedException {
+        final List<DocumentImpl> found = watched;
+        if (found != null && isReadable(broker, found)) {
+            return true;
+        }
+
+        final Map<XmldbURI, Long> current = getDocuments();
+        final List<DocumentImpl> docs = new ArrayList<>(current.size());
+        boolean allWatched = true;
+        for (final Map.Entry<XmldbURI, Long> entry : current.entrySet()) {
+            final DocumentImpl doc = broker.getResource(entry.getKey(), Permission.READ);
+            if (doc == null || doc.getLastModified() != entry.getValue()) {
+                return false;
+            }
+            docs.add(doc);
+            allWatched = allWatched && CacheInvalidationTrigger.isWatched(broker, doc);
+        }
+
+        if (allWatched) {
+            synchronized (this) {
+                if (documents.equals(current)) {
+                    watched = docs;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Validate the permissions of documents found before, without looking
+     * them up. Permission changes do not fire triggers, but they modify the
+     * documents held by their collections.
+     *
+     * @return false if the documents have to be looked up again
+     */
+    private static boolean isReadable(final DBBroker broker, final List<DocumentImpl> docs) {
+        final Subject subject = broker.getCurrentSubject();
+        final CollectionCache collections = broker.getBrokerPool().getCollectionsCache();
+        for (final DocumentImpl doc : docs) {
+            final Collection collection = doc.getCollection();
+            if (collection == null || collections.getIfPresent(collection.getURI()) != collection) {
+                // the collection has been read again since
+                return false;
+            }
+            if (!collection.getPermissionsNoLock().validate(subject, Permission.EXECUTE)
+                    || !doc.getPermissions().validate(subject, Permission.READ)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized Dependencies copy() {
+        final Dependencies copy = new Dependencies();
+        copy.documents.putAll(documents);
+        return copy;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Dependencies)) {
+            return false;
+        }
+        return getDocuments().equals(((Dependencies) obj).getDocuments());
+    }
+
+    @Override
+    public synchronized int hashCode() {
+        return documents.hashCode();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return documents.toString();
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.NamePool;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.tree.tiny.TinyDocumentImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.storage.DBBroker;
+import org.exist.xmldb.XmldbURI;
+import org.xml.sax.InputSource;
+
+/**
+ * Cache of Saxon trees built from XML documents stored in the database.
+ *
+ * Pipelines often read the same lookup tables, code lists and stylesheets
+ * on every run. The tree of such a document is built once and handed to
+ * later runs instead of reading it from the database again. The tree is
+ * built with a configuration sharing the name pool of the runtime that
+ * first reads the document, see {@link SaxonConfigurations}, so runtimes
+ * sharing that name pool get the tree itself; any other runtime gets a
+ * source that copies the tree into its own configuration, as Saxon does
+ * not accept nodes of another configuration in functions like doc().
+ *
+ * Entries are keyed by the document URI and are only used while the
+ * document has the same last-modified time as when the tree was built.
+ * The cache does not check permissions itself: the caller must have
+ * opened the document for reading as the current user. The size of the
+ * cache is bounded by the estimated memory used by the trees, least
+ * recently used entries are evicted first; a document whose stored size
+ * exceeds the size of the cache is never built and is streamed instead.
+ */
+public class DocumentCache {
+
+    private static final Logger LOG = LogManager.getLogger(DocumentCache.class);
+
+    public static final int DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+    private static final DocumentCache INSTANCE = new DocumentCache();
+
+    private final LinkedHashMap<XmldbURI, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile long maxSize = DEFAULT_MAX_SIZE;
+
+    private final Map<NamePool, Processor> processors = new WeakHashMap<>();
+
+    public static DocumentCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a source for a stored XML document, built from the cached tree
+     * of the document if there is one.
+     *
+     * @param broker the broker the document was opened with
+     * @param doc the document, opened for reading
+     * @param systemId the system id of the source
+     * @param configuration the configuration the source is read into, or
+     *     null if it is not known
+     * @return the source
+     */
+    public Source getSource(final DBBroker broker, final DocumentImpl doc, final String systemId, final Configuration configuration) {
+        if (maxSize == 0) {
+            return streamed(broker, doc, systemId);
+        }
+
+        final XmldbURI uri = doc.getURI();
+        final long lastModified = doc.getLastModified();
+
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(uri);
+        }
+        if (entry != null && entry.lastModified == lastModified && systemId.equals(entry.root.getSystemId())) {
+            hits.incrementAndGet();
+            return entry.source(configuration);
+        }
+        misses.incrementAndGet();
+
+        // the stored size tells whether the tree could fit before building it,
+        // a document too large for the cache is streamed rather than built twice
+        if (doc.getContentLength() > maxSize) {
+            return streamed(broker, doc, systemId);
+        }
+
+        final Processor processor = getProcessor(broker, configuration);
+        final NodeInfo root;
+        try {
+            root = processor.newDocumentBuilder()
+                    .build(streamed(broker, doc, systemId))
+                    .getUnderlyingNode();
+        } catch (final SaxonApiException e) {
+            // let the runtime report the error when it parses the document itself
+            LOG.debug("Could not build the tree of '{}': {}", uri, e.getMessage());
+            return streamed(broker, doc, systemId);
+        }
+
+        entry = new Entry(lastModified, processor, root, weigh(root));
+        if (entry.weight <= maxSize) {
+            synchronized (this) {
+                final Entry existing = entries.put(uri, entry);
+                if (existing != null) {
+                    weight -= existing.weight;
+                }
+                weight += entry.weight;
+                evict();
+            }
+        }
+        return entry.source(configuration);
+    }
+
+    private static Source streamed(final DBBroker broker, final DocumentImpl doc, final String systemId) {
+        final Source source = EXistURIResolver.documentSource(broker, doc);
+        source.setSystemId(systemId);
+        return source;
+    }
+
+    /**
+     * The trees are built with a configuration of their own, which shares
+     * the name pool of the configuration they are read into. When that is
+     * not known, it shares eXist-db's name pool if eXist-db uses Saxon, like
+     * the runtimes do when the Saxon configuration is shared.
+     */
+    private synchronized Processor getProcessor(final DBBroker broker, final Configuration configuration) {
+        Configuration shared = configuration;
+        if (shared == null) {
+            shared = SaxonConfigurations.getConfiguration(broker.getBrokerPool());
+            if (shared == null) {
+                shared = SaxonConfigurations.getModuleConfiguration();
+            }
+        }
+
+        Processor processor = processors.get(shared.getNamePool());
+        if (processor == null || !processor.getUnderlyingConfiguration().isCompatible(shared)) {
+            processor = new Processor(SaxonConfigurations.newConfiguration(shared));
+            processors.put(shared.getNamePool(), processor);
+        }
+        return processor;
+    }
+
+    /**
+     * Estimate the memory used by a tree.
+     */
+    private static long weigh(final NodeInfo root) {
+        if (root instanceof TinyDocumentImpl) {
+            final TinyTree tree = ((TinyDocumentImpl) root).getTree();
+            final CharSequence comments = tree.getCommentBuffer();
+            return tree.getNumberOfNodes() * 24L
+                    + tree.getNumberOfAttributes() * 48L
+                    + tree.getNumberOfNamespaces() * 8L
+                    + tree.getCharacterBuffer().length() * 2L
+                    + (comments == null ? 0 : comments.length() * 2L);
+        }
+        // not a tiny tree, never cached
+        return Long.MAX_VALUE;
+    }
+
+    private synchronized void evict() {
+        final Iterator<Entry> it = entries.values().iterator();
+        while (weight > maxSize && it.hasNext()) {
+            weight -= it.next().weight;
+            it.remove();
+        }
+    }
+
+    /**
+     * Remove the tree of a document from the cache.
+     *
+     * @param uri the document URI
+     */
+    public synchronized void invalidate(final XmldbURI uri) {
+        final Entry entry = entries.remove(uri);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    /**
+     * Remove the trees of the documents in a collection and its descendants
+     * from the cache.
+     *
+     * @param collection the collection URI
+     */
+    public synchronized void invalidateCollection(final XmldbURI collection) {
+        final String prefix = collection.getCollectionPath() + "/";
+        final Iterator<Map.Entry<XmldbURI, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<XmldbURI, Entry> entry = it.next();
+            if (entry.getKey().getCollectionPath().startsWith(prefix)) {
+                weight -= entry.getValue().weight;
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the estimated memory used by the cached trees, in bytes
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize the estimated memory the cached trees may use, in bytes,
+     *     or 0 to disable the cache
+     */
+    public void setMaxSize(final long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    private static class Entry {
+        final long lastModified;
+        final Processor processor;
+        final NodeInfo root;
+        final long weight;
+
+        Entry(final long lastModified, final Processor processor, final NodeInfo root, final long weight) {
+            this.lastModified = lastModified;
+            this.processor = processor;
+            this.root = root;
+            this.weight = weight;
+        }
+
+        /**
+         * The tree itself when the configuration can use it, otherwise a
+         * source copying its events.
+         */
+        Source source(final Configuration configuration) {
+            if (configuration != null && configuration.isCompatible(root.getConfiguration())) {
+                return root;
+            }
+            final Source source = new SAXSource(new XdmNodeReader(processor, new XdmNode(root)), new InputSource(root.getSystemId()));
+            source.setSystemId(root.getSystemId());
+            return source;
+        }
+    }
+}
@@ -24,22 +24,31 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Array;
-import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import javax.xml.transform.Source;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.URIResolver;
-import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
+import com.xmlcalabash.util.XProcURIResolver;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.lib.ModuleURIResolver;
+import net.sf.saxon.lib.StandardModuleURIResolver;
+import net.sf.saxon.trans.XPathException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
 import org.exist.dom.persistent.BinaryDocument;
 import org.exist.dom.persistent.DocumentImpl;
 import org.exist.security.Permission;
 import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
 import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
 import org.exist.xmldb.XmldbURI;
@@ -57,32 +66,162 @@ import org.xmlresolver.ResourceConnection;
  * Implementation of URIResolver which
  * will resolve paths from the eXist database
  *
+ * The database is read as the subject of the run the resolver was created
+ * for, on whichever thread the resolver is called: a thread holding a
+ * broker uses it, any other thread borrows one from the pool for the
+ * subject and releases it again, see {@link #borrowBroker()}. Resolution
+ * may happen on several threads at once.
+ *
  * @Deprecated use org.exist.util.EXistURIResolver
  */
 
-public class EXistURIResolver implements URIResolver, EntityResolver, EntityResolver2 {
+public class EXistURIResolver implements URIResolver, EntityResolver, EntityResolver2, ModuleURIResolver {
 
   private static final Logger LOG = LogManager.getLogger(EXistURIResolver.class);
 
   public static final String EMBEDDED_SHORT_URI_PREFIX = XmldbURI.XMLDB_SCHEME + "://";
 
   final BrokerPool db;
+  final Subject subject;
+  final Configuration configuration;
   final String basePath;
 
-  private Catalog catalog= null;
-  private ResourceCache cache = null;
+  private final CatalogRegistry.Entry catalogs;
+  private final Catalog catalog;
+  private final ResourceCache cache;
+
+  private final Dependencies dependencies = new Dependencies();
+  private final ResolvedResources resources = new ResolvedResources();
+  // a compilation resolves what it includes on the thread it runs on
+  private final ThreadLocal<List<Dependencies>> recordings = ThreadLocal.withInitial(ArrayList::new);
 
-  public EXistURIResolver(final BrokerPool db, final String docPath, String catalogList) {
+  /**
+   * @param db the database
+   * @param subject the subject the database is read as
+   * @param configuration the Saxon configuration of the runtime, trees
+   *     cached for another configuration are copied into it, or null
+   * @param docPath the base path of relative references
+   * @param catalogList the XML catalogs, or null
+   */
+  public EXistURIResolver(final BrokerPool db, final Subject subject, final Configuration configuration, final String docPath, String catalogList) {
     this.db = db;
+    this.subject = subject;
+    this.configuration = configuration;
     this.basePath = docPath;
     if (LOG.isDebugEnabled()) {
       LOG.debug("EXistURIResolver base path set to " + basePath);
     }
 
     if (catalogList != null) {
-      catalog = new Catalog(catalogList);
-      cache = catalog.cache();
+      catalogs = CatalogRegistry.getInstance().get(catalogList);
+      catalog = catalogs.getCatalog();
+      cache = catalogs.getCache();
+    } else {
+      catalogs = null;
+      catalog = null;
+      cache = null;
+    }
+  }
+
+  /**
+   * The database documents resolved so far, with the last-modified
+   * time each had when it was resolved.
+   */
+  public Dependencies getDependencies() {
+    return dependencies;
+  }
+
+  /**
+   * Everything resolved so far, with the number of reads of each.
+   */
+  public ResolvedResources getResources() {
+    return resources;
+  }
+
+  /**
+   * Record the dependencies of a cached artifact that is used instead of
+   * being built again.
+   */
+  public void addCached(final Dependencies cached) {
+    dependencies.addAll(cached);
+    resources.addCached(cached);
+  }
+
+  /**
+   * Also record the database documents resolved from now on by the
+   * current thread in other dependencies, until
+   * {@link #stopRecording(Dependencies)} is called.
+   */
+  public void startRecording(final Dependencies recording) {
+    recordings.get().add(recording);
+  }
+
+  public void stopRecording(final Dependencies recording) {
+    final List<Dependencies> current = recordings.get();
+    current.remove(recording);
+    if (current.isEmpty()) {
+      recordings.remove();
+    }
+  }
+
+  private void addDependency(final XmldbURI uri, final long lastModified) {
+    dependencies.addDocument(uri, lastModified);
+    resources.addDocument(uri, lastModified);
+    for (final Dependencies recording : recordings.get()) {
+      recording.addDocument(uri, lastModified);
+    }
+  }
+
+  /**
+   * Get the resolver installed on the Saxon configuration of a runtime.
+   *
+   * @return the resolver, or null if the configuration does not resolve through one
+   */
+  public static EXistURIResolver getResolver(final Configuration configuration) {
+    URIResolver resolver = configuration.getURIResolver();
+    if (resolver instanceof XProcURIResolver) {
+      resolver = ((XProcURIResolver) resolver).getUnderlyingURIResolver();
+    }
+    return resolver instanceof EXistURIResolver ? (EXistURIResolver) resolver : null;
+  }
+
+  /**
+   * Borrow a broker to read the database as the subject of the run: the
+   * broker of the current thread if it holds one, or else one from the
+   * pool. Close it to give it back.
+   *
+   * @return the broker
+   *
+   * @throws EXistException if no broker is available
+   */
+  public DBBroker borrowBroker() throws EXistException {
+    return db.get(Optional.of(subject));
+  }
+
+  /**
+   * Converts an absolute <code>xmldb:</code> URI, or an absolute database path,
+   * into a database path.
+   *
+   * @return the path, or null if the URI does not point into the database
+   */
+  public static XmldbURI toDatabaseURI(final String uri) {
+    if (uri == null) {
+      return null;
+    }
+
+    String path = uri;
+    if (path.startsWith(XmldbURI.EMBEDDED_SERVER_URI_PREFIX)) {
+      path = path.substring(XmldbURI.EMBEDDED_SERVER_URI_PREFIX.length());
+    } else if (path.startsWith(EMBEDDED_SHORT_URI_PREFIX)) {
+      path = path.substring(EMBEDDED_SHORT_URI_PREFIX.length());
+    } else if (path.startsWith(XmldbURI.XMLDB_SCHEME + ":")) {
+      path = path.substring(XmldbURI.XMLDB_SCHEME.length() + 1);
+    }
+
+    if (!(path.equals(XmldbURI.ROOT_COLLECTION) || path.startsWith(XmldbURI.ROOT_COLLECTION + "/"))) {
+      return null;
     }
+    return XmldbURI.create(path);
   }
 
   /**
@@ -145,35 +284,21 @@ public class EXistURIResolver implements URIResolver, EntityResolver, EntityReso
 
 //    System.out.println("resolve:\n '"+href+"'\n '"+base+"'");
 
-    String path;
-
-    if (catalog != null) {
-      boolean skipCache = false;
-      String uri = href;
-
-      CatalogResult resolved = this.catalog.lookupURI(href);
-      if(resolved == null && base != null) {
-        try {
-          uri = (new URI(base))
-              .resolve(uri)
-              .toURL()
-              .toString();
-
-          resolved = this.catalog.lookupURI(uri);
+    if (LibraryRegistry.isLibraryURI(href)) {
+      resources.addUrl(href);
+      return LibraryRegistry.getInstance().resolve(href);
+    }
 
-        } catch (URISyntaxException | MalformedURLException var7) {
-          resolved = null;
+    String path;
 
-        } catch (IllegalArgumentException var9) {
-          resolved = null;
-          skipCache = true;
-        }
-      }
+    if (catalogs != null) {
+      final CatalogRegistry.Lookup lookup = catalogs.lookupURI(href, base);
+      final CatalogResult resolved = lookup.getResult();
 
       return resolved == null ?
-          (skipCache ? null : cacheStreamURI(uri))
+          (lookup.isSkipCache() ? null : cacheStreamURI(lookup.getUri()))
           :
-          (resolved.expired() ? cacheStreamURI(uri) : streamResult(resolved));
+          (resolved.expired() ? cacheStreamURI(lookup.getUri()) : streamResult(resolved));
     }
 
     if (href.isEmpty()) {
@@ -224,8 +349,35 @@ public class EXistURIResolver implements URIResolver, EntityResolver, EntityReso
     }
   }
 
+  /**
+   * Resolves the locations of XQuery library modules like documents, so modules
+   * stored in the database are read as the current user and recorded as dependencies.
+   */
+  @Override
+  public StreamSource[] resolve(final String moduleURI, final String baseURI, final String[] locations) throws XPathException {
+    if (locations == null || locations.length == 0) {
+      return new StandardModuleURIResolver().resolve(moduleURI, baseURI, locations);
+    }
+
+    final StreamSource[] sources = new StreamSource[locations.length];
+    for (int i = 0; i < locations.length; i++) {
+      final Source source;
+      try {
+        source = resolve(locations[i], baseURI);
+      } catch (final TransformerException e) {
+        throw new XPathException("Cannot load module " + locations[i] + ": " + e.getMessage(), "XQST0059");
+      }
+      if (!(source instanceof StreamSource)) {
+        return new StandardModuleURIResolver().resolve(moduleURI, baseURI, locations);
+      }
+      sources[i] = (StreamSource) source;
+    }
+    return sources;
+  }
+
   private Source streamResult(CatalogResult resolved) {
     try {
+      resources.addUrl(resolved.uri());
       return resolved.cached() ?
           new StreamSource(resolved.body(), resolved.externalURI()) //, resolved.contentType())
           :
@@ -238,6 +390,7 @@ public class EXistURIResolver implements URIResolver, EntityResolver, EntityReso
 
   private InputSource inputSource(CatalogResult resolved) {
     try {
+      resources.addUrl(resolved.uri());
       InputSource source = new InputSource(resolved.body());
       source.setSystemId(resolved.cached() ? resolved.externalURI() : resolved.uri());
 
@@ -260,6 +413,7 @@ public class EXistURIResolver implements URIResolver, EntityResolver, EntityReso
       if(finalURI == null) {
         finalURI = absuriString;
       }
+      resources.addUrl(finalURI);
 
       if(this.cache != null && this.catalog.cacheSchemeURI(this.getScheme(absuriString)) && this.cache.cacheURI(absuriString)) {
         try {
@@ -282,6 +436,7 @@ public class EXistURIResolver implements URIResolver, EntityResolver, EntityReso
     ResourceConnection conn = new ResourceConnection(resolved);
     if(conn.getStatusCode() == 200) {
       String absuriString = conn.getURI();
+      resources.addUrl(absuriString);
       if(cache != null && catalog.cacheSchemeURI(getScheme(absuriString)) && cache.cacheURI(absuriString)) {
         try {
           String ioe = cache.addSystem(conn, publicId);
@@ -311,48 +466,61 @@ public class EXistURIResolver implements URIResolver, EntityResolver, EntityReso
 
   private Source urlSource(final String path) throws TransformerException {
     System.out.println("urlSource: "+path);
+    final XmldbURI uri = toDatabaseURI(path);
+    if (uri != null) {
+      // read it as the current user, and keep the URI as the base of relative references
+      return databaseSource(uri, path);
+    }
+
     try {
       final URL url = new URL(path);
-      return new StreamSource(url.openStream());
+      resources.addUrl(path);
+      return new StreamSource(url.openStream(), path);
     } catch (final IOException e) {
       throw new TransformerException(e.getMessage(), e);
     }
   }
 
   private Source databaseSource(final String path) throws TransformerException {
-    final XmldbURI uri = XmldbURI.create(path);
-
-    DBBroker broker = db.getActiveBroker();
+    final XmldbURI uri = toDatabaseURI(path);
+    return databaseSource(uri == null ? XmldbURI.create(path) : uri, path);
+  }
 
+  private Source databaseSource(final XmldbURI uri, final String path) throws TransformerException {
     final DocumentImpl doc;
-    try {
+    try (final DBBroker broker = borrowBroker()) {
       doc = broker.getResource(uri, Permission.READ);
       if (doc == null) {
         LOG.error("Document " + path + " not found");
         throw new TransformerException("Resource " + path + " not found in database.");
       }
+      addDependency(uri, doc.getLastModified());
 
-      final Source source;
       if (doc instanceof BinaryDocument) {
         final InputStream is = broker.getBinaryResource((BinaryDocument) doc);
-        source = new StreamSource(is);
+        final Source source = new StreamSource(is);
         source.setSystemId(path);
         return source;
       } else {
-        source = new DOMSource(doc);
-        source.setSystemId(path);
-        return source;
+        return DocumentCache.getInstance().getSource(broker, doc, path, configuration);
       }
-    } catch (final PermissionDeniedException | IOException e) {
+    } catch (final EXistException | PermissionDeniedException | IOException e) {
       throw new TransformerException(e.getMessage(), e);
     }
   }
 
+  /**
+   * Source streaming the events of a stored XML document, see {@link DatabaseDocumentReader}.
+   */
+  public static Source documentSource(final DBBroker broker, final DocumentImpl doc) {
+    return new SAXSource(new DatabaseDocumentReader(broker, doc), new InputSource());
+  }
+
   @Override
   public InputSource resolveEntity(String publicId, String systemId)
       throws SAXException, IOException {
 
-    CatalogResult resolved = catalog.lookupPublic(systemId, publicId);
+    CatalogResult resolved = catalogs.lookupPublic(systemId, publicId);
     return resolved != null && !resolved.expired() ? inputSource(resolved) : cacheStreamSystem(systemId, publicId);
   }
 
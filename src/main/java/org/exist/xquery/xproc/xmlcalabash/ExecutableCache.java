@@ -0,0 +1,454 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.TreeInfo;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.type.Type;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.xmldb.XmldbURI;
+
+/**
+ * Cache of compiled executables of one kind, shared by the processors of
+ * all runtimes.
+ *
+ * An executable compiled by one runtime can be run by the runtimes whose
+ * configurations share its name pool, see {@link CachingProcessor}, so
+ * the key of an executable names its owner: the name pool, or the
+ * processor that compiled it if only that processor can use it.
+ *
+ * Entries are keyed by the base URI, the content that was compiled and
+ * the compiler options. A tree parsed from a database document is
+ * identified by the document and its last-modified time, see
+ * {@link #stamp(XdmNode, Dependencies, String)}, any other tree by a
+ * digest of its serialization, computed once per tree. Entries are valid
+ * as long as none of the database documents they were compiled from
+ * (including included or imported modules) has been modified, or until a
+ * {@link CacheInvalidationTrigger} reports one as changed.
+ *
+ * @param <E> the type of the executables
+ */
+public class ExecutableCache<E> {
+
+    private static final String STAMP = ExecutableCache.class.getName() + ".stamp";
+    private static final String DIGEST = ExecutableCache.class.getName() + ".digest";
+
+    private final LinkedHashMap<Key, Entry<E>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong compilations = new AtomicLong();
+    private final AtomicLong compileTime = new AtomicLong();
+
+    private volatile int maxSize;
+
+    public ExecutableCache(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get a cached executable. Hits and misses are counted by the caller,
+     * which may look up more than one key.
+     *
+     * @param broker the broker used to check the dependencies
+     * @param key the key of the executable, see {@link Key#ownedBy(Object)}
+     * @param dependencies receives the dependencies of the executable, may be null
+     * @return the executable, or null if there is none or it is not current
+     *
+     * @throws PermissionDeniedException if a dependency may not be read
+     */
+    public E get(final DBBroker broker, final Key key, final Dependencies dependencies) throws PermissionDeniedException {
+        final Entry<E> entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null || !entry.dependencies.isCurrent(broker)) {
+            return null;
+        }
+        if (dependencies != null) {
+            dependencies.addAll(entry.dependencies);
+        }
+        return entry.executable;
+    }
+
+    /**
+     * Count a lookup that found an executable.
+     */
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    /**
+     * Count a lookup that did not find an executable.
+     */
+    public void miss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Add a compiled executable to the cache.
+     *
+     * @param key the key of the executable, see {@link Key#ownedBy(Object)}
+     * @param executable the executable
+     * @param dependencies the database documents read while compiling
+     */
+    public synchronized void put(final Key key, final E executable, final Dependencies dependencies) {
+        if (maxSize == 0) {
+            return;
+        }
+        if (key.content instanceof Stamp) {
+            // the document compiled was read before compiling
+            for (final Map.Entry<XmldbURI, Long> document : ((Stamp) key.content).documents.entrySet()) {
+                dependencies.addDocument(document.getKey(), document.getValue());
+            }
+        }
+        entries.put(key, new Entry<>(executable, dependencies));
+        evict();
+    }
+
+    private synchronized void evict() {
+        final Iterator<Entry<E>> it = entries.values().iterator();
+        while (entries.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Remove the executables compiled from documents that have been changed.
+     *
+     * @param affected tests the dependencies of an executable
+     */
+    public synchronized void invalidate(final Predicate<Dependencies> affected) {
+        entries.values().removeIf(entry -> affected.test(entry.dependencies));
+    }
+
+    /**
+     * Remove the executables that only a processor can use, when its
+     * runtime is closed.
+     *
+     * @param owner the processor
+     */
+    public synchronized void release(final Object owner) {
+        entries.keySet().removeIf(key -> key.owner == owner);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Count a compilation, whether its result is cached or not.
+     *
+     * @param time the time it took, in nanoseconds
+     */
+    public void compiled(final long time) {
+        compilations.incrementAndGet();
+        compileTime.addAndGet(time);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of executables compiled
+     */
+    public long getCompilations() {
+        return compilations.get();
+    }
+
+    /**
+     * @return the total time spent compiling, in nanoseconds
+     */
+    public long getCompileTime() {
+        return compileTime.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize the number of entries of the cache, 0 disables caching
+     */
+    public void setMaxSize(final int maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * Record the database documents a document was parsed from, so that
+     * what is compiled from it is identified by them, see
+     * {@link #content(Processor, NodeInfo)}. Nothing is recorded unless
+     * the document itself was read from the database.
+     *
+     * @param document the parsed document
+     * @param read the database documents read while parsing
+     * @param options the parse options that make a difference
+     */
+    public static void stamp(final XdmNode document, final Dependencies read, final String options) {
+        final Map<XmldbURI, Long> documents = read.getDocuments();
+        final NodeInfo root = document.getUnderlyingNode();
+        final XmldbURI uri = EXistURIResolver.toDatabaseURI(root.getSystemId());
+        if (uri == null || !documents.containsKey(uri)) {
+            return;
+        }
+        final TreeInfo tree = root.getTreeInfo();
+        synchronized (tree) {
+            tree.setUserData(STAMP, new Stamp(documents, options));
+        }
+    }
+
+    /**
+     * Identifies the content of a tree to compile: the documents a whole
+     * document was parsed from if it was stamped, or else a digest of its
+     * serialization, which is kept with the tree when a whole document is
+     * compiled.
+     *
+     * @param processor the processor to serialize with
+     * @param node the node to compile
+     * @return the content key
+     *
+     * @throws SaxonApiException if the tree can not be serialized
+     */
+    public static Object content(final Processor processor, final NodeInfo node) throws SaxonApiException {
+        final TreeInfo tree = node.getTreeInfo();
+        final NodeInfo root = tree.getRootNode();
+        if (node.equals(root)
+                || (node.getParent() != null && node.getParent().equals(root) && root.getNodeKind() == Type.DOCUMENT)) {
+            synchronized (tree) {
+                final Object stamp = tree.getUserData(STAMP);
+                if (stamp != null) {
+                    return stamp;
+                }
+            }
+        }
+        if (!node.equals(root)) {
+            return digest(processor, node);
+        }
+
+        synchronized (tree) {
+            final Object digest = tree.getUserData(DIGEST);
+            if (digest != null) {
+                return digest;
+            }
+        }
+        final String digest = digest(processor, node);
+        synchronized (tree) {
+            tree.setUserData(DIGEST, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * Digest of a tree, computed over its serialization.
+     *
+     * @param processor the processor to serialize with
+     * @param node the root of the tree
+     * @return the digest
+     *
+     * @throws SaxonApiException if the tree can not be serialized
+     */
+    public static String digest(final Processor processor, final NodeInfo node) throws SaxonApiException {
+        final MessageDigest digest = newDigest();
+        final Serializer serializer = processor.newSerializer(new OutputStream() {
+            @Override
+            public void write(final int b) {
+                digest.update((byte) b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+                digest.update(b, off, len);
+            }
+        });
+        serializer.serializeNode(new XdmNode(node));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Digest of a text.
+     *
+     * @param text the text
+     * @return the digest
+     */
+    public static String digest(final String text) {
+        return toHex(newDigest().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Digest of some bytes.
+     *
+     * @param bytes the bytes
+     * @return the digest
+     */
+    public static String digest(final byte[] bytes) {
+        return toHex(newDigest().digest(bytes));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    private static class Entry<E> {
+        final E executable;
+        final Dependencies dependencies;
+
+        Entry(final E executable, final Dependencies dependencies) {
+            this.executable = executable;
+            this.dependencies = dependencies;
+        }
+    }
+
+    /**
+     * The documents a tree was parsed from, with their last-modified times.
+     */
+    private static final class Stamp {
+        private final Map<XmldbURI, Long> documents;
+        private final String options;
+
+        Stamp(final Map<XmldbURI, Long> documents, final String options) {
+            this.documents = Collections.unmodifiableMap(new HashMap<>(documents));
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Stamp)) {
+                return false;
+            }
+            final Stamp other = (Stamp) o;
+            return documents.equals(other.documents) && Objects.equals(options, other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(documents, options);
+        }
+
+        @Override
+        public String toString() {
+            return documents.toString();
+        }
+    }
+
+    /**
+     * Identifies a compiled executable.
+     */
+    public static final class Key {
+        private final String baseUri;
+        private final Object content;
+        private final String options;
+        private final Object owner;
+
+        /**
+         * @param baseUri the static base URI, may be null
+         * @param content identifies the compiled content, see {@link #content(Processor, NodeInfo)},
+         *     or the compiled text itself
+         * @param options the compiler options that make a difference
+         */
+        public Key(final String baseUri, final Object content, final String options) {
+            this(baseUri, content, options, null);
+        }
+
+        private Key(final String baseUri, final Object content, final String options, final Object owner) {
+            this.baseUri = baseUri;
+            this.content = content;
+            this.options = options;
+            this.owner = owner;
+        }
+
+        /**
+         * @param owner the name pool or processor that can use the executable
+         * @return the key of the executable for that owner
+         */
+        public Key ownedBy(final Object owner) {
+            return new Key(baseUri, content, options, owner);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return owner == other.owner
+                    && content.equals(other.content)
+                    && Objects.equals(baseUri, other.baseUri)
+                    && Objects.equals(options, other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(baseUri, content, options, System.identityHashCode(owner));
+        }
+
+        @Override
+        public String toString() {
+            return baseUri + "#" + (content instanceof String && ((String) content).length() > 64
+                    ? ((String) content).substring(0, 64) + "..."
+                    : content);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+
+/**
+ * A pipeline run submitted by {@code xmlcalabash:submit}, run on a thread
+ * of the {@link JobExecutor}.
+ *
+ * The outputs of a completed job are kept in {@link OutputBuffer}s until
+ * they expire or the job is removed, so that large outputs are held in
+ * temporary files rather than in memory. Documents returned as nodes are
+ * serialized one per buffer and parsed again when they are read.
+ */
+public class Job {
+
+    private static final Logger LOG = LogManager.getLogger(Job.class);
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        FAILED,
+        CANCELLED;
+
+        /**
+         * @return true if the job will not change anymore
+         */
+        public boolean isDone() {
+            return this == COMPLETED || this == FAILED || this == CANCELLED;
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final String owner;
+    private final long submitted = System.currentTimeMillis();
+
+    private State state = State.QUEUED;
+    private long started = 0;
+    private long finished = 0;
+    private Result result = null;
+    private String error = null;
+    private Future<?> future = null;
+
+    /**
+     * @param owner the name of the user who submitted the job
+     */
+    Job(final String owner) {
+        this.owner = owner;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * @return when the job started, or 0 if it has not
+     */
+    public synchronized long getStarted() {
+        return started;
+    }
+
+    /**
+     * @return when the job was done, or 0 if it is not
+     */
+    public synchronized long getFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the outputs, or null if the job has not completed
+     */
+    public synchronized Result getResult() {
+        return result;
+    }
+
+    /**
+     * @return the message of the error the job failed with, or null
+     */
+    public synchronized String getError() {
+        return error;
+    }
+
+    synchronized void setFuture(final Future<?> future) {
+        this.future = future;
+    }
+
+    /**
+     * Run the job on the calling thread, with a broker for the subject
+     * that submitted it. Does nothing if the job was cancelled meanwhile.
+     */
+    void run(final BrokerPool pool, final Subject subject, final JobExecutor.Task task) {
+        synchronized (this) {
+            if (state != State.QUEUED) {
+                return;
+            }
+            state = State.RUNNING;
+            started = System.currentTimeMillis();
+        }
+
+        Result result = null;
+        String error = "The job did not complete";
+        try (final DBBroker broker = pool.get(Optional.of(subject))) {
+            result = task.run(broker);
+            error = null;
+        } catch (final Exception e) {
+            LOG.debug("Job {} failed: {}", id, e.getMessage(), e);
+            error = e.getMessage() == null ? e.toString() : e.getMessage();
+        } finally {
+            finish(result, error);
+        }
+    }
+
+    private synchronized void finish(final Result result, final String error) {
+        if (state == State.CANCELLED) {
+            if (result != null) {
+                result.discard();
+            }
+        } else {
+            finished = System.currentTimeMillis();
+            if (error != null) {
+                state = State.FAILED;
+                this.error = error;
+            } else {
+                state = State.COMPLETED;
+                this.result = result;
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Cancel a queued or running job. A running job is interrupted, but
+     * a pipeline step may well run to its end; its outputs are discarded.
+     *
+     * @return false if the job was already done
+     */
+    synchronized boolean cancel() {
+        if (state.isDone()) {
+            return false;
+        }
+        state = State.CANCELLED;
+        finished = System.currentTimeMillis();
+        if (future != null) {
+            future.cancel(true);
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Wait until the job is done.
+     *
+     * @param timeout the time to wait at most, in milliseconds, or a negative value to wait until it is done
+     * @return true if the job is done
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public synchronized boolean await(final long timeout) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (!state.isDone()) {
+            if (timeout < 0) {
+                wait();
+            } else {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param now the current time
+     * @param ttl how long the job is kept after it is done, in milliseconds
+     * @return true if the job has been done for longer than the time to live
+     */
+    synchronized boolean isExpired(final long now, final long ttl) {
+        return state.isDone() && now - finished > ttl;
+    }
+
+    /**
+     * Release the outputs of the job.
+     */
+    synchronized void discard() {
+        if (result != null) {
+            result.discard();
+            result = null;
+        }
+    }
+
+    /**
+     * The outputs of a completed job, and the resources it read if they were asked for.
+     */
+    public static class Result {
+        private final Map<String, Output> outputs;
+        private final ResolvedResources resources;
+
+        private Result(final Map<String, Output> outputs, final ResolvedResources resources) {
+            this.outputs = Collections.unmodifiableMap(outputs);
+            this.resources = resources;
+        }
+
+        /**
+         * Keep the outputs of a run, serializing the ports that were not.
+         *
+         * @param userArgs the arguments of the run, for the output mode of each port
+         * @param outputs the outputs of the run
+         * @param resources the resources read by the run, or null
+         * @return the result
+         *
+         * @throws SaxonApiException if a document cannot be serialized
+         * @throws IOException if a buffer cannot be written
+         */
+        static Result of(final UserArgs userArgs, final Map<String, PortOutput> outputs, final ResolvedResources resources)
+                throws SaxonApiException, IOException {
+            final Map<String, Output> kept = new LinkedHashMap<>();
+            try {
+                for (final Map.Entry<String, PortOutput> output : outputs.entrySet()) {
+                    final PortOutput portOutput = output.getValue();
+                    final List<OutputBuffer> buffers = new ArrayList<>();
+                    kept.put(output.getKey(), new Output(userArgs.getOutputMode(output.getKey()), buffers));
+                    if (portOutput.isSerialized()) {
+                        buffers.add(portOutput.getSerialized());
+                        continue;
+                    }
+
+                    while (portOutput.moreDocuments()) {
+                        final OutputBuffer buffer = new OutputBuffer();
+                        buffers.add(buffer);
+                        final Serializer serializer = portOutput.getProcessor().newSerializer(buffer);
+                        serializer.setOutputProperty(Serializer.Property.METHOD, "xml");
+                        serializer.setOutputProperty(Serializer.Property.ENCODING, "UTF-8");
+                        serializer.serializeNode(portOutput.read());
+                        buffer.close();
+                    }
+                }
+            } catch (final SaxonApiException | IOException | RuntimeException e) {
+                for (final PortOutput portOutput : outputs.values()) {
+                    portOutput.discard();
+                }
+                for (final Output output : kept.values()) {
+                    output.discard();
+                }
+                throw e;
+            }
+            return new Result(kept, resources);
+        }
+
+        /**
+         * @return the outputs by port name
+         */
+        public Map<String, Output> getOutputs() {
+            return outputs;
+        }
+
+        /**
+         * @return the resources read by the run, or null if they were not asked for
+         */
+        public ResolvedResources getResources() {
+            return resources;
+        }
+
+        void discard() {
+            for (final Output output : outputs.values()) {
+                output.discard();
+            }
+        }
+    }
+
+    /**
+     * An output port of a completed job: a buffer of the serialized port,
+     * or a buffer per document for ports returned as nodes.
+     */
+    public static class Output {
+        private final OutputMode mode;
+        private final List<OutputBuffer> buffers;
+
+        Output(final OutputMode mode, final List<OutputBuffer> buffers) {
+            this.mode = mode;
+            this.buffers = buffers;
+        }
+
+        public OutputMode getMode() {
+            return mode;
+        }
+
+        public List<OutputBuffer> getBuffers() {
+            return buffers;
+        }
+
+        void discard() {
+            for (final OutputBuffer buffer : buffers) {
+                buffer.discard();
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+
+/**
+ * Runs the pipelines submitted by {@code xmlcalabash:submit} in the
+ * background, on a bounded pool of threads, and keeps the jobs until they
+ * have been done for longer than the time to live of their results.
+ *
+ * At most {@link #getQueueSize()} jobs wait for a thread, further jobs are
+ * rejected. Expired jobs are removed by a purge that is scheduled at the
+ * latest every {@link #MAX_PURGE_INTERVAL} seconds, and whenever a job is
+ * submitted, looked up or done; their output buffers, and the temporary
+ * files of those that were spilled to disk, are discarded then.
+ */
+public class JobExecutor {
+
+    private static final Logger LOG = LogManager.getLogger(JobExecutor.class);
+
+    public static final int DEFAULT_THREADS = 2;
+
+    /**
+     * How long the results of a job are kept after it is done, in seconds.
+     */
+    public static final int DEFAULT_RESULT_TTL = 3600;
+
+    /**
+     * The number of jobs that wait for a thread at most.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 100;
+
+    /**
+     * The longest time between two purges of the expired jobs, in seconds.
+     */
+    static final int MAX_PURGE_INTERVAL = 60;
+
+    private static final JobExecutor INSTANCE = new JobExecutor();
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService purger;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    private volatile long resultTtl = DEFAULT_RESULT_TTL * 1000L;
+    private volatile int queueSize = DEFAULT_QUEUE_SIZE;
+    private ScheduledFuture<?> scheduledPurge = null;
+
+    private JobExecutor() {
+        executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "xmlcalabash-job-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+
+        final ScheduledThreadPoolExecutor purger = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "xmlcalabash-job-purge");
+            thread.setDaemon(true);
+            return thread;
+        });
+        purger.setRemoveOnCancelPolicy(true);
+        this.purger = purger;
+        schedulePurge();
+    }
+
+    public static JobExecutor getInstance() {
+        return INSTANCE;
+    }
+
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @param threads the number of jobs run at the same time, at least 1
+     */
+    public synchronized void setThreads(final int threads) {
+        final int size = Math.max(1, threads);
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * @return how long the results of a job are kept after it is done, in seconds
+     */
+    public int getResultTtl() {
+        return (int) (resultTtl / 1000);
+    }
+
+    /**
+     * @param seconds how long the results of a job are kept after it is done
+     */
+    public void setResultTtl(final int seconds) {
+        this.resultTtl = Math.max(0, seconds) * 1000L;
+        schedulePurge();
+    }
+
+    /**
+     * @return the number of jobs that wait for a thread at most
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * @param size the number of jobs that wait for a thread at most, at least 0
+     */
+    public void setQueueSize(final int size) {
+        this.queueSize = Math.max(0, size);
+    }
+
+    /**
+     * @return the number of jobs that wait for a thread
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Purge the expired jobs as often as they may expire, but at least
+     * once every {@link #MAX_PURGE_INTERVAL} seconds.
+     */
+    private synchronized void schedulePurge() {
+        if (scheduledPurge != null) {
+            scheduledPurge.cancel(false);
+        }
+        final long interval = Math.max(1000, Math.min(resultTtl, MAX_PURGE_INTERVAL * 1000L));
+        scheduledPurge = purger.scheduleWithFixedDelay(() -> {
+            try {
+                purge();
+            } catch (final RuntimeException e) {
+                LOG.warn("Failed to purge the expired jobs: {}", e.getMessage(), e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the number of jobs kept, done or not
+     */
+    public int size() {
+        return jobs.size();
+    }
+
+    /**
+     * Queue a job.
+     *
+     * @param pool the database
+     * @param subject the subject the job takes its broker for
+     * @param task runs the pipeline
+     * @return the job
+     *
+     * @throws RejectedExecutionException if as many jobs as the queue holds wait for a thread already
+     */
+    public Job submit(final BrokerPool pool, final Subject subject, final Task task) {
+        purge();
+
+        final Job job = new Job(subject.getName());
+        // the queue only shrinks while a job is submitted
+        synchronized (executor) {
+            // jobs cancelled while queued do not count
+            executor.purge();
+            if (executor.getQueue().size() >= queueSize && executor.getActiveCount() >= executor.getMaximumPoolSize()) {
+                throw new RejectedExecutionException("The queue of jobs is full, " + queueSize + " jobs wait for a thread already");
+            }
+            jobs.put(job.getId(), job);
+            try {
+                job.setFuture(executor.submit(() -> {
+                    try {
+                        job.run(pool, subject, task);
+                    } finally {
+                        purge();
+                    }
+                }));
+            } catch (final RejectedExecutionException e) {
+                jobs.remove(job.getId());
+                throw e;
+            }
+        }
+        LOG.debug("Submitted job {} for {}", job.getId(), subject.getName());
+        return job;
+    }
+
+    /**
+     * @param id the id of the job
+     * @return the job, or null if there is no such job or it has expired
+     */
+    public Job get(final String id) {
+        purge();
+        return jobs.get(id);
+    }
+
+    /**
+     * Cancel a job that is not done, or remove a job that is done
+     * together with its results.
+     *
+     * @param job the job
+     */
+    public void cancel(final Job job) {
+        if (!job.cancel()) {
+            jobs.remove(job.getId());
+            job.discard();
+        }
+    }
+
+    /**
+     * Remove the jobs that have been done for longer than the time to live.
+     */
+    void purge() {
+        final long now = System.currentTimeMillis();
+        for (final Iterator<Job> i = jobs.values().iterator(); i.hasNext(); ) {
+            final Job job = i.next();
+            if (job.isExpired(now, resultTtl)) {
+                i.remove();
+                job.discard();
+                LOG.debug("Job {} expired", job.getId());
+            }
+        }
+    }
+
+    /**
+     * Runs the pipeline of a job.
+     */
+    @FunctionalInterface
+    public interface Task {
+        /**
+         * @param broker the broker of the job
+         * @return the outputs of the run
+         *
+         * @throws Exception if the run fails
+         */
+        Job.Result run(DBBroker broker) throws Exception;
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Map;
+
+import org.exist.Namespaces;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.DocumentImpl;
+import org.exist.dom.memtree.SAXAdapter;
+import org.exist.security.Subject;
+import org.exist.util.XMLReaderPool;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.Base64BinaryValueType;
+import org.exist.xquery.value.BinaryValueFromInputStream;
+import org.exist.xquery.value.BooleanValue;
+import org.exist.xquery.value.DateTimeValue;
+import org.exist.xquery.value.DayTimeDurationValue;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Functions on the jobs submitted by {@code xmlcalabash:submit}, see {@link JobExecutor}.
+ *
+ * A job is only visible to the user who submitted it, and to DBAs.
+ */
+public class JobFunction extends BasicFunction {
+
+    private final static QName STATUS_NAME = new QName("status", XProcXmlCalabashModule.NAMESPACE_URI, XProcXmlCalabashModule.PREFIX);
+    private final static String STATUS_DESCRIPTION = "Returns the state of a job submitted with xmlcalabash:submit: " +
+            "a map with its id, its state, one of queued, running, completed, failed or cancelled, " +
+            "when it was submitted, started and finished, and the error it failed with. " +
+            "Returns the empty sequence if there is no such job, or if its results have expired.";
+
+    private final static QName AWAIT_NAME = new QName("await", XProcXmlCalabashModule.NAMESPACE_URI, XProcXmlCalabashModule.PREFIX);
+    private final static String AWAIT_DESCRIPTION = "Waits until a job submitted with xmlcalabash:submit is done, and returns " +
+            "its outputs as xmlcalabash:process does. Returns the empty sequence if the job is not done within the timeout. " +
+            "Raises an error if the job failed or was cancelled.";
+
+    private final static QName CANCEL_NAME = new QName("cancel", XProcXmlCalabashModule.NAMESPACE_URI, XProcXmlCalabashModule.PREFIX);
+    private final static String CANCEL_DESCRIPTION = "Cancels a job submitted with xmlcalabash:submit that is not done, " +
+            "or removes a job that is done together with its results. Returns false if there is no such job.";
+
+    private final static FunctionParameterSequenceType ID =
+            new FunctionParameterSequenceType("id", Type.STRING, Cardinality.EXACTLY_ONE, "The id of the job");
+
+    private final static FunctionParameterSequenceType TIMEOUT =
+            new FunctionParameterSequenceType("timeout", Type.DAY_TIME_DURATION, Cardinality.ZERO_OR_ONE,
+                    "The time to wait at most, or the empty sequence to wait until the job is done");
+
+    static final FunctionSignature FNS_STATUS = new FunctionSignature(
+            STATUS_NAME,
+            STATUS_DESCRIPTION,
+            new SequenceType[] {
+                    ID
+            },
+            new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_ONE, "the state of the job")
+    );
+
+    static final FunctionSignature FNS_AWAIT_1 = new FunctionSignature(
+            AWAIT_NAME,
+            AWAIT_DESCRIPTION,
+            new SequenceType[] {
+                    ID
+            },
+            new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_ONE, "the outputs of the job")
+    );
+
+    static final FunctionSignature FNS_AWAIT_2 = new FunctionSignature(
+            AWAIT_NAME,
+            AWAIT_DESCRIPTION,
+            new SequenceType[] {
+                    ID,
+                    TIMEOUT,
+            },
+            new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_ONE, "the outputs of the job")
+    );
+
+    static final FunctionSignature FNS_CANCEL = new FunctionSignature(
+            CANCEL_NAME,
+            CANCEL_DESCRIPTION,
+            new SequenceType[] {
+                    ID
+            },
+            new FunctionReturnSequenceType(Type.BOOLEAN, Cardinality.EXACTLY_ONE, "true if there was such a job")
+    );
+
+    public JobFunction(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+        final Job job = getJob(args[0].getStringValue());
+
+        if (isCalledAs(STATUS_NAME.getLocalPart())) {
+            return job == null ? Sequence.EMPTY_SEQUENCE : status(job);
+        } else if (isCalledAs(CANCEL_NAME.getLocalPart())) {
+            if (job == null) {
+                return BooleanValue.FALSE;
+            }
+            JobExecutor.getInstance().cancel(job);
+            return BooleanValue.TRUE;
+        }
+
+        if (job == null) {
+            throw new XPathException(this, "There is no job '" + args[0].getStringValue() + "', or its results have expired");
+        }
+        final long timeout = args.length > 1 && !args[1].isEmpty()
+                ? ((DayTimeDurationValue) args[1].itemAt(0)).getValueInMilliseconds()
+                : -1;
+        try {
+            if (!job.await(timeout)) {
+                return Sequence.EMPTY_SEQUENCE;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException(this, "Interrupted while waiting for job '" + job.getId() + "'");
+        }
+        return outputs(job);
+    }
+
+    /**
+     * @return the job, or null if there is no such job or the user may not see it
+     */
+    private Job getJob(final String id) {
+        final Job job = JobExecutor.getInstance().get(id);
+        if (job == null) {
+            return null;
+        }
+        final Subject user = context.getEffectiveUser();
+        if (job.getOwner().equals(user.getName()) || user.hasDbaRole()) {
+            return job;
+        }
+        return null;
+    }
+
+    private MapType status(final Job job) throws XPathException {
+        final MapType map = new MapType(context);
+        map.add(new StringValue("id"), new StringValue(job.getId()));
+        map.add(new StringValue("state"), new StringValue(job.getState().toString()));
+        map.add(new StringValue("submitted"), new DateTimeValue(new Date(job.getSubmitted())));
+        if (job.getStarted() != 0) {
+            map.add(new StringValue("started"), new DateTimeValue(new Date(job.getStarted())));
+        }
+        if (job.getFinished() != 0) {
+            map.add(new StringValue("finished"), new DateTimeValue(new Date(job.getFinished())));
+        }
+        if (job.getError() != null) {
+            map.add(new StringValue("error"), new StringValue(job.getError()));
+        }
+        return map;
+    }
+
+    /**
+     * The outputs of a job that is done, read from its buffers, which are
+     * kept for the next call until the job expires or is removed.
+     */
+    private MapType outputs(final Job job) throws XPathException {
+        // the job does not discard its outputs while they are read
+        synchronized (job) {
+            switch (job.getState()) {
+                case FAILED:
+                    throw new XPathException(this, "Job '" + job.getId() + "' failed: " + job.getError());
+                case CANCELLED:
+                    throw new XPathException(this, "Job '" + job.getId() + "' was cancelled");
+                default:
+                    break;
+            }
+
+            final Job.Result result = job.getResult();
+            if (result == null) {
+                throw new XPathException(this, "The results of job '" + job.getId() + "' have been removed");
+            }
+
+            final MapType map = new MapType(context);
+            try {
+                for (final Map.Entry<String, Job.Output> output : result.getOutputs().entrySet()) {
+                    map.add(new StringValue(output.getKey()), toSequence(output.getValue()));
+                }
+            } catch (final IOException | SAXException e) {
+                throw new XPathException(this, e);
+            }
+
+            if (result.getResources() != null) {
+                if (result.getOutputs().containsKey(ProcessFunction.DEPENDENCIES)) {
+                    throw new XPathException(this, "The output port '" + ProcessFunction.DEPENDENCIES + "' conflicts with the dependencies of the run.");
+                }
+                map.add(new StringValue(ProcessFunction.DEPENDENCIES), ProcessFunction.toDependencies(context, result.getResources()));
+            }
+            return map;
+        }
+    }
+
+    private Sequence toSequence(final Job.Output output) throws XPathException, IOException, SAXException {
+        switch (output.getMode()) {
+            case STRING:
+                return new StringValue(output.getBuffers().get(0).toString(Charset.defaultCharset()));
+
+            case BINARY:
+                return BinaryValueFromInputStream.getInstance(context, new Base64BinaryValueType(), output.getBuffers().get(0).openInputStream());
+
+            default:
+                final ValueSequence documents = new ValueSequence(output.getBuffers().size());
+                for (final OutputBuffer buffer : output.getBuffers()) {
+                    try (final InputStream is = buffer.openInputStream()) {
+                        documents.add(toDocument(is));
+                    }
+                }
+                return documents;
+        }
+    }
+
+    private DocumentImpl toDocument(final InputStream is) throws SAXException, IOException {
+        final XMLReaderPool parserPool = context.getBroker().getBrokerPool().getParserPool();
+        final XMLReader xr = parserPool.borrowXMLReader();
+        try {
+            final SAXAdapter adapter = new SAXAdapter(context);
+            xr.setContentHandler(adapter);
+            xr.setProperty(Namespaces.SAX_LEXICAL_HANDLER, adapter);
+            xr.parse(new InputSource(is));
+
+            return adapter.getDocument();
+        } finally {
+            parserPool.returnXMLReader(xr);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.util.function.Predicate;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import org.exist.dom.memtree.DocumentImpl;
+import org.exist.dom.persistent.NodeSet;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.AbstractSequence;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.MemoryNodeSet;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+
+import com.xmlcalabash.core.XProcException;
+
+/**
+ * The documents of an output port as a sequence of document nodes that
+ * are built when they are accessed.
+ *
+ * The documents are read from the port in order, when a document at or
+ * after their position is first accessed, and the sequence keeps only the
+ * document node it has built, so the same position always gives the same
+ * node. Until the last document has been read, the sequence keeps the run
+ * {@link RunResult#retain() retained}, as its documents are still in the
+ * pipes of the runtime; the runtime is given back once the sequence has
+ * been read to the end, or when the query is cleaned up, whichever comes
+ * first. Documents that are never accessed are not built, and the sequence
+ * never holds more than the document nodes of {@link OutputMode#DOCUMENT}.
+ *
+ * {@link org.exist.xquery.value.Sequence#itemAt(int)} and
+ * {@link SequenceIterator#nextItem()} cannot throw an {@link XPathException}:
+ * a document that cannot be read there fails with the {@link XProcException}
+ * of the pipeline output, while {@link #toNodeSet()}, {@link #toMemNodeSet()}
+ * and the other methods that may throw one report an {@link XPathException}.
+ */
+public class LazyDocumentSequence extends AbstractSequence implements AutoCloseable {
+
+    private final XQueryContext context;
+    private final Processor processor;
+    private final DocumentImpl[] converted;
+
+    private PortOutput output;
+    private RunResult result;
+    private int read = 0;
+
+    /**
+     * @param context the context the documents are built in
+     * @param result the run the output belongs to, retained until the documents have been read
+     * @param output the documents of the port
+     */
+    public LazyDocumentSequence(final XQueryContext context, final RunResult result, final PortOutput output) {
+        this.context = context;
+        this.processor = output.getProcessor();
+        this.converted = new DocumentImpl[output.documentCount()];
+        this.output = output;
+        this.result = result.retain();
+
+        if (converted.length == 0) {
+            close();
+        } else {
+            context.registerCleanupTask(this::cleanup);
+        }
+    }
+
+    private void cleanup(final XQueryContext context, final Predicate<Object> predicate) {
+        if (predicate.test(this)) {
+            close();
+        }
+    }
+
+    /**
+     * Give the runtime back, the documents that have not been read yet
+     * can no longer be accessed.
+     */
+    @Override
+    public synchronized void close() {
+        output = null;
+        if (result != null) {
+            result.close();
+            result = null;
+        }
+    }
+
+    @Override
+    public void add(final Item item) throws XPathException {
+        throw new XPathException("Items cannot be added to the output of a pipeline");
+    }
+
+    @Override
+    public int getItemType() {
+        return Type.DOCUMENT;
+    }
+
+    @Override
+    public SequenceIterator iterate() {
+        return new SequenceIterator() {
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return position < converted.length;
+            }
+
+            @Override
+            public Item nextItem() {
+                if (!hasNext()) {
+                    return null;
+                }
+                return itemAt(position++);
+            }
+
+            @Override
+            public long skippable() {
+                return converted.length - position;
+            }
+
+            @Override
+            public long skip(final long n) {
+                final long skip = Math.min(n, skippable());
+                position += skip;
+                return skip;
+            }
+        };
+    }
+
+    @Override
+    public SequenceIterator unorderedIterator() {
+        return iterate();
+    }
+
+    @Override
+    public long getItemCountLong() {
+        return converted.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return converted.length == 0;
+    }
+
+    @Override
+    public boolean hasOne() {
+        return converted.length == 1;
+    }
+
+    @Override
+    public void removeDuplicates() {
+        // each document is a distinct node
+    }
+
+    @Override
+    public void clearContext(final int contextId) {
+        // only persistent nodes keep a context, reading the documents here would defeat the mode
+    }
+
+    /**
+     * Get a document, reading the documents up to it on the first access.
+     */
+    @Override
+    public Item itemAt(final int pos) {
+        if (pos < 0 || pos >= converted.length) {
+            return null;
+        }
+
+        try {
+            return document(pos);
+        } catch (final SaxonApiException e) {
+            throw new XProcException("Unable to read output document " + (pos + 1), e);
+        }
+    }
+
+    private synchronized DocumentImpl document(final int pos) throws SaxonApiException {
+        while (read <= pos) {
+            if (output == null) {
+                throw new SaxonApiException("The run of the pipeline has been closed before its output was read");
+            }
+            // the source is dropped as soon as it has been converted
+            converted[read] = XdmOutput.toDocument(context, processor, output.read());
+            read++;
+            if (read == converted.length) {
+                close();
+            }
+        }
+        return converted[pos];
+    }
+
+    @Override
+    public NodeSet toNodeSet() throws XPathException {
+        return materialize().toNodeSet();
+    }
+
+    @Override
+    public MemoryNodeSet toMemNodeSet() throws XPathException {
+        return materialize().toMemNodeSet();
+    }
+
+    private ValueSequence materialize() throws XPathException {
+        final ValueSequence sequence = new ValueSequence(converted.length);
+        try {
+            for (int pos = 0; pos < converted.length; pos++) {
+                sequence.add(document(pos));
+            }
+        } catch (final SaxonApiException e) {
+            throw new XPathException(ErrorCodes.FODC0002, "Unable to read output document: " + e.getMessage(), e);
+        }
+        return sequence;
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Registry of the libraries given to implicit pipelines as streams.
+ *
+ * A library is kept in memory under a URI made from the digest of its
+ * content and base URI, which {@link EXistURIResolver} resolves when the
+ * library is imported. The same library given again gets the same URI, so
+ * the implicit pipeline importing it can be taken from the {@link PipelineCache},
+ * and no temporary files are needed. Relative references in a library are
+ * resolved against the base URI it was registered with.
+ *
+ * The least recently used libraries are forgotten when there are more than
+ * {@link #MAX_LIBRARIES}, except those pinned by the compiled pipelines in
+ * the {@link PipelineCache}, which may have to be compiled again.
+ */
+public class LibraryRegistry {
+
+    /**
+     * The scheme of the URIs of registered libraries.
+     */
+    public static final String SCHEME = "xproc-library";
+
+    /**
+     * Libraries kept, the least recently used library that is not pinned is forgotten when there are more.
+     */
+    public static final int MAX_LIBRARIES = 64;
+
+    private static final LibraryRegistry INSTANCE = new LibraryRegistry();
+
+    private final LinkedHashMap<String, Library> libraries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static LibraryRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Register a library.
+     *
+     * @param library the content of the library, the stream is closed
+     * @param baseURI the base URI of the library, or null
+     * @return the URI of the library
+     *
+     * @throws IOException if the library cannot be read
+     */
+    public String register(final InputStream library, final String baseURI) throws IOException {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (final InputStream is = library) {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+        }
+        return register(content.toByteArray(), baseURI);
+    }
+
+    /**
+     * Register a library.
+     *
+     * @param library the content of the library
+     * @param baseURI the base URI of the library, or null
+     * @return the URI of the library
+     */
+    public String register(final byte[] library, final String baseURI) {
+        final String uri = SCHEME + ":" + ExecutableCache.digest(identity(library, baseURI));
+        synchronized (libraries) {
+            final Library existing = libraries.get(uri);
+            if (existing != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                libraries.put(uri, new Library(library, baseURI));
+                evict();
+            }
+        }
+        return uri;
+    }
+
+    private static byte[] identity(final byte[] library, final String baseURI) {
+        if (baseURI == null) {
+            return library;
+        }
+        final byte[] base = baseURI.getBytes(StandardCharsets.UTF_8);
+        final byte[] identity = new byte[library.length + 1 + base.length];
+        System.arraycopy(library, 0, identity, 0, library.length);
+        System.arraycopy(base, 0, identity, library.length + 1, base.length);
+        return identity;
+    }
+
+    private void evict() {
+        final Iterator<Library> it = libraries.values().iterator();
+        while (libraries.size() > MAX_LIBRARIES && it.hasNext()) {
+            if (it.next().pins == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Keep a library registered until it is unpinned as many times.
+     *
+     * @param uri the URI of the library
+     */
+    public void pin(final String uri) {
+        synchronized (libraries) {
+            final Library library = libraries.get(uri);
+            if (library != null) {
+                library.pins++;
+            }
+        }
+    }
+
+    /**
+     * Release a library pinned by {@link #pin(String)}.
+     *
+     * @param uri the URI of the library
+     */
+    public void unpin(final String uri) {
+        synchronized (libraries) {
+            final Library library = libraries.get(uri);
+            if (library != null && library.pins > 0) {
+                library.pins--;
+                evict();
+            }
+        }
+    }
+
+    /**
+     * @param uri a URI
+     * @return true if the URI is the URI of a registered library
+     */
+    public static boolean isLibraryURI(final String uri) {
+        return uri != null && uri.startsWith(SCHEME + ":");
+    }
+
+    /**
+     * Resolve the URI of a registered library.
+     *
+     * @param uri the URI of the library
+     * @return the library, or null if the URI is not the URI of a library
+     *
+     * @throws TransformerException if the library is no longer registered
+     */
+    public Source resolve(final String uri) throws TransformerException {
+        if (!isLibraryURI(uri)) {
+            return null;
+        }
+
+        final Library library;
+        synchronized (libraries) {
+            library = libraries.get(uri);
+        }
+        if (library == null) {
+            throw new TransformerException("Library '" + uri + "' is no longer registered");
+        }
+        return new StreamSource(new ByteArrayInputStream(library.content), library.baseURI == null ? uri : library.baseURI);
+    }
+
+    public void clear() {
+        synchronized (libraries) {
+            libraries.values().removeIf(library -> library.pins == 0);
+        }
+    }
+
+    public int size() {
+        synchronized (libraries) {
+            return libraries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static class Library {
+        final byte[] content;
+        final String baseURI;
+        int pins = 0;
+
+        Library(final byte[] content, final String baseURI) {
+            this.content = content;
+            this.baseURI = baseURI;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.exist.util.io.TemporaryFileManager;
+
+/**
+ * Buffer for a serialized output port, kept in memory until it grows
+ * over a threshold and then written to a temporary file.
+ *
+ * The temporary file is given back to the {@link TemporaryFileManager}
+ * by {@link #discard()}, or when the stream returned by
+ * {@link #getInputStream()} is closed.
+ */
+public class OutputBuffer extends OutputStream {
+
+    public static final int DEFAULT_THRESHOLD = 4 * 1024 * 1024;
+
+    private static volatile int defaultThreshold = DEFAULT_THRESHOLD;
+
+    private final int threshold;
+
+    private MemoryBuffer memory = new MemoryBuffer();
+    private Path file = null;
+    private OutputStream fileStream = null;
+    private long size = 0;
+
+    public OutputBuffer() {
+        this(defaultThreshold);
+    }
+
+    public OutputBuffer(final int threshold) {
+        this.threshold = threshold;
+    }
+
+    public static int getDefaultThreshold() {
+        return defaultThreshold;
+    }
+
+    /**
+     * @param threshold the number of bytes kept in memory by new buffers
+     */
+    public static void setDefaultThreshold(final int threshold) {
+        defaultThreshold = threshold;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        target(1).write(b);
+        size++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        target(len).write(b, off, len);
+        size += len;
+    }
+
+    private OutputStream target(final int len) throws IOException {
+        if (fileStream != null) {
+            return fileStream;
+        }
+        if (size + len <= threshold) {
+            return memory;
+        }
+
+        file = TemporaryFileManager.getInstance().getTemporaryFile();
+        fileStream = new BufferedOutputStream(Files.newOutputStream(file));
+        memory.writeTo(fileStream);
+        memory = null;
+        return fileStream;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileStream != null) {
+            fileStream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileStream != null) {
+            fileStream.close();
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * @return the temporary file of the buffer, or null if it is in memory
+     */
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * Read the content of the buffer, closing the stream discards the buffer.
+     *
+     * @return the content
+     *
+     * @throws IOException if the temporary file cannot be read
+     */
+    public InputStream getInputStream() throws IOException {
+        return new FilterInputStream(openInputStream()) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    discard();
+                }
+            }
+        };
+    }
+
+    /**
+     * Read the content of the buffer, which is kept until {@link #discard()}
+     * so that it can be read again.
+     *
+     * @return the content
+     *
+     * @throws IOException if the temporary file cannot be read
+     */
+    public InputStream openInputStream() throws IOException {
+        close();
+        return memory != null ? memory.toInputStream() : Files.newInputStream(file);
+    }
+
+    /**
+     * @param charset the encoding of the content
+     * @return the content as a string
+     *
+     * @throws IOException if the temporary file cannot be read
+     */
+    public String toString(final Charset charset) throws IOException {
+        close();
+        if (memory != null) {
+            return memory.toString(charset.name());
+        }
+        return new String(Files.readAllBytes(file), charset);
+    }
+
+    /**
+     * Release the memory or temporary file held by the buffer.
+     */
+    public void discard() {
+        memory = null;
+        if (file != null) {
+            try {
+                close();
+            } catch (final IOException e) {
+                // the file is removed anyway
+            }
+            TemporaryFileManager.getInstance().returnTemporaryFile(file);
+            file = null;
+            fileStream = null;
+        }
+    }
+
+    /**
+     * Gives access to the buffer without copying it.
+     */
+    private static class MemoryBuffer extends ByteArrayOutputStream {
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+}
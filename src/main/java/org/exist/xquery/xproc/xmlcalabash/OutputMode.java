@@ -0,0 +1,66 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+/**
+ * How the documents of an output port are returned to XQuery.
+ */
+public enum OutputMode {
+
+    /**
+     * The documents are serialized into one string.
+     */
+    STRING,
+
+    /**
+     * Each document is returned as a document node.
+     */
+    DOCUMENT,
+
+    /**
+     * Each document is returned as a document node, built when the
+     * sequence is consumed, see {@link LazyDocumentSequence}.
+     */
+    LAZY,
+
+    /**
+     * The documents are serialized into one xs:base64Binary value, which
+     * is only held in memory up to the threshold of {@link OutputBuffer}.
+     */
+    BINARY;
+
+    /**
+     * @return true if the documents of the port are serialized by the runner
+     */
+    public boolean isSerialized() {
+        return this == STRING || this == BINARY;
+    }
+
+    /**
+     * @param name the name of the mode, case is ignored
+     * @return the mode, or null if there is no such mode
+     */
+    public static OutputMode fromName(final String name) {
+        for (final OutputMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name)) {
+                return mode;
+            }
+        }
+        return null;
+    }
+}
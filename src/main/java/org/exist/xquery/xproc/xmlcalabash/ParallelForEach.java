@@ -0,0 +1,228 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import org.exist.xmldb.XmldbURI;
+
+import com.xmlcalabash.core.XProcException;
+import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.io.ReadablePipe;
+import com.xmlcalabash.io.WritablePipe;
+import com.xmlcalabash.library.DefaultStep;
+import com.xmlcalabash.model.RuntimeValue;
+import com.xmlcalabash.runtime.XAtomicStep;
+
+/**
+ * <code>xmlcalabash:for-each</code>: runs a pipeline once for each document
+ * of its <code>source</code> port, in parallel on the workers of the
+ * {@link BatchExecutor}, and writes the documents of an output port of
+ * each run to <code>result</code>, in the order of the source documents.
+ *
+ * Calabash runs the iterations of <code>p:for-each</code> one after the
+ * other, on the steps of the one instance of its subpipeline. The iterations
+ * of this step are runs of their own, each with a runtime and a compiled
+ * pipeline from the {@link PipelineCache} and a broker of the worker, for
+ * the subject of the enclosing run. Documents are copied between the
+ * runtimes as SAX events.
+ *
+ * The workers read the source documents from the pipe as they take them,
+ * and copy the outputs of an iteration before its runtime is given back.
+ * The outputs are written to <code>result</code> as soon as those of the
+ * iterations before it have been, so the step only holds the outputs of
+ * the iterations that finished ahead of an earlier one.
+ *
+ * The parameters of the step are passed to every run as options.
+ */
+public class ParallelForEach extends DefaultStep {
+
+    public static final QName TYPE = new QName(XProcXmlCalabashModule.NAMESPACE_URI, "for-each");
+
+    private static final QName _pipeline = new QName("", "pipeline");
+    private static final QName _port = new QName("", "port");
+    private static final QName _threads = new QName("", "threads");
+
+    private static final String DEFAULT_PORT = "result";
+
+    private ReadablePipe source = null;
+    private WritablePipe result = null;
+    private final Map<String, String> parameters = new LinkedHashMap<>();
+
+    public ParallelForEach(final XProcRuntime runtime, final XAtomicStep step) {
+        super(runtime, step);
+    }
+
+    @Override
+    public void setInput(final String port, final ReadablePipe pipe) {
+        source = pipe;
+    }
+
+    @Override
+    public void setOutput(final String port, final WritablePipe pipe) {
+        result = pipe;
+    }
+
+    @Override
+    public void setParameter(final QName name, final RuntimeValue value) {
+        if (!"".equals(name.getNamespaceURI())) {
+            throw new XProcException(step.getNode(), "The parameter " + name.getClarkName() + " cannot be passed as an option, it is in a namespace");
+        }
+        parameters.put(name.getLocalName(), value.getString());
+    }
+
+    @Override
+    public void setParameter(final String port, final QName name, final RuntimeValue value) {
+        setParameter(name, value);
+    }
+
+    @Override
+    public void reset() {
+        source.resetReader();
+        result.resetWriter();
+        parameters.clear();
+    }
+
+    @Override
+    public void run() throws SaxonApiException {
+        super.run();
+
+        final EXistURIResolver resolver = EXistURIResolver.getResolver(runtime.getProcessor().getUnderlyingConfiguration());
+        if (resolver == null) {
+            throw new XProcException(step.getNode(), "xmlcalabash:for-each only runs in pipelines run by eXist-db");
+        }
+
+        final RuntimeValue pipelineOption = getOption(_pipeline);
+        final String pipeline = resolve(pipelineOption.getString(), pipelineOption.getBaseURI());
+        final String port = getOption(_port, (String) null);
+        final int threads = getOption(_threads, 0);
+
+        final Processor processor = runtime.getProcessor();
+        final URI staticBaseURI = URI.create(resolver.basePath);
+        final Sources sources = new Sources(source);
+        try {
+            BatchExecutor.getInstance().run(resolver.db, resolver.subject, sources.count, threads,
+                    (broker, index) -> {
+                        final UserArgs userArgs = new UserArgs();
+                        userArgs.setPipeline(pipeline);
+                        userArgs.setOutputMode(null, OutputMode.DOCUMENT);
+                        for (final Map.Entry<String, String> parameter : parameters.entrySet()) {
+                            userArgs.addOption(parameter.getKey(), parameter.getValue());
+                        }
+
+                        try (final RunResult iteration =
+                                XProcRunner.run(staticBaseURI, broker, userArgs, XdmInput.of(processor, sources.get(index)))) {
+                            return copy(iteration.getOutputs(), port, processor);
+                        }
+                    },
+                    (index, outcome) -> {
+                        if (outcome.getError() != null) {
+                            throw new XProcException(step.getNode(), "Iteration " + (index + 1) + " of " + pipeline + " failed: "
+                                    + outcome.getError().getMessage(), outcome.getError());
+                        }
+                        for (final XdmNode document : outcome.getResult()) {
+                            result.write(document);
+                        }
+                    });
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XProcException(step.getNode(), "xmlcalabash:for-each was interrupted");
+        }
+    }
+
+    /**
+     * Resolve the URI of the pipeline against the base URI of the step, which
+     * for pipelines stored in the database is an opaque <code>xmldb:exist:</code> URI.
+     */
+    private static String resolve(final String href, final URI base) {
+        if (base == null || URI.create(href).isAbsolute()) {
+            return href;
+        }
+        final String baseURI = base.toString();
+        if (baseURI.startsWith(XmldbURI.EMBEDDED_SERVER_URI_PREFIX)) {
+            return XmldbURI.EMBEDDED_SERVER_URI_PREFIX
+                    + URI.create(baseURI.substring(XmldbURI.EMBEDDED_SERVER_URI_PREFIX.length())).resolve(href);
+        }
+        return base.resolve(href).toString();
+    }
+
+    /**
+     * Copy the documents an iteration wrote to the output port into trees of
+     * the processor of the step. This is done on the worker, while the pipes
+     * of the iteration may still be read and its runtime is not given back.
+     */
+    private static List<XdmNode> copy(final Map<String, PortOutput> outputs, final String port, final Processor processor)
+            throws SaxonApiException {
+        final PortOutput output;
+        if (port != null) {
+            output = outputs.get(port);
+        } else if (outputs.size() == 1) {
+            output = outputs.values().iterator().next();
+        } else {
+            output = outputs.get(DEFAULT_PORT);
+        }
+        if (output == null) {
+            throw new XProcException("The pipeline has no output port " + (port != null ? port : DEFAULT_PORT));
+        }
+
+        final List<XdmNode> documents = new ArrayList<>();
+        while (output.moreDocuments()) {
+            documents.add(XdmInput.copy(output.getProcessor(), output.read(), processor));
+        }
+        return documents;
+    }
+
+    /**
+     * The documents of the source port, read from the pipe as the workers
+     * take them rather than all at once. Workers take the documents in order,
+     * so those read ahead for a worker that has yet to ask are few.
+     */
+    private static class Sources {
+        final int count;
+        private final ReadablePipe pipe;
+        private final Map<Integer, XdmNode> ahead = new HashMap<>();
+        private int read = 0;
+
+        Sources(final ReadablePipe pipe) {
+            this.pipe = pipe;
+            this.count = pipe.documentCount();
+        }
+
+        synchronized XdmNode get(final int index) throws SaxonApiException {
+            final XdmNode document = ahead.remove(index);
+            if (document != null) {
+                return document;
+            }
+            while (read < index) {
+                ahead.put(read++, pipe.read());
+            }
+            read++;
+            return pipe.read();
+        }
+    }
+}
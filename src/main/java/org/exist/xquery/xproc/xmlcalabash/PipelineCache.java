@@ -0,0 +1,342 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+
+/**
+ * Cache of compiled pipelines stored in the database.
+ *
+ * Entries are keyed by the absolute pipeline URI, the user and the settings
+ * used to configure the runtime, and are valid as long as none of the documents
+ * read while compiling (the pipeline, its imports and libraries) has been
+ * modified, removed or become unreadable for the current user. Entries
+ * are also removed as soon as a {@link CacheInvalidationTrigger} reports
+ * that one of these documents has been changed.
+ */
+public class PipelineCache {
+
+    private static final Logger LOG = LogManager.getLogger(PipelineCache.class);
+
+    public static final int DEFAULT_MAX_SIZE = 64;
+    public static final int DEFAULT_MAX_IDLE = 4;
+
+    private static final PipelineCache INSTANCE = new PipelineCache();
+
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<CompiledPipeline> inUse = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile int maxSize = DEFAULT_MAX_SIZE;
+    private volatile int maxIdle = DEFAULT_MAX_IDLE;
+
+    public static PipelineCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Take an idle compiled pipeline for the key out of the cache.
+     *
+     * @param broker the broker used to check the dependencies
+     * @param key the pipeline key
+     * @return the compiled pipeline, or null if it has to be compiled
+     *
+     * @throws PermissionDeniedException if a dependency may not be read
+     */
+    public CompiledPipeline borrow(final DBBroker broker, final Key key) throws PermissionDeniedException {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (!entry.dependencies.isCurrent(broker)) {
+            if (entries.remove(key, entry)) {
+                LOG.debug("Compiled pipeline '{}' is out of date", key.uri);
+                entry.close();
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+
+        entry.lastAccess = System.nanoTime();
+
+        final CompiledPipeline compiled = entry.idle.pollFirst();
+        if (compiled == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        inUse.add(compiled);
+        return compiled;
+    }
+
+    /**
+     * Register a compiled pipeline that is about to be run for the first
+     * time, so it is not cached when it is invalidated during the run.
+     *
+     * @param compiled the compiled pipeline
+     */
+    public void register(final CompiledPipeline compiled) {
+        inUse.add(compiled);
+    }
+
+    /**
+     * Give a compiled pipeline back to the cache after a successful run.
+     *
+     * @param compiled the compiled pipeline
+     */
+    public void release(final CompiledPipeline compiled) {
+        inUse.remove(compiled);
+        if (compiled.isInvalidated()) {
+            compiled.close();
+            return;
+        }
+
+        final Key key = compiled.getKey();
+        final Entry entry = entries.compute(key, (k, existing) -> {
+            if (existing != null && existing.dependencies.equals(compiled.getDependencies())) {
+                return existing;
+            }
+            if (existing != null) {
+                existing.close();
+            }
+            return new Entry(compiled.getDependencies(), key.libraries);
+        });
+
+        entry.lastAccess = System.nanoTime();
+        if (entry.idle.size() < maxIdle) {
+            entry.idle.offerFirst(compiled);
+        } else {
+            compiled.close();
+        }
+
+        evict();
+    }
+
+    private void evict() {
+        while (entries.size() > maxSize) {
+            Map.Entry<Key, Entry> eldest = null;
+            for (final Map.Entry<Key, Entry> e : entries.entrySet()) {
+                if (eldest == null || e.getValue().lastAccess < eldest.getValue().lastAccess) {
+                    eldest = e;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            if (entries.remove(eldest.getKey(), eldest.getValue())) {
+                eldest.getValue().close();
+            }
+        }
+    }
+
+    /**
+     * Remove the compiled pipelines built from documents that have been
+     * changed. Pipelines in use are closed when they are released.
+     *
+     * @param affected tests the dependencies of a pipeline
+     */
+    public void invalidate(final Predicate<Dependencies> affected) {
+        for (final Map.Entry<Key, Entry> e : entries.entrySet()) {
+            if (affected.test(e.getValue().dependencies) && entries.remove(e.getKey(), e.getValue())) {
+                LOG.debug("Compiled pipeline '{}' has been invalidated", e.getKey().uri);
+                e.getValue().close();
+            }
+        }
+
+        final List<CompiledPipeline> running;
+        synchronized (inUse) {
+            running = new ArrayList<>(inUse);
+        }
+        for (final CompiledPipeline compiled : running) {
+            if (affected.test(compiled.getDependencies())) {
+                compiled.invalidate();
+            }
+        }
+    }
+
+    public void clear() {
+        final Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            it.remove();
+            entry.close();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(final int maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public void setMaxIdle(final int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * The compiled pipelines for a key. The libraries of the {@link LibraryRegistry}
+     * imported by the pipelines are pinned until the entry is closed, so that the
+     * pipelines can be compiled again when they are invalidated.
+     */
+    private static class Entry {
+        final Dependencies dependencies;
+        final ConcurrentLinkedDeque<CompiledPipeline> idle = new ConcurrentLinkedDeque<>();
+        volatile long lastAccess = System.nanoTime();
+        private final List<String> libraries;
+        private boolean closed = false;
+
+        Entry(final Dependencies dependencies, final List<String> libraries) {
+            this.dependencies = dependencies;
+            this.libraries = libraries;
+            for (final String library : libraries) {
+                LibraryRegistry.getInstance().pin(library);
+            }
+        }
+
+        void close() {
+            CompiledPipeline compiled;
+            while ((compiled = idle.pollFirst()) != null) {
+                compiled.close();
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            for (final String library : libraries) {
+                LibraryRegistry.getInstance().unpin(library);
+            }
+        }
+    }
+
+    /**
+     * Identifies a compiled pipeline.
+     */
+    public static final class Key {
+        private final String uri;
+        private final String user;
+        private final String configuration;
+        private final String catalogs;
+        private final String implicit;
+        private final List<String> libraries;
+
+        public Key(final String uri, final String user, final String configuration, final String catalogs) {
+            this(uri, user, configuration, catalogs, null);
+        }
+
+        public Key(final String uri, final String user, final String configuration, final String catalogs,
+                final String implicit) {
+            this(uri, user, configuration, catalogs, implicit, Collections.emptyList());
+        }
+
+        /**
+         * @param uri the pipeline, or the static base URI of a pipeline that is not stored
+         * @param user the name of the user the pipeline is compiled for, as its runtime
+         *     keeps the documents read by the runs of the user
+         * @param implicit the shape of an implicit pipeline, see {@link UserArgs#getImplicitPipelineShape()},
+         *     or the digest of a pipeline given as a node, see {@link XdmInput#getDigest()}
+         * @param libraries the URIs of the libraries of the {@link LibraryRegistry} imported by an
+         *     implicit pipeline, they are part of its shape
+         */
+        public Key(final String uri, final String user, final String configuration, final String catalogs,
+                final String implicit, final List<String> libraries) {
+            this.uri = uri;
+            this.user = user;
+            this.configuration = configuration;
+            this.catalogs = catalogs;
+            this.implicit = implicit;
+            this.libraries = Collections.unmodifiableList(new ArrayList<>(libraries));
+        }
+
+        public String getUri() {
+            return uri;
+        }
+
+        public boolean isImplicit() {
+            return implicit != null;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return uri.equals(other.uri)
+                    && user.equals(other.user)
+                    && configuration.equals(other.configuration)
+                    && Objects.equals(catalogs, other.catalogs)
+                    && Objects.equals(implicit, other.implicit);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(uri, user, configuration, catalogs, implicit);
+        }
+
+        @Override
+        public String toString() {
+            return implicit == null ? uri : uri + " " + implicit;
+        }
+    }
+}
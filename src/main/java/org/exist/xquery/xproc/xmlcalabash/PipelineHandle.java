@@ -0,0 +1,88 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import net.sf.saxon.Configuration;
+
+/**
+ * A pipeline prepared by {@code xmlcalabash:compile} to be run any number
+ * of times by {@code xmlcalabash:run}.
+ *
+ * The handle holds what the runs have in common: the pipeline, the options
+ * given to compile, already parsed, and the static base URI. The compiled
+ * pipeline itself is kept in the {@link PipelineCache}; a pipeline given as
+ * a node is detached from the query and cached by the digest of its content,
+ * see {@link XdmInput#detached}. Runs then only bind their own inputs,
+ * options and outputs.
+ */
+public class PipelineHandle {
+
+    private final URI staticBaseURI;
+    private final String pipelineUri;
+    private final XdmInput pipelineNode;
+    private final List<Consumer<UserArgs>> options;
+    private final Configuration sharedSaxonConfiguration;
+
+    /**
+     * @param staticBaseURI the static base URI of the query that compiled the pipeline
+     * @param pipelineUri the URI of the pipeline, or null if it is given as a node
+     * @param pipelineNode the pipeline, or null if it is given by URI
+     * @param options the options given to compile, applied to the arguments of every run
+     * @param sharedSaxonConfiguration the Saxon configuration to share, or null
+     */
+    public PipelineHandle(final URI staticBaseURI, final String pipelineUri, final XdmInput pipelineNode,
+            final List<Consumer<UserArgs>> options, final Configuration sharedSaxonConfiguration) {
+        this.staticBaseURI = staticBaseURI;
+        this.pipelineUri = pipelineUri;
+        this.pipelineNode = pipelineNode;
+        this.options = Collections.unmodifiableList(new ArrayList<>(options));
+        this.sharedSaxonConfiguration = sharedSaxonConfiguration;
+    }
+
+    public URI getStaticBaseURI() {
+        return staticBaseURI;
+    }
+
+    /**
+     * @return new arguments for a run of the pipeline, with the options given to compile
+     */
+    public UserArgs newUserArgs() {
+        final UserArgs userArgs = new UserArgs();
+        if (pipelineNode != null) {
+            userArgs.setPipeline(pipelineNode);
+        } else {
+            userArgs.setPipeline(pipelineUri);
+        }
+        for (final Consumer<UserArgs> option : options) {
+            option.accept(userArgs);
+        }
+        userArgs.setSharedSaxonConfiguration(sharedSaxonConfiguration);
+        return userArgs;
+    }
+
+    @Override
+    public String toString() {
+        return "pipeline " + (pipelineNode != null ? pipelineNode.getDigest() : pipelineUri);
+    }
+}
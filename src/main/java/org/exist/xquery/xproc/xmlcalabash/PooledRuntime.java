@@ -0,0 +1,210 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Stack;
+import java.util.Vector;
+
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import org.apache.http.client.CookieStore;
+
+import com.xmlcalabash.core.XProcConfiguration;
+import com.xmlcalabash.core.XProcData;
+import com.xmlcalabash.core.XProcRunnable;
+import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.runtime.XStep;
+
+/**
+ * A runtime that can be used for another run without loading its pipeline
+ * again, see {@link RuntimePool} and {@link CompiledPipeline}.
+ *
+ * Calabash only resets the state of a run, its collections, cookie stores,
+ * error and XProc data, in a private method called when a pipeline is
+ * loaded. This runtime keeps that state in fields of its own, behind the
+ * public accessors Calabash uses, so that {@link #clearRunState()} can
+ * reset it.
+ *
+ * The documents cached by the resolver of the runtime, see
+ * {@link com.xmlcalabash.util.XProcURIResolver#cache(XdmNode, URI)}, and
+ * the steps declared by the loaded pipeline are kept; the pools therefore
+ * only hand a runtime out to the user it was created for.
+ *
+ * Documents the runtime parses from the database are stamped with the
+ * documents read, so stylesheets and schemas compiled from them are found
+ * in the {@link ExecutableCache} without computing a digest of the tree.
+ */
+public class PooledRuntime extends XProcRuntime {
+
+    private XProcData xprocData;
+    private Hashtable<String, Vector<XdmNode>> collections;
+    private Map<String, CookieStore> cookieStores;
+    private Stack<XStep> runningSteps;
+
+    private QName errorCode;
+    private String errorMessage;
+
+    public PooledRuntime(final XProcConfiguration config) {
+        super(config);
+    }
+
+    /**
+     * Clear the state the previous run has left in the runtime, keeping
+     * the loaded pipeline.
+     */
+    public synchronized void clearRunState() {
+        xprocData = null;
+        collections = null;
+        cookieStores = null;
+        runningSteps = null;
+        errorCode = null;
+        errorMessage = null;
+    }
+
+    @Override
+    public XdmNode parse(final String uri, final String base, final boolean validate) {
+        final EXistURIResolver resolver = EXistURIResolver.getResolver(getProcessor().getUnderlyingConfiguration());
+        if (resolver == null) {
+            return super.parse(uri, base, validate);
+        }
+
+        final Dependencies read = new Dependencies();
+        resolver.startRecording(read);
+        final XdmNode document;
+        try {
+            document = super.parse(uri, base, validate);
+        } finally {
+            resolver.stopRecording(read);
+        }
+        ExecutableCache.stamp(document, read, "dtd-validate=" + validate);
+        return document;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (getProcessor() instanceof CachingProcessor) {
+            ((CachingProcessor) getProcessor()).release();
+        }
+    }
+
+    @Override
+    public synchronized XProcData getXProcData() {
+        if (xprocData == null) {
+            xprocData = new XProcData(this);
+        }
+        return xprocData;
+    }
+
+    @Override
+    public synchronized void setCollection(final URI href, final Vector<XdmNode> docs) {
+        if (collections == null) {
+            collections = new Hashtable<>();
+        }
+        collections.put(href.toASCIIString(), docs);
+    }
+
+    @Override
+    public synchronized Vector<XdmNode> getCollection(final URI href) {
+        return collections == null ? null : collections.get(href.toASCIIString());
+    }
+
+    @Override
+    public synchronized CookieStore getCookieStore(final String name) {
+        return cookieStores == null ? null : cookieStores.get(name);
+    }
+
+    @Override
+    public synchronized void setCookieStore(final String name, final CookieStore cookieStore) {
+        if (cookieStores == null) {
+            cookieStores = new HashMap<>();
+        }
+        cookieStores.put(name, cookieStore);
+    }
+
+    @Override
+    public synchronized void removeCookieStore(final String name) {
+        if (cookieStores != null) {
+            cookieStores.remove(name);
+        }
+    }
+
+    @Override
+    public void start(final XStep step) {
+        if (getProfile() != null) {
+            // profiled runtimes are not pooled, see UserArgs#getConfigurationKey()
+            super.start(step);
+            return;
+        }
+        synchronized (this) {
+            if (runningSteps == null) {
+                runningSteps = new Stack<>();
+            }
+            runningSteps.push(step);
+        }
+    }
+
+    @Override
+    public XStep runningStep() {
+        if (getProfile() != null) {
+            return super.runningStep();
+        }
+        synchronized (this) {
+            return runningSteps == null || runningSteps.isEmpty() ? null : runningSteps.peek();
+        }
+    }
+
+    @Override
+    public void finish(final XStep step) {
+        if (getProfile() != null) {
+            super.finish(step);
+            return;
+        }
+        synchronized (this) {
+            if (runningSteps != null && !runningSteps.isEmpty()) {
+                runningSteps.pop();
+            }
+        }
+    }
+
+    @Override
+    public void error(final XProcRunnable step, final XdmNode node, final String message, final QName code) {
+        synchronized (this) {
+            // the first error of the run is reported, the way Calabash does
+            if (errorCode == null) {
+                errorCode = code;
+                errorMessage = message;
+            }
+        }
+        super.error(step, node, message, code);
+    }
+
+    @Override
+    public synchronized QName getErrorCode() {
+        return errorCode;
+    }
+
+    @Override
+    public synchronized String getErrorMessage() {
+        return errorMessage;
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmNode;
+
+import com.xmlcalabash.io.ReadablePipe;
+
+/**
+ * The result of an output port of a pipeline run, either serialized or
+ * as the documents the pipeline wrote to the port.
+ *
+ * The documents are read from the pipe of the runtime of the run, see
+ * {@link RunResult}, unless the output has been {@link #detach() detached}
+ * from it.
+ */
+public class PortOutput {
+
+    private final OutputBuffer serialized;
+    private final Processor processor;
+    private final ReadablePipe pipe;
+    private final List<XdmNode> detached;
+    private int position = 0;
+
+    PortOutput(final OutputBuffer serialized) {
+        this.serialized = serialized;
+        this.processor = null;
+        this.pipe = null;
+        this.detached = null;
+    }
+
+    PortOutput(final Processor processor, final ReadablePipe pipe) {
+        this.serialized = null;
+        this.processor = processor;
+        this.pipe = pipe;
+        this.detached = null;
+    }
+
+    private PortOutput(final Processor processor, final List<XdmNode> detached) {
+        this.serialized = null;
+        this.processor = processor;
+        this.pipe = null;
+        this.detached = detached;
+    }
+
+    public boolean isSerialized() {
+        return serialized != null;
+    }
+
+    /**
+     * @return the serialized documents, or null if the port was not serialized
+     */
+    public OutputBuffer getSerialized() {
+        return serialized;
+    }
+
+    /**
+     * Release the buffer of a serialized port.
+     */
+    public void discard() {
+        if (serialized != null) {
+            serialized.discard();
+        }
+    }
+
+    /**
+     * @return the processor the documents were built with, or null if the port was serialized
+     */
+    public Processor getProcessor() {
+        return processor;
+    }
+
+    /**
+     * @return the number of documents written to the port, 0 if the port was serialized
+     */
+    public synchronized int documentCount() {
+        if (detached != null) {
+            return detached.size();
+        }
+        return pipe == null ? 0 : pipe.documentCount();
+    }
+
+    /**
+     * @return true if there are documents of the port left to read
+     */
+    public synchronized boolean moreDocuments() {
+        if (detached != null) {
+            return position < detached.size();
+        }
+        return pipe != null && pipe.moreDocuments();
+    }
+
+    /**
+     * Read the next document of the port. The output drops its reference
+     * to a detached document once it has been read.
+     *
+     * @return the document
+     *
+     * @throws SaxonApiException if the document cannot be read
+     */
+    public synchronized XdmNode read() throws SaxonApiException {
+        if (detached != null) {
+            final XdmNode document = detached.get(position);
+            detached.set(position++, null);
+            return document;
+        }
+        return pipe.read();
+    }
+
+    /**
+     * Read the documents left in the pipe, so that they can be read once
+     * the runtime has been given back.
+     *
+     * @return an output that no longer depends on the runtime
+     *
+     * @throws SaxonApiException if a document cannot be read
+     */
+    public synchronized PortOutput detach() throws SaxonApiException {
+        if (pipe == null) {
+            return this;
+        }
+        final List<XdmNode> documents = new ArrayList<>();
+        while (pipe.moreDocuments()) {
+            documents.add(pipe.read());
+        }
+        return new PortOutput(processor, documents);
+    }
+
+    /**
+     * Write the serialized documents of the port to a stream, serializing
+     * them as XML if the port was not serialized, and discard the buffer.
+     *
+     * @param out the stream to write to
+     *
+     * @throws IOException if the buffer cannot be read or the stream written
+     * @throws SaxonApiException if a document cannot be serialized
+     */
+    public void writeTo(final OutputStream out) throws IOException, SaxonApiException {
+        if (serialized != null) {
+            try (final InputStream in = serialized.getInputStream()) {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            return;
+        }
+
+        while (moreDocuments()) {
+            final Serializer serializer = processor.newSerializer(out);
+            serializer.setOutputProperty(Serializer.Property.METHOD, "xml");
+            serializer.serializeNode(read());
+        }
+    }
+}
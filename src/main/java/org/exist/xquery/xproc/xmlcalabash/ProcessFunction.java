@@ -20,19 +20,25 @@ package org.exist.xquery.xproc.xmlcalabash;
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Properties;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
 import com.evolvedbinary.j8fu.Either;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.SaxonApiException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.exist.Namespaces;
 import org.exist.dom.QName;
 import org.exist.dom.memtree.SAXAdapter;
-import org.exist.util.serializer.XQuerySerializer;
+import org.exist.storage.DBBroker;
+import org.exist.util.XMLReaderPool;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.BasicFunction;
 import org.exist.xquery.Cardinality;
@@ -46,13 +52,19 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class ProcessFunction extends BasicFunction {
 
+    private static final Logger LOG = LogManager.getLogger(ProcessFunction.class);
+
     private final static QName NAME = new QName("process", XProcXmlCalabashModule.NAMESPACE_URI, XProcXmlCalabashModule.PREFIX);
     private final static String DESCRIPTION = "Function which invokes xmlcalabash XProc processor.";
 
+    /**
+     * The option requesting the resources read by the run, and the key they are returned with.
+     */
+    final static String DEPENDENCIES = "dependencies";
+
     private final static FunctionParameterSequenceType PIPELINE =
             new FunctionParameterSequenceType("pipeline", Type.ITEM, Cardinality.EXACTLY_ONE, "XProc Pipeline");
 
@@ -94,24 +106,165 @@ public class ProcessFunction extends BasicFunction {
             RETURN
     );
 
+    private final static QName COMPILE_NAME = new QName("compile", XProcXmlCalabashModule.NAMESPACE_URI, XProcXmlCalabashModule.PREFIX);
+    private final static String COMPILE_DESCRIPTION = "Compiles a pipeline once, to be run any number of times with xmlcalabash:run. " +
+            "The options apply to every run.";
+
+    private final static FunctionReturnSequenceType HANDLE_RETURN = new FunctionReturnSequenceType(Type.ITEM, Cardinality.EXACTLY_ONE, "the compiled pipeline");
+
+    static final FunctionSignature FNS_COMPILE_1 = new FunctionSignature(
+            COMPILE_NAME,
+            COMPILE_DESCRIPTION,
+            new SequenceType[] {
+                    PIPELINE
+            },
+            HANDLE_RETURN
+    );
+
+    static final FunctionSignature FNS_COMPILE_2 = new FunctionSignature(
+            COMPILE_NAME,
+            COMPILE_DESCRIPTION,
+            new SequenceType[] {
+                    PIPELINE,
+                    OPTIONS,
+            },
+            HANDLE_RETURN
+    );
+
+    private final static QName RUN_NAME = new QName("run", XProcXmlCalabashModule.NAMESPACE_URI, XProcXmlCalabashModule.PREFIX);
+    private final static String RUN_DESCRIPTION = "Runs a pipeline compiled with xmlcalabash:compile. " +
+            "The options are added to those given to compile.";
+
+    private final static FunctionParameterSequenceType HANDLE =
+            new FunctionParameterSequenceType("handle", Type.ITEM, Cardinality.EXACTLY_ONE, "Pipeline compiled with xmlcalabash:compile");
+
+    static final FunctionSignature FNS_RUN_1 = new FunctionSignature(
+            RUN_NAME,
+            RUN_DESCRIPTION,
+            new SequenceType[] {
+                    HANDLE
+            },
+            RETURN
+    );
+
+    static final FunctionSignature FNS_RUN_2 = new FunctionSignature(
+            RUN_NAME,
+            RUN_DESCRIPTION,
+            new SequenceType[] {
+                    HANDLE,
+                    OPTIONS,
+            },
+            RETURN
+    );
+
+    static final FunctionSignature FNS_RUN_3 = new FunctionSignature(
+            RUN_NAME,
+            RUN_DESCRIPTION,
+            new SequenceType[] {
+                    HANDLE,
+                    PRIMARY_INPUT,
+                    OPTIONS,
+            },
+            RETURN
+    );
+
+    private final static QName BATCH_NAME = new QName("process-batch", XProcXmlCalabashModule.NAMESPACE_URI, XProcXmlCalabashModule.PREFIX);
+    private final static String BATCH_DESCRIPTION = "Runs a pipeline over each of the inputs, in parallel. " +
+            "Returns a map per input, in input order, with the outputs of the run as 'outputs', or the error it failed with as 'error'.";
+
+    private final static FunctionParameterSequenceType BATCH_PIPELINE =
+            new FunctionParameterSequenceType("pipeline", Type.ITEM, Cardinality.EXACTLY_ONE, "XProc Pipeline, or a pipeline compiled with xmlcalabash:compile");
+
+    private final static FunctionParameterSequenceType INPUTS =
+            new FunctionParameterSequenceType("inputs", Type.ITEM, Cardinality.ZERO_OR_MORE, "The primary input of each run");
+
+    private final static FunctionReturnSequenceType BATCH_RETURN = new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_MORE, "a map per input");
+
+    static final FunctionSignature FNS_PROCESS_BATCH_2 = new FunctionSignature(
+            BATCH_NAME,
+            BATCH_DESCRIPTION,
+            new SequenceType[] {
+                    BATCH_PIPELINE,
+                    INPUTS,
+            },
+            BATCH_RETURN
+    );
+
+    static final FunctionSignature FNS_PROCESS_BATCH_3 = new FunctionSignature(
+            BATCH_NAME,
+            BATCH_DESCRIPTION,
+            new SequenceType[] {
+                    BATCH_PIPELINE,
+                    INPUTS,
+                    OPTIONS,
+            },
+            BATCH_RETURN
+    );
+
+    private final static QName SUBMIT_NAME = new QName("submit", XProcXmlCalabashModule.NAMESPACE_URI, XProcXmlCalabashModule.PREFIX);
+    private final static String SUBMIT_DESCRIPTION = "Runs a pipeline in the background, and returns the id of the job at once. " +
+            "See xmlcalabash:status, xmlcalabash:await and xmlcalabash:cancel.";
+
+    private final static FunctionReturnSequenceType SUBMIT_RETURN = new FunctionReturnSequenceType(Type.STRING, Cardinality.EXACTLY_ONE, "the id of the job");
+
+    static final FunctionSignature FNS_SUBMIT_1 = new FunctionSignature(
+            SUBMIT_NAME,
+            SUBMIT_DESCRIPTION,
+            new SequenceType[] {
+                    BATCH_PIPELINE
+            },
+            SUBMIT_RETURN
+    );
+
+    static final FunctionSignature FNS_SUBMIT_2 = new FunctionSignature(
+            SUBMIT_NAME,
+            SUBMIT_DESCRIPTION,
+            new SequenceType[] {
+                    BATCH_PIPELINE,
+                    OPTIONS,
+            },
+            SUBMIT_RETURN
+    );
+
+    static final FunctionSignature FNS_SUBMIT_3 = new FunctionSignature(
+            SUBMIT_NAME,
+            SUBMIT_DESCRIPTION,
+            new SequenceType[] {
+                    BATCH_PIPELINE,
+                    PRIMARY_INPUT,
+                    OPTIONS,
+            },
+            SUBMIT_RETURN
+    );
+
     public ProcessFunction(final XQueryContext context, final FunctionSignature signature) {
         super(context, signature);
     }
 
     @Override
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+        if (isCalledAs(COMPILE_NAME.getLocalPart())) {
+            return compile(args);
+        } else if (isCalledAs(RUN_NAME.getLocalPart())) {
+            return run(args);
+        } else if (isCalledAs(BATCH_NAME.getLocalPart())) {
+            return processBatch(args);
+        } else if (isCalledAs(SUBMIT_NAME.getLocalPart())) {
+            return submit(args);
+        }
+
         final UserArgs userArgs = new UserArgs();
 
 
-        Optional<Either<XmldbURI, InputStream>> pipeline = Optional.empty();
-        Optional<InputStream> primary = Optional.empty();
+        Optional<Either<XmldbURI, XdmInput>> pipeline = Optional.empty();
+        Optional<XdmInput> primary = Optional.empty();
 
         try {
             // get the $pipeline argument
             pipeline = Optional.of(getPipelineArgument(args));
             if(pipeline.isPresent()) {
                 if (pipeline.get().isRight()) {
-                    userArgs.setPipeline(pipeline.get().right().get(), XmldbURI.LOCAL_DB + "/");
+                    userArgs.setPipeline(pipeline.get().right().get());
                 } else if (pipeline.get().isLeft()) {
                     userArgs.setPipeline(pipeline.get().left().get().toString());
                 }
@@ -119,9 +272,9 @@ public class ProcessFunction extends BasicFunction {
 
             // get the optional $options argument
             if (args.length > 2) {
-                parseOptions(userArgs, args[2]);
+                applyOptions(userArgs, parseOptions(args[2]));
             } else if (args.length > 1) {
-                parseOptions(userArgs, args[1]);
+                applyOptions(userArgs, parseOptions(args[1]));
             }
 
             // get the optional $primary argument
@@ -131,56 +284,265 @@ public class ProcessFunction extends BasicFunction {
                 primary = Optional.empty();
             }
 
+            userArgs.setSharedSaxonConfiguration(getSharedSaxonConfiguration());
+
             // determine the baseURI
             final URI baseUri = getStaticBaseURI();
 
             // execute the XProc
-            Map<String, ByteArrayOutputStream> outputs =
-                XProcRunner.run(baseUri, context.getBroker(), userArgs, primary.orElse(null));
-
-            final MapType map = new MapType(context);
-            for (Map.Entry<String, ByteArrayOutputStream> output : outputs.entrySet()) {
-
-                System.out.println("");
-//                BinaryValue binaryValue = BinaryValueFromInputStream.getInstance(
-//                    context,
-//                    new Base64BinaryValueType(),
-//                    new ByteArrayInputStream(output.getValue().toByteArray())
-//                );
-
-                map.add(new StringValue(output.getKey()), new StringValue(output.getValue().toString()));
-            }
-            return map;
+            return execute(baseUri, userArgs, primary.orElse(null));
         } catch(final Exception e) {
             e.printStackTrace();
             throw new XPathException(this, e);
-        } finally {
-            if(primary.isPresent()) {
+        }
+    }
+
+    /**
+     * xmlcalabash:compile: load the pipeline into the pipeline cache, and
+     * return a handle to run it with.
+     */
+    private Sequence compile(final Sequence[] args) throws XPathException {
+        try {
+            final List<Consumer<UserArgs>> options = args.length > 1 ? parseOptions(args[1]) : new ArrayList<>();
+            return new JavaObjectValue(compile(args, options));
+        } catch (final XPathException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new XPathException(this, e);
+        }
+    }
+
+    /**
+     * Load the $pipeline argument into the pipeline cache.
+     *
+     * @param options the options every run of the pipeline gets
+     */
+    private PipelineHandle compile(final Sequence[] args, final List<Consumer<UserArgs>> options) throws Exception {
+        final URI baseUri = getStaticBaseURI();
+
+        final Sequence pipe = args[0];
+        final PipelineHandle handle;
+        if (Type.subTypeOf(pipe.getItemType(), Type.DOCUMENT) || Type.subTypeOf(pipe.getItemType(), Type.ELEMENT)) {
+            final XdmInput node = XdmInput.detached(context.getBroker(), (NodeValue) pipe.itemAt(0), XmldbURI.LOCAL_DB + "/");
+            handle = new PipelineHandle(baseUri, null, node, options, getSharedSaxonConfiguration());
+        } else {
+            handle = new PipelineHandle(baseUri, getPipelineArgument(args).left().get().toString(), null, options, getSharedSaxonConfiguration());
+        }
+
+        if (!XProcRunner.preload(context.getBroker(), baseUri, handle.newUserArgs())) {
+            LOG.debug("The {} can not be cached, it is loaded on every run", handle);
+        }
+        return handle;
+    }
+
+    /**
+     * xmlcalabash:process-batch: run a pipeline over each of the inputs
+     * on the workers of the {@link BatchExecutor}.
+     */
+    private Sequence processBatch(final Sequence[] args) throws XPathException {
+        final List<Consumer<UserArgs>> options = args.length > 2 ? parseOptions(args[2]) : new ArrayList<>();
+        final PipelineHandle handle = getHandle(args);
+
+        final List<Item> inputs = new ArrayList<>(args[1].getItemCount());
+        for (final SequenceIterator i = args[1].iterate(); i.hasNext(); ) {
+            inputs.add(i.nextItem());
+        }
+
+        final List<BatchExecutor.Outcome<BatchRun>> outcomes;
+        try {
+            outcomes = BatchExecutor.getInstance().run(context.getBroker().getBrokerPool(), context.getEffectiveUser(), inputs.size(),
+                    (broker, index) -> {
+                        final UserArgs userArgs = handle.newUserArgs();
+                        applyOptions(userArgs, options);
+                        final XdmInput primary = toInput(broker, inputs.get(index));
+                        final ResolvedResources resources = userArgs.isReportDependencies() ? new ResolvedResources() : null;
+                        // the outputs are converted by the calling thread, once the runtime is back in the pool
+                        final RunResult result = XProcRunner.run(handle.getStaticBaseURI(), broker, userArgs, primary, resources).detach();
+                        return new BatchRun(userArgs, result, resources);
+                    });
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException(this, "The batch was interrupted");
+        }
+
+        final ValueSequence results = new ValueSequence(outcomes.size());
+        for (final BatchExecutor.Outcome<BatchRun> outcome : outcomes) {
+            final MapType result = new MapType(context);
+            Exception error = outcome.getError();
+            if (error == null) {
+                final BatchRun run = outcome.getResult();
                 try {
-                    primary.get().close();
-                } catch(final IOException e) {
-                    LOG.warn(e);
+                    result.add(new StringValue("outputs"), toMap(run.userArgs, run.result, run.resources));
+                } catch (final Exception e) {
+                    error = e;
+                } finally {
+                    run.result.close();
                 }
             }
+            if (error != null) {
+                result.add(new StringValue("error"), new StringValue(error.getMessage() == null ? error.toString() : error.getMessage()));
+            }
+            results.add(result);
+        }
+        return results;
+    }
 
-            if(pipeline.isPresent() && pipeline.get().isRight()) {
-                try {
-                    pipeline.get().right().get().close();
-                } catch(final IOException e) {
-                    LOG.warn(e);
+    /**
+     * The $pipeline argument of process-batch and submit: a pipeline
+     * compiled by xmlcalabash:compile, or a pipeline to compile without options.
+     */
+    private PipelineHandle getHandle(final Sequence[] args) throws XPathException {
+        final Item pipe = args[0].itemAt(0);
+        if (pipe instanceof JavaObjectValue && ((JavaObjectValue) pipe).getObject() instanceof PipelineHandle) {
+            return (PipelineHandle) ((JavaObjectValue) pipe).getObject();
+        }
+        try {
+            return compile(args, new ArrayList<>());
+        } catch (final XPathException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new XPathException(this, e);
+        }
+    }
+
+    /**
+     * xmlcalabash:submit: queue a run of the pipeline on the {@link JobExecutor}
+     * and return the id of the job. The primary input is detached from the
+     * query, which may be done before the job runs.
+     */
+    private Sequence submit(final Sequence[] args) throws XPathException {
+        final PipelineHandle handle = getHandle(args);
+
+        final UserArgs userArgs = handle.newUserArgs();
+        final XdmInput primary;
+        if (args.length > 2) {
+            applyOptions(userArgs, parseOptions(args[2]));
+            primary = getDetachedPrimaryArgument(args);
+        } else {
+            if (args.length > 1) {
+                applyOptions(userArgs, parseOptions(args[1]));
+            }
+            primary = null;
+        }
+
+        final Job job;
+        try {
+            job = JobExecutor.getInstance().submit(context.getBroker().getBrokerPool(), context.getEffectiveUser(),
+                    broker -> {
+                        final ResolvedResources resources = userArgs.isReportDependencies() ? new ResolvedResources() : null;
+                        try (final RunResult result = XProcRunner.run(handle.getStaticBaseURI(), broker, userArgs, primary, resources)) {
+                            return Job.Result.of(userArgs, result.getOutputs(), resources);
+                        }
+                    });
+        } catch (final RejectedExecutionException e) {
+            throw new XPathException(this, e.getMessage());
+        }
+        return new StringValue(job.getId());
+    }
+
+    /**
+     * What a run of a batch returns to the calling thread, where the outputs
+     * are converted to XQuery values. The result is detached from the runtime.
+     */
+    private static class BatchRun {
+        final UserArgs userArgs;
+        final RunResult result;
+        final ResolvedResources resources;
+
+        BatchRun(final UserArgs userArgs, final RunResult result, final ResolvedResources resources) {
+            this.userArgs = userArgs;
+            this.result = result;
+            this.resources = resources;
+        }
+    }
+
+    /**
+     * xmlcalabash:run: run a pipeline compiled by xmlcalabash:compile.
+     */
+    private Sequence run(final Sequence[] args) throws XPathException {
+        final Item item = args[0].itemAt(0);
+        if (!(item instanceof JavaObjectValue && ((JavaObjectValue) item).getObject() instanceof PipelineHandle)) {
+            throw new XPathException(this, "$handle must be a pipeline returned by xmlcalabash:compile");
+        }
+        final PipelineHandle handle = (PipelineHandle) ((JavaObjectValue) item).getObject();
+
+        try {
+            final UserArgs userArgs = handle.newUserArgs();
+            XdmInput primary = null;
+            if (args.length > 2) {
+                applyOptions(userArgs, parseOptions(args[2]));
+                primary = getPrimaryArgument(args);
+            } else if (args.length > 1) {
+                applyOptions(userArgs, parseOptions(args[1]));
+            }
+
+            return execute(handle.getStaticBaseURI(), userArgs, primary);
+        } catch (final XPathException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new XPathException(this, e);
+        }
+    }
+
+    private Configuration getSharedSaxonConfiguration() {
+        if (getParentModule() instanceof XProcXmlCalabashModule
+                && ((XProcXmlCalabashModule) getParentModule()).isSharedSaxonConfiguration()) {
+            return SaxonConfigurations.getConfiguration(context.getBroker().getBrokerPool());
+        }
+        return null;
+    }
+
+    /**
+     * Run the pipeline and return its outputs as a map of port names.
+     */
+    private MapType execute(final URI baseUri, final UserArgs userArgs, final XdmInput primary) throws Exception {
+        final ResolvedResources resources = userArgs.isReportDependencies() ? new ResolvedResources() : null;
+        try (final RunResult result = XProcRunner.run(baseUri, context.getBroker(), userArgs, primary, resources)) {
+            return toMap(userArgs, result, resources);
+        }
+    }
+
+    /**
+     * Convert the outputs of a run, the documents of the ports that are not
+     * serialized are read before the result is closed.
+     */
+    private MapType toMap(final UserArgs userArgs, final RunResult result, final ResolvedResources resources) throws Exception {
+        final Map<String, PortOutput> outputs = result.getOutputs();
+        final MapType map = new MapType(context);
+        for (final Map.Entry<String, PortOutput> output : outputs.entrySet()) {
+            final PortOutput portOutput = output.getValue();
+            if (portOutput.isSerialized()) {
+                final OutputBuffer buffer = portOutput.getSerialized();
+                if (userArgs.getOutputMode(output.getKey()) == OutputMode.BINARY) {
+                    map.add(new StringValue(output.getKey()),
+                            BinaryValueFromInputStream.getInstance(context, new Base64BinaryValueType(), buffer.getInputStream()));
+                } else {
+                    try {
+                        map.add(new StringValue(output.getKey()), new StringValue(buffer.toString(Charset.defaultCharset())));
+                    } finally {
+                        buffer.discard();
+                    }
                 }
+            } else if (userArgs.getOutputMode(output.getKey()) == OutputMode.LAZY) {
+                map.add(new StringValue(output.getKey()), new LazyDocumentSequence(context, result, portOutput));
+            } else {
+                map.add(new StringValue(output.getKey()), toDocuments(portOutput));
             }
         }
+
+        if (resources != null) {
+            if (outputs.containsKey(DEPENDENCIES)) {
+                throw new XPathException(this, "The output port '" + DEPENDENCIES + "' conflicts with the dependencies of the run.");
+            }
+            map.add(new StringValue(DEPENDENCIES), toDependencies(context, resources));
+        }
+        return map;
     }
 
-    private Either<XmldbURI, InputStream> getPipelineArgument(final Sequence[] args) throws IOException, XPathException, SAXException {
+    private Either<XmldbURI, XdmInput> getPipelineArgument(final Sequence[] args) throws XPathException {
         final Sequence pipe = args[0];
         if (Type.subTypeOf(pipe.getItemType(), Type.DOCUMENT) || Type.subTypeOf(pipe.getItemType(), Type.ELEMENT)) {
-            try (final StringWriter writer = new StringWriter()) {
-                final XQuerySerializer xqSerializer = new XQuerySerializer(context.getBroker(), new Properties(), writer);
-                xqSerializer.serialize(pipe);
-                return Either.Right(new ByteArrayInputStream(writer.toString().getBytes(UTF_8)));
-            }
+            return Either.Right(XdmInput.of(context.getBroker(), (NodeValue) pipe.itemAt(0), XmldbURI.LOCAL_DB + "/"));
         } else if(Type.subTypeOf(pipe.getItemType(), Type.ANY_URI)) {
             return Either.Left(((AnyURIValue)pipe.itemAt(0).convertTo(Type.ANY_URI)).toXmldbURI());
         } else if(Type.subTypeOf(pipe.getItemType(), Type.STRING)) {
@@ -190,26 +552,55 @@ public class ProcessFunction extends BasicFunction {
         }
     }
 
-    private InputStream getPrimaryArgument(final Sequence[] args) throws IOException, XPathException, SAXException {
+    /**
+     * An input of a batch, read with the broker of the worker running it.
+     */
+    private XdmInput toInput(final DBBroker broker, final Item input) throws XPathException {
+        if (Type.subTypeOf(input.getType(), Type.DOCUMENT) || Type.subTypeOf(input.getType(), Type.ELEMENT)) {
+            return XdmInput.of(broker, (NodeValue) input, null);
+        } else if (Type.subTypeOf(input.getType(), Type.STRING)) {
+            return XdmInput.of(input.getStringValue());
+        } else {
+            throw new XPathException(this, "An input must be either document(), element() or xs:string");
+        }
+    }
+
+    private XdmInput getPrimaryArgument(final Sequence[] args) throws XPathException {
+        final Sequence primary = args[1];
+
+        if (Type.subTypeOf(primary.getItemType(), Type.DOCUMENT) || Type.subTypeOf(primary.getItemType(), Type.ELEMENT)) {
+            return XdmInput.of(context.getBroker(), (NodeValue) primary.itemAt(0), null);
+        } else if(Type.subTypeOf(primary.getItemType(), Type.STRING)) {
+            return XdmInput.of(primary.getStringValue());
+        } else {
+            throw new XPathException(this, "$primary must be either document(), element() or xs:string");
+        }
+    }
+
+    private XdmInput getDetachedPrimaryArgument(final Sequence[] args) throws XPathException {
         final Sequence primary = args[1];
 
         if (Type.subTypeOf(primary.getItemType(), Type.DOCUMENT) || Type.subTypeOf(primary.getItemType(), Type.ELEMENT)) {
-            try (final StringWriter writer = new StringWriter()) {
-                final XQuerySerializer xqSerializer = new XQuerySerializer(context.getBroker(), new Properties(), writer);
-                xqSerializer.serialize(primary);
-                return new ByteArrayInputStream(writer.toString().getBytes(UTF_8));
+            try {
+                return XdmInput.detached(context.getBroker(), (NodeValue) primary.itemAt(0), null);
+            } catch (final SAXException e) {
+                throw new XPathException(this, e);
             }
         } else if(Type.subTypeOf(primary.getItemType(), Type.STRING)) {
-            return new ByteArrayInputStream(primary.getStringValue().getBytes(UTF_8));
+            return XdmInput.of(primary.getStringValue());
         } else {
             throw new XPathException(this, "$primary must be either document(), element() or xs:string");
         }
     }
 
-    private void parseOptions(final UserArgs userArgs, final Sequence optSeq) throws XPathException {
+    /**
+     * Parse the options into what they set on the arguments of a run.
+     */
+    private List<Consumer<UserArgs>> parseOptions(final Sequence optSeq) throws XPathException {
+        final List<Consumer<UserArgs>> options = new ArrayList<>();
 
         if (optSeq.isEmpty()) {
-            return;
+            return options;
         }
 
         final SequenceIterator iter = optSeq.iterate();
@@ -241,7 +632,7 @@ public class ProcessFunction extends BasicFunction {
                     throw new XPathException(this, "Input pine url undefined at '" + element.toString() + "'");
                 }
 
-                userArgs.addInput(port, url, type);
+                options.add(userArgs -> userArgs.addInput(port, url, type));
 
             } else if ("output".equalsIgnoreCase(localName)) {
 
@@ -255,7 +646,7 @@ public class ProcessFunction extends BasicFunction {
                     throw new XPathException(this, "Output pine url undefined at '" + element.toString() + "'");
                 }
 
-                userArgs.addOutput(port, url);
+                options.add(userArgs -> userArgs.addOutput(port, url));
 
             } else if ("option".equalsIgnoreCase(localName)) {
 
@@ -269,19 +660,41 @@ public class ProcessFunction extends BasicFunction {
                     throw new XPathException(this, "Option value undefined at '" + element.toString() + "'");
                 }
 
-                userArgs.addOption(name, value);
+                options.add(userArgs -> userArgs.addOption(name, value));
 
             } else if ("config".equalsIgnoreCase(localName)) {
                 String cfg = ((Item)element).getStringValue();
-                userArgs.setConfig(cfg);
+                options.add(userArgs -> userArgs.setConfig(cfg));
+
+            } else if ("output-mode".equalsIgnoreCase(localName)) {
+                final String name = ((Item)element).getStringValue().trim();
+                final OutputMode mode = OutputMode.fromName(name);
+                if (mode == null) {
+                    throw new XPathException(this, "Unknown output mode '" + name + "'.");
+                }
+
+                final String port = element.getAttribute("port");
+                options.add(userArgs -> userArgs.setOutputMode(port == null || port.isEmpty() ? null : port, mode));
+
+            } else if (DEPENDENCIES.equalsIgnoreCase(localName)) {
+                final String value = ((Item)element).getStringValue().trim();
+                final boolean report = value.isEmpty() || "true".equals(value);
+                options.add(userArgs -> userArgs.setReportDependencies(report));
 
             } else if ("catalog".equalsIgnoreCase(localName)) {
                 String cfg = ((Item)element).getStringValue();
-                userArgs.catalogList = cfg;
+                options.add(userArgs -> userArgs.catalogList = cfg);
 
             } else
                 throw new XPathException(this, "Unknown option '" + localName + "'.");
         }
+        return options;
+    }
+
+    private static void applyOptions(final UserArgs userArgs, final List<Consumer<UserArgs>> options) {
+        for (final Consumer<UserArgs> option : options) {
+            option.accept(userArgs);
+        }
     }
 
     private URI getStaticBaseURI() throws URISyntaxException {
@@ -313,26 +726,52 @@ public class ProcessFunction extends BasicFunction {
         }
     }
 
-    private Sequence toDocument(final String xml) throws SAXException, IOException, ParserConfigurationException {
+    /**
+     * A map per resource read by the run: its URI, the number of reads
+     * and, for database documents, the last-modified time it had.
+     */
+    static Sequence toDependencies(final XQueryContext context, final ResolvedResources resources) throws XPathException {
+        final ValueSequence dependencies = new ValueSequence();
+        for (final ResolvedResources.Resource resource : resources.getResources()) {
+            final MapType dependency = new MapType(context);
+            dependency.add(new StringValue("uri"), new StringValue(resource.getUri()));
+            if (resource.isDocument()) {
+                dependency.add(new StringValue("last-modified"), new DateTimeValue(new Date(resource.getLastModified())));
+            }
+            dependency.add(new StringValue("reads"), new IntegerValue(resource.getReads()));
+            dependencies.add(dependency);
+        }
+        return dependencies;
+    }
+
+    private Sequence toDocuments(final PortOutput output) throws SaxonApiException {
+        final ValueSequence documents = new ValueSequence();
+        while (output.moreDocuments()) {
+            documents.add(XdmOutput.toDocument(context, output.getProcessor(), output.read()));
+        }
+        return documents;
+    }
+
+    private Sequence toDocument(final String xml) throws SAXException, IOException {
         if (xml == null || xml.isEmpty()) {
             return Sequence.EMPTY_SEQUENCE;
         }
 
-        System.out.println("xml:\n"+xml);
-
+        final XMLReaderPool parserPool = context.getBroker().getBrokerPool().getParserPool();
+        XMLReader xr = null;
         try (final StringReader reader = new StringReader(xml)) {
-            final SAXParserFactory factory = SAXParserFactory.newInstance();
-            factory.setNamespaceAware(true);
-            final InputSource src = new InputSource(reader);
-            final SAXParser parser = factory.newSAXParser();
-            final XMLReader xr = parser.getXMLReader();
+            xr = parserPool.borrowXMLReader();
 
             final SAXAdapter adapter = new SAXAdapter(context);
             xr.setContentHandler(adapter);
             xr.setProperty(Namespaces.SAX_LEXICAL_HANDLER, adapter);
-            xr.parse(src);
+            xr.parse(new InputSource(reader));
 
             return adapter.getDocument();
+        } finally {
+            if (xr != null) {
+                parserPool.returnXMLReader(xr);
+            }
         }
     }
 }
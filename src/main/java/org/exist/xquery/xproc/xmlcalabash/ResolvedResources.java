@@ -0,0 +1,172 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.exist.xmldb.XmldbURI;
+
+/**
+ * The resources read by one run through its {@link EXistURIResolver}: the
+ * database documents, with the last-modified time each had when it was
+ * read, and the URLs read from outside the database, in the order they
+ * were first read.
+ *
+ * Unlike {@link Dependencies}, which only holds what a cached artifact has
+ * to be checked against, this counts how often each resource was read, and
+ * includes the documents that the cached pipelines, stylesheets, queries
+ * and schemas used by the run were built from, with no reads of their own.
+ */
+public class ResolvedResources {
+
+    private final Map<String, Resource> resources = new LinkedHashMap<>();
+
+    /**
+     * Record a read of a database document.
+     */
+    public synchronized void addDocument(final XmldbURI uri, final long lastModified) {
+        final String key = XmldbURI.EMBEDDED_SERVER_URI_PREFIX + uri.getCollectionPath();
+        resources.computeIfAbsent(key, k -> new Resource(k, true, lastModified)).read(lastModified);
+    }
+
+    /**
+     * Record a read of a resource outside the database.
+     */
+    public synchronized void addUrl(final String url) {
+        if (url == null) {
+            return;
+        }
+        resources.computeIfAbsent(url, k -> new Resource(k, false, -1)).read(-1);
+    }
+
+    /**
+     * Record the documents a cached artifact was built from, without
+     * counting them as read.
+     */
+    public synchronized void addCached(final Dependencies dependencies) {
+        for (final Map.Entry<XmldbURI, Long> document : dependencies.getDocuments().entrySet()) {
+            final String key = XmldbURI.EMBEDDED_SERVER_URI_PREFIX + document.getKey().getCollectionPath();
+            resources.computeIfAbsent(key, k -> new Resource(k, true, document.getValue()));
+        }
+    }
+
+    /**
+     * Record the resources of another record, adding up their reads.
+     */
+    public void addAll(final ResolvedResources other) {
+        final List<Resource> others = other.getResources();
+        synchronized (this) {
+            for (final Resource resource : others) {
+                final Resource existing = resources.putIfAbsent(resource.uri, resource);
+                if (existing != null) {
+                    existing.lastModified = resource.lastModified;
+                    existing.reads += resource.reads;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the resources, in the order they were first recorded
+     */
+    public synchronized List<Resource> getResources() {
+        final List<Resource> copy = new ArrayList<>(resources.size());
+        for (final Resource resource : resources.values()) {
+            copy.add(resource.copy());
+        }
+        return copy;
+    }
+
+    public synchronized int size() {
+        return resources.size();
+    }
+
+    /**
+     * @return the number of reads of all resources
+     */
+    public synchronized int getReads() {
+        int reads = 0;
+        for (final Resource resource : resources.values()) {
+            reads += resource.reads;
+        }
+        return reads;
+    }
+
+    /**
+     * A resource read by a run.
+     */
+    public static final class Resource {
+        private final String uri;
+        private final boolean document;
+        private long lastModified;
+        private int reads;
+
+        private Resource(final String uri, final boolean document, final long lastModified) {
+            this.uri = uri;
+            this.document = document;
+            this.lastModified = lastModified;
+        }
+
+        private void read(final long lastModified) {
+            this.lastModified = lastModified;
+            reads++;
+        }
+
+        private Resource copy() {
+            final Resource copy = new Resource(uri, document, lastModified);
+            copy.reads = reads;
+            return copy;
+        }
+
+        /**
+         * @return the URI, an <code>xmldb:exist://</code> URI for database documents
+         */
+        public String getUri() {
+            return uri;
+        }
+
+        /**
+         * @return true for a database document, false for a URL
+         */
+        public boolean isDocument() {
+            return document;
+        }
+
+        /**
+         * @return the last-modified time of a database document when it was last read, -1 for a URL
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the number of times the run read the resource, 0 if it was only used to build a cached artifact
+         */
+        public int getReads() {
+            return reads;
+        }
+
+        @Override
+        public String toString() {
+            return uri + " (" + reads + ")";
+        }
+    }
+}
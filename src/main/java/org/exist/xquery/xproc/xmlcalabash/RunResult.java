@@ -0,0 +1,137 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.saxon.s9api.SaxonApiException;
+
+/**
+ * The outputs of a pipeline run, which keeps the runtime of the run
+ * borrowed until it is closed.
+ *
+ * Ports that are not serialized are read from the pipes of the runtime,
+ * so they have to be read before the result is closed: once it is, the
+ * runtime goes back to the {@link PipelineCache} or the {@link RuntimePool}
+ * and its pipes are reset by the next run. Serialized ports are buffers of
+ * their own, which the caller discards.
+ *
+ * A reader that outlives the caller, such as a {@link LazyDocumentSequence},
+ * {@link #retain() retains} the result and closes it when it is done; the
+ * runtime is given back when the last of them closes it. A result that is
+ * kept by another thread, such as the result of a run of a batch, is
+ * {@link #detach() detached} from the runtime instead.
+ */
+public class RunResult implements AutoCloseable {
+
+    private final Map<String, PortOutput> outputs;
+    private final Runnable release;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * @param outputs the outputs by port name
+     * @param release gives the runtime back, run once when the result is closed
+     */
+    RunResult(final Map<String, PortOutput> outputs, final Runnable release) {
+        this.outputs = Collections.unmodifiableMap(outputs);
+        this.release = release;
+    }
+
+    /**
+     * @return the outputs by port name
+     */
+    public Map<String, PortOutput> getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * Keep the runtime borrowed for another reader, which has to close the
+     * result once it has read the pipes.
+     *
+     * @return this result
+     *
+     * @throws IllegalStateException if the result has already been closed
+     */
+    public RunResult retain() {
+        int count;
+        do {
+            count = references.get();
+            if (count == 0) {
+                throw new IllegalStateException("The result of the run has been closed");
+            }
+        } while (!references.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Read the documents of the ports that are not serialized out of the
+     * pipes, and close this result.
+     *
+     * @return a result that no longer holds the runtime
+     *
+     * @throws SaxonApiException if a document cannot be read, the serialized
+     *     ports are discarded then
+     */
+    public RunResult detach() throws SaxonApiException {
+        final Map<String, PortOutput> detached = new LinkedHashMap<>();
+        boolean completed = false;
+        try {
+            for (final Map.Entry<String, PortOutput> output : outputs.entrySet()) {
+                detached.put(output.getKey(), output.getValue().detach());
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                for (final PortOutput output : outputs.values()) {
+                    output.discard();
+                }
+            }
+            close();
+        }
+        return new RunResult(detached, () -> { });
+    }
+
+    /**
+     * @return true if the pipes of the run may still be read
+     */
+    public boolean isOpen() {
+        return references.get() > 0;
+    }
+
+    /**
+     * Give the runtime back once every reader has closed the result.
+     * Closing a result that has already been released does nothing.
+     */
+    @Override
+    public void close() {
+        int count;
+        do {
+            count = references.get();
+            if (count == 0) {
+                return;
+            }
+        } while (!references.compareAndSet(count, count - 1));
+
+        if (count == 1) {
+            release.run();
+        }
+    }
+}
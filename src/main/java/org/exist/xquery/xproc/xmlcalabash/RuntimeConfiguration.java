@@ -0,0 +1,68 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.lib.CollectionFinder;
+
+import com.xmlcalabash.util.XProcCollectionFinder;
+
+/**
+ * Saxon configuration of a Calabash runtime, which shares the name pool
+ * and document numbers of another configuration, see
+ * {@link SaxonConfigurations}.
+ *
+ * The <code>p:xslt</code> and <code>p:xquery</code> steps of Calabash
+ * make their input documents the default collection by setting a
+ * collection finder on the configuration for the time the step runs.
+ * Saxon looks the collection finder up in the configuration of the
+ * stylesheet or query when it is evaluated, which is the configuration
+ * of the runtime that compiled it. As compiled stylesheets and queries are
+ * shared between runtimes, see {@link ExecutableCache}, the finder set by
+ * a step is therefore also returned to the steps of other runtimes
+ * running on the same thread.
+ */
+public class RuntimeConfiguration extends Configuration {
+
+    private static final ThreadLocal<CollectionFinder> STEP_COLLECTION_FINDER = new ThreadLocal<>();
+
+    /**
+     * @param shared the configuration to share the name pool and document numbers with
+     */
+    public RuntimeConfiguration(final Configuration shared) {
+        setNamePool(shared.getNamePool());
+        setDocumentNumberAllocator(shared.getDocumentNumberAllocator());
+    }
+
+    @Override
+    public void setCollectionFinder(final CollectionFinder finder) {
+        super.setCollectionFinder(finder);
+        // set when a step starts, the finder it replaced is set again when it ends
+        if (finder instanceof XProcCollectionFinder) {
+            STEP_COLLECTION_FINDER.set(finder);
+        } else {
+            STEP_COLLECTION_FINDER.remove();
+        }
+    }
+
+    @Override
+    public CollectionFinder getCollectionFinder() {
+        final CollectionFinder finder = STEP_COLLECTION_FINDER.get();
+        return finder != null ? finder : super.getCollectionFinder();
+    }
+}
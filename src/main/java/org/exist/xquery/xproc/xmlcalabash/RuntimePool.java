@@ -0,0 +1,198 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import org.exist.security.Subject;
+
+/**
+ * Pool of idle runtimes, so that the Saxon processor, the step
+ * implementations and the configuration files are set up once
+ * rather than for every call.
+ *
+ * Runtimes are pooled by the user they were created for and the
+ * configuration key of the arguments, see {@link UserArgs#getConfigurationKey()}.
+ * The state a run leaves in a runtime, its collections, cookie stores,
+ * error and XProc data, is cleared when the runtime is given back, see
+ * {@link PooledRuntime#clearRunState()}; the documents cached by its
+ * resolver are not, so a runtime is never handed out to another user.
+ */
+public class RuntimePool {
+
+    public static final int DEFAULT_SIZE = 8;
+
+    private static final RuntimePool INSTANCE = new RuntimePool();
+
+    private final Map<Key, ConcurrentLinkedDeque<PooledRuntime>> idle = new ConcurrentHashMap<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile int size = DEFAULT_SIZE;
+
+    public static RuntimePool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Take an idle runtime created for the user and configured for the
+     * arguments, or create one.
+     *
+     * @param subject the user of the call
+     * @param userArgs the arguments of the call
+     * @return the runtime
+     *
+     * @throws SaxonApiException if the configuration cannot be created
+     * @throws IOException if a configuration file cannot be read
+     */
+    public PooledRuntime borrow(final Subject subject, final UserArgs userArgs) throws SaxonApiException, IOException {
+        final Optional<String> configuration = userArgs.getConfigurationKey();
+        if (configuration.isPresent()) {
+            final ConcurrentLinkedDeque<PooledRuntime> runtimes = idle.get(new Key(subject, configuration.get()));
+            final PooledRuntime runtime = runtimes == null ? null : runtimes.pollFirst();
+            if (runtime != null) {
+                idleCount.decrementAndGet();
+                hits.incrementAndGet();
+                return runtime;
+            }
+        }
+
+        misses.incrementAndGet();
+        return new PooledRuntime(userArgs.createConfiguration());
+    }
+
+    /**
+     * Give a runtime back to the pool after a successful run. The runtime
+     * is closed if it cannot be pooled or the pool is full.
+     *
+     * @param subject the user the runtime was borrowed for
+     * @param userArgs the arguments the runtime was borrowed for
+     * @param runtime the runtime
+     */
+    public void release(final Subject subject, final UserArgs userArgs, final PooledRuntime runtime) {
+        final Optional<String> configuration = userArgs.getConfigurationKey();
+        if (!configuration.isPresent()) {
+            runtime.close();
+            return;
+        }
+        if (idleCount.incrementAndGet() > size) {
+            idleCount.decrementAndGet();
+            runtime.close();
+            return;
+        }
+
+        runtime.clearRunState();
+        idle.computeIfAbsent(new Key(subject, configuration.get()), k -> new ConcurrentLinkedDeque<>()).offerFirst(runtime);
+    }
+
+    public void clear() {
+        trim(0);
+    }
+
+    /**
+     * Close the idle runtimes created for some configurations.
+     *
+     * @param affected tests the configuration key of the runtimes to close
+     */
+    public void evict(final Predicate<String> affected) {
+        for (final Iterator<Map.Entry<Key, ConcurrentLinkedDeque<PooledRuntime>>> it = idle.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<Key, ConcurrentLinkedDeque<PooledRuntime>> entry = it.next();
+            if (affected.test(entry.getKey().configuration)) {
+                it.remove();
+                PooledRuntime runtime;
+                while ((runtime = entry.getValue().pollLast()) != null) {
+                    idleCount.decrementAndGet();
+                    runtime.close();
+                }
+            }
+        }
+    }
+
+    private void trim(final int max) {
+        for (final ConcurrentLinkedDeque<PooledRuntime> runtimes : idle.values()) {
+            PooledRuntime runtime;
+            while (idleCount.get() > max && (runtime = runtimes.pollLast()) != null) {
+                idleCount.decrementAndGet();
+                runtime.close();
+            }
+        }
+    }
+
+    public int size() {
+        return idleCount.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getMaxSize() {
+        return size;
+    }
+
+    public void setMaxSize(final int size) {
+        this.size = size;
+        trim(size);
+    }
+
+    /**
+     * Identifies the runtimes that can be handed out for a call.
+     */
+    private static final class Key {
+        private final String user;
+        private final String configuration;
+
+        Key(final Subject subject, final String configuration) {
+            this.user = subject.getName();
+            this.configuration = configuration;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return user.equals(other.user) && configuration.equals(other.configuration);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(user, configuration);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import javax.xml.transform.TransformerFactory;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.jaxp.SaxonTransformerFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.storage.BrokerPool;
+import org.exist.xslt.TransformerFactoryAllocator;
+
+/**
+ * Access to the Saxon configuration owned by eXist-db.
+ *
+ * A Calabash runtime registers its own extension functions and URI resolver
+ * on the configuration of its processor, so it cannot use eXist's
+ * configuration object itself. Instead the runtime gets a configuration that
+ * shares eXist's name pool and document number allocator: trees built on
+ * either side are compatible with the other without copying, and names
+ * used by pipelines do not fill a new name pool for every runtime.
+ *
+ * When eXist's configuration is not shared, the runtimes share the name
+ * pool of a configuration of the module instead, so that stylesheets,
+ * queries and trees cached by one runtime can still be used by the others.
+ */
+public class SaxonConfigurations {
+
+    private static final Logger LOG = LogManager.getLogger(SaxonConfigurations.class);
+
+    private static final Configuration MODULE_CONFIGURATION = Configuration.newConfiguration();
+
+    private SaxonConfigurations() {
+    }
+
+    /**
+     * Get the Saxon configuration of the broker pool.
+     *
+     * @param brokerPool the broker pool
+     * @return the configuration, or null if eXist-db is not configured to use Saxon
+     */
+    public static Configuration getConfiguration(final BrokerPool brokerPool) {
+        final TransformerFactory factory = TransformerFactoryAllocator.getTransformerFactory(brokerPool);
+        if (factory instanceof SaxonTransformerFactory) {
+            return ((SaxonTransformerFactory) factory).getConfiguration();
+        }
+
+        LOG.warn("The XSLT transformer factory of eXist-db is not Saxon ({}), the Saxon configuration is not shared",
+                factory == null ? null : factory.getClass().getName());
+        return null;
+    }
+
+    /**
+     * Get the configuration whose name pool the runtimes share when the
+     * configuration of eXist-db is not shared. It is not used for anything
+     * else.
+     *
+     * @return the configuration of the module
+     */
+    public static Configuration getModuleConfiguration() {
+        return MODULE_CONFIGURATION;
+    }
+
+    /**
+     * Create a configuration that shares the name pool and document numbers
+     * of another.
+     *
+     * @param shared the configuration to share with
+     * @return the new configuration
+     */
+    public static Configuration newConfiguration(final Configuration shared) {
+        final Configuration configuration = Configuration.newConfiguration();
+        configuration.setNamePool(shared.getNamePool());
+        configuration.setDocumentNumberAllocator(shared.getDocumentNumberAllocator());
+        return configuration;
+    }
+}
@@ -18,67 +18,64 @@
 package org.exist.xquery.xproc.xmlcalabash;
 
 import java.io.BufferedInputStream;
-import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Optional;
 import java.util.Set;
 
-import javax.xml.transform.sax.SAXSource;
-
 import com.xmlcalabash.core.XProcConfiguration;
 import com.xmlcalabash.core.XProcException;
 import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.library.ValidateJing;
+import com.xmlcalabash.library.ValidateWithSCH;
+import com.xmlcalabash.library.ValidateWithXSD;
+import com.xmlcalabash.model.RuntimeValue;
 import com.xmlcalabash.runtime.XLibrary;
 import com.xmlcalabash.util.Input;
 import com.xmlcalabash.util.Input.Type;
 import com.xmlcalabash.util.Output;
 import com.xmlcalabash.util.TreeWriter;
 
+import net.sf.saxon.Configuration;
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
 
-import org.xml.sax.InputSource;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
 
 import static com.xmlcalabash.core.XProcConstants.NS_XPROC;
-import static com.xmlcalabash.core.XProcConstants.p_data;
 import static com.xmlcalabash.core.XProcConstants.p_declare_step;
-import static com.xmlcalabash.core.XProcConstants.p_document;
-import static com.xmlcalabash.core.XProcConstants.p_empty;
 import static com.xmlcalabash.core.XProcConstants.p_import;
 import static com.xmlcalabash.core.XProcConstants.p_input;
+import static com.xmlcalabash.core.XProcConstants.p_option;
 import static com.xmlcalabash.core.XProcConstants.p_output;
 import static com.xmlcalabash.core.XProcConstants.p_pipe;
+import static com.xmlcalabash.core.XProcConstants.p_with_option;
 import static com.xmlcalabash.core.XProcConstants.p_with_param;
-import static com.xmlcalabash.util.Input.Kind.INPUT_STREAM;
-import static com.xmlcalabash.util.Input.Type.DATA;
 import static com.xmlcalabash.util.JSONtoXML.knownFlavor;
 import static com.xmlcalabash.util.LogOptions.DIRECTORY;
 import static com.xmlcalabash.util.LogOptions.OFF;
 import static com.xmlcalabash.util.LogOptions.PLAIN;
 import static com.xmlcalabash.util.LogOptions.WRAPPED;
-import static java.io.File.createTempFile;
-import static java.lang.Long.MAX_VALUE;
-import static java.lang.String.format;
 import static java.lang.System.err;
 import static java.net.URLConnection.guessContentTypeFromName;
 import static java.net.URLConnection.guessContentTypeFromStream;
-import static java.nio.channels.Channels.newChannel;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.emptyMap;
 import static java.util.Collections.emptySet;
+import static java.util.Collections.singletonList;
 import static java.util.Collections.unmodifiableList;
 import static java.util.Collections.unmodifiableMap;
 import static java.util.Collections.unmodifiableSet;
@@ -86,6 +83,9 @@ import static net.sf.saxon.s9api.QName.fromClarkName;
 
 public class UserArgs {
 
+    private static final String IMPLICIT_PIPELINE = "cmdline";
+    private static final String IMPLICIT_STEP = "cmdlineStep";
+
     protected URI baseURI;
 
     protected boolean needsCheck = false;
@@ -97,10 +97,12 @@ public class UserArgs {
     protected boolean schemaAware = false;
     protected Boolean safeMode = null;
     protected Input config = null;
+    protected ConfigDocumentCache.Entry configDocument = null;
     protected String logStyle = null;
     protected String entityResolverClass = null;
     protected String uriResolverClass = null;
     protected Input pipeline = null;
+    protected XdmInput pipelineNode = null;
     protected List<Input> libraries = new ArrayList<>();
     protected Map<String, Output> outputs = new HashMap<>();
     protected Map<String, String> bindings = new HashMap<>();
@@ -113,6 +115,10 @@ public class UserArgs {
     protected boolean transparentJSON = false;
     protected String jsonFlavor = null;
     protected String catalogList = null;
+    protected Configuration sharedSaxonConfiguration = null;
+    protected OutputMode outputMode = OutputMode.STRING;
+    protected Map<String, OutputMode> outputModes = new HashMap<>();
+    protected boolean reportDependencies = false;
 
     public void setBaseURI(final URI baseURI) {
         this.baseURI = baseURI;
@@ -206,6 +212,23 @@ public class UserArgs {
         setConfig(new Input(inputStream, uri));
     }
 
+    /**
+     * Read the configuration given with {@link #setConfig(Input)} through the
+     * {@link ConfigDocumentCache}. Until it has been read, the configuration key
+     * is empty.
+     *
+     * @param broker the broker to read a configuration stored in the database with,
+     *     or null to read it as a URL
+     *
+     * @throws IOException if the configuration cannot be read or parsed
+     * @throws PermissionDeniedException if the current user may not read the configuration
+     */
+    public void loadConfig(final DBBroker broker) throws IOException, PermissionDeniedException {
+        if (config != null && configDocument == null) {
+            configDocument = ConfigDocumentCache.getInstance().get(broker, config);
+        }
+    }
+
     public void setLogStyle(final String logStyle) {
         this.logStyle = logStyle;
         if (!("off".equals(logStyle) || "plain".equals(logStyle)
@@ -222,6 +245,17 @@ public class UserArgs {
         this.uriResolverClass = uriResolverClass;
     }
 
+    /**
+     * Build the runtime on a Saxon configuration compatible with the given one,
+     * see {@link SaxonConfigurations}. Only used for Saxon HE without a Saxon
+     * configuration file.
+     *
+     * @param sharedSaxonConfiguration the configuration to share with, or null
+     */
+    public void setSharedSaxonConfiguration(final Configuration sharedSaxonConfiguration) {
+        this.sharedSaxonConfiguration = sharedSaxonConfiguration;
+    }
+
     public Input getPipeline() {
         checkArgs();
         return pipeline;
@@ -229,7 +263,7 @@ public class UserArgs {
 
     private void setPipeline(final Input pipeline) {
         needsCheck = true;
-        if ((this.pipeline != null) && (pipeline != null)) {
+        if ((this.pipeline != null || this.pipelineNode != null) && (pipeline != null)) {
             throw new XProcException("Multiple pipelines are not supported.");
         }
         this.pipeline = pipeline;
@@ -243,14 +277,31 @@ public class UserArgs {
         setPipeline(new Input(inputStream, uri));
     }
 
+    public void setPipeline(final XdmInput pipelineNode) {
+        needsCheck = true;
+        if ((this.pipeline != null || this.pipelineNode != null) && (pipelineNode != null)) {
+            throw new XProcException("Multiple pipelines are not supported.");
+        }
+        this.pipelineNode = pipelineNode;
+    }
+
+    public XdmInput getPipelineNode() {
+        checkArgs();
+        return pipelineNode;
+    }
+
     public void addLibrary(final String libraryURI) {
         needsCheck = true;
         libraries.add(new Input(libraryURI));
     }
 
-    public void addLibrary(final InputStream libraryInputStream, final String libraryURI) {
+    /**
+     * Add a library given as a stream, it is kept in memory by the {@link LibraryRegistry}.
+     * Relative references in the library are resolved against the given URI.
+     */
+    public void addLibrary(final InputStream libraryInputStream, final String libraryURI) throws IOException {
         needsCheck = true;
-        libraries.add(new Input(libraryInputStream, libraryURI));
+        libraries.add(new Input(LibraryRegistry.getInstance().register(libraryInputStream, libraryURI)));
     }
 
     public Map<String, Output> getOutputs() {
@@ -286,6 +337,33 @@ public class UserArgs {
         outputs.put(port, new Output(outputStream));
     }
 
+    /**
+     * @param port the output port, or null to set the mode of all ports
+     * @param mode how the documents of the port are returned
+     */
+    public void setOutputMode(final String port, final OutputMode mode) {
+        if (port == null) {
+            outputMode = mode;
+        } else {
+            outputModes.put(port, mode);
+        }
+    }
+
+    public OutputMode getOutputMode(final String port) {
+        return outputModes.getOrDefault(port, outputMode);
+    }
+
+    /**
+     * @param reportDependencies whether the resources read by the run are returned with its outputs
+     */
+    public void setReportDependencies(final boolean reportDependencies) {
+        this.reportDependencies = reportDependencies;
+    }
+
+    public boolean isReportDependencies() {
+        return reportDependencies;
+    }
+
     public void addBinding(final String prefix, final String uri) {
         if (bindings.containsKey(prefix)) {
             throw new XProcException("Duplicate prefix binding: '" + prefix + "'.");
@@ -304,7 +382,7 @@ public class UserArgs {
 
     public Set<String> getInputPorts() {
         checkArgs();
-        if (steps.size() != 0) {
+        if (hasImplicitPipelineInternal()) {
             // If we built a compound pipeline from the arguments, then there aren't any pipeline inputs
             return emptySet();
         }
@@ -313,7 +391,7 @@ public class UserArgs {
 
     public List<Input> getInputs(final String port) {
         checkArgs();
-        if (steps.size() != 0) {
+        if (hasImplicitPipelineInternal()) {
             // If we built a compound pipeline from the arguments, then there aren't any pipeline inputs
             return emptyList();
         }
@@ -352,7 +430,7 @@ public class UserArgs {
 
     public Set<String> getParameterPorts() {
         checkArgs();
-        if (steps.size() != 0) {
+        if (hasImplicitPipelineInternal()) {
             // If we built a compound pipeline from the arguments, then there aren't any pipeline parameters
             return emptySet();
         }
@@ -361,7 +439,7 @@ public class UserArgs {
 
     public Map<QName, String> getParameters(final String port) {
         checkArgs();
-        if (steps.size() != 0) {
+        if (hasImplicitPipelineInternal()) {
             // If we built a compound pipeline from the arguments, then there aren't any pipeline parameters
             return emptyMap();
         }
@@ -388,7 +466,7 @@ public class UserArgs {
 
     public Set<QName> getOptionNames() {
         checkArgs();
-        if (steps.size() != 0) {
+        if (hasImplicitPipelineInternal()) {
             // If we built a compound pipeline from the arguments, then there aren't any pipeline options
             return emptySet();
         }
@@ -397,7 +475,7 @@ public class UserArgs {
 
     public String getOption(final QName name) {
         checkArgs();
-        if (steps.size() != 0) {
+        if (hasImplicitPipelineInternal()) {
             // If we built a compound pipeline from the arguments, then there aren't any pipeline options
             return null;
         }
@@ -448,7 +526,7 @@ public class UserArgs {
      */
     public void checkArgs() {
         if (needsCheck) {
-            if (hasImplicitPipelineInternal() && (pipeline != null)) {
+            if (hasImplicitPipelineInternal() && (pipeline != null || pipelineNode != null)) {
                 throw new XProcException("You can specify a library and / or steps or a pipeline, but not both.");
             }
 
@@ -490,6 +568,10 @@ public class UserArgs {
 
             if (saxonConfig != null) {
                 config = new XProcConfiguration(saxonConfig);
+            } else if (proc == null || "he".equals(proc)) {
+                config = new XProcConfiguration(new CachingProcessor(new RuntimeConfiguration(sharedSaxonConfiguration != null
+                        ? sharedSaxonConfiguration
+                        : SaxonConfigurations.getModuleConfiguration())));
             } else if (proc != null) {
                 config = new XProcConfiguration(proc, schemaAware);
             } else {
@@ -502,36 +584,19 @@ public class UserArgs {
         }
 
         if (this.config != null) {
-            InputStream instream = null;
             try {
-                switch (this.config.getKind()) {
-                    case URI:
-                        URI uri = URI.create(this.config.getUri());
-                        instream = uri.toURL().openStream();
-                        break;
-
-                    case INPUT_STREAM:
-                        instream = this.config.getInputStream();
-                        break;
-
-                    default:
-                        throw new UnsupportedOperationException(format("Unsupported config kind '%s'", this.config.getKind()));
+                if (configDocument == null) {
+                    loadConfig(null);
                 }
 
-
-                final SAXSource source = new SAXSource(new InputSource(instream));
                 // No resolver, we don't have one yet
                 DocumentBuilder builder = config.getProcessor().newDocumentBuilder();
-                XdmNode doc = builder.build(source);
+                XdmNode doc = builder.build(configDocument.getSource());
                 config.parse(doc);
             } catch (Exception e) {
                 err.println("FATAL: Failed to parse configuration file.");
                 err.println(e);
                 //exit(3);
-            } finally {
-                if (instream != null) {
-                    instream.close();
-                }
             }
         }
 
@@ -567,6 +632,16 @@ public class UserArgs {
             config.profile = profile;
         }
 
+        if (config.getProcessor() instanceof CachingProcessor && !config.safeMode) {
+            // the validation steps keep compiled schemas in the processor's cache
+            replaceStep(config, CachingValidateWithXSD.TYPE, ValidateWithXSD.class, CachingValidateWithXSD.class);
+            replaceStep(config, CachingValidateJing.TYPE, ValidateJing.class, CachingValidateJing.class);
+            replaceStep(config, CachingValidateWithSCH.TYPE, ValidateWithSCH.class, CachingValidateWithSCH.class);
+        }
+
+        // xmlcalabash:for-each, runs its pipeline in parallel
+        config.implementations.putIfAbsent(ParallelForEach.TYPE, ParallelForEach.class);
+
         config.extensionValues |= extensionValues;
         config.xpointerOnText |= allowXPointerOnText;
         config.transparentJSON |= transparentJSON;
@@ -578,6 +653,64 @@ public class UserArgs {
         return config;
     }
 
+    /**
+     * Replaces the implementation of a step, unless the Calabash configuration
+     * file configured an implementation of its own.
+     */
+    private static void replaceStep(final XProcConfiguration config, final QName type, final Class<?> implementation,
+            final Class<?> replacement) {
+        if (config.implementations.get(type) == implementation) {
+            config.implementations.put(type, replacement);
+        }
+    }
+
+    /**
+     * Describes the settings that {@link #createConfiguration()} takes into
+     * account, so that two argument sets with the same key produce equivalent
+     * configurations.
+     *
+     * @return the key, or empty if the configuration depends on something
+     *     that cannot be compared, such as a stream or a profile output, or
+     *     if the configuration document has not been read, see {@link #loadConfig(DBBroker)}
+     */
+    public Optional<String> getConfigurationKey() {
+        checkArgs();
+
+        if (profile != null
+                || (saxonConfig != null && saxonConfig.getKind() != Input.Kind.URI)
+                || (config != null && configDocument == null)) {
+            return Optional.empty();
+        }
+
+        final StringBuilder key = new StringBuilder();
+        key.append("saxonProcessor=").append(saxonProcessor);
+        key.append(";saxonConfig=").append(saxonConfig == null ? null : saxonConfig.getUri());
+        key.append(";sharedSaxonConfig=").append(sharedSaxonConfiguration == null ? null : System.identityHashCode(sharedSaxonConfiguration));
+        key.append(";schemaAware=").append(schemaAware);
+        key.append(";safeMode=").append(safeMode);
+        key.append(configurationKeyPart(configDocument));
+        key.append("logStyle=").append(logStyle);
+        key.append(";entityResolver=").append(entityResolverClass);
+        key.append(";uriResolver=").append(uriResolverClass);
+        key.append(";debug=").append(debug);
+        key.append(";extensionValues=").append(extensionValues);
+        key.append(";xpointerOnText=").append(allowXPointerOnText);
+        key.append(";transparentJSON=").append(transparentJSON);
+        key.append(";jsonFlavor=").append(jsonFlavor);
+        key.append(";useXslt10=").append(useXslt10);
+        return Optional.of(key.toString());
+    }
+
+    /**
+     * The part of the configuration key that identifies a configuration document and its version.
+     *
+     * @param configDocument the configuration document, or null
+     * @return the part of the key
+     */
+    static String configurationKeyPart(final ConfigDocumentCache.Entry configDocument) {
+        return ";config=" + (configDocument == null ? null : configDocument.getKey()) + ";";
+    }
+
     /**
      * Helper method to prevent an endless-loop when using
      * {@link #hasImplicitPipeline} from within {@link #checkArgs()}
@@ -598,33 +731,27 @@ public class UserArgs {
         // This is a bit of a hack...
         if (steps.size() == 0 && libraries.size() > 0) {
             try {
-                final Input library = libraries.get(0);
-                if (library.getKind() == INPUT_STREAM) {
-                    final Path tempLibrary = Files.createTempFile("calabashLibrary", "tmp");
-                    try (final InputStream libraryInputStream = library.getInputStream()) {
-                        Files.copy(libraryInputStream, tempLibrary);
-                        libraries.set(0, new Input(tempLibrary.toUri().toASCIIString()));
-                    }
-                }
-
                 final XLibrary xLibrary = runtime.loadLibrary(libraries.get(0));
                 curStep.setName(xLibrary.getFirstPipelineType().getClarkName());
                 curStep.checkArgs();
-                steps.add(curStep);
             } catch (SaxonApiException sae) {
                 throw new XProcException(sae);
             }
         }
 
+        final List<StepArgs> implicitSteps = implicitSteps();
+
         final TreeWriter tree = new TreeWriter(runtime);
         tree.startDocument(runtime.getStaticBaseURI());
         tree.addStartElement(p_declare_step);
         tree.addAttribute(new QName("version"), "1.0");
+        tree.addAttribute(new QName("name"), IMPLICIT_PIPELINE);
         tree.startContent();
 
         tree.addStartElement(p_input);
         tree.addAttribute(new QName("port"), "source");
         tree.addAttribute(new QName("sequence"), "true");
+        tree.addAttribute(new QName("primary"), "true");
         tree.startContent();
         tree.addEndElement();
 
@@ -634,13 +761,34 @@ public class UserArgs {
         tree.startContent();
         tree.addEndElement();
 
+        // the inputs, options and parameters of the steps are passed to the pipeline
+        // on each run, so that the pipeline only depends on their names
+        for (int stepNum = 1; stepNum <= implicitSteps.size(); stepNum++) {
+            final StepArgs step = implicitSteps.get(stepNum - 1);
+            for (final String port : sortedPorts(step.inputs.keySet())) {
+                tree.addStartElement(p_input);
+                tree.addAttribute(new QName("port"), implicitInputPort(stepNum, port));
+                tree.addAttribute(new QName("sequence"), "true");
+                tree.addAttribute(new QName("primary"), "false");
+                tree.startContent();
+                tree.addEndElement();
+            }
+            final int optionCount = step.options.size() + step.params.values().stream().mapToInt(Map::size).sum();
+            for (int optionNum = 1; optionNum <= optionCount; optionNum++) {
+                tree.addStartElement(p_option);
+                tree.addAttribute(new QName("name"), implicitOption(stepNum, optionNum).getLocalName());
+                tree.startContent();
+                tree.addEndElement();
+            }
+        }
+
         // This is a hack too. If there are no outputs, fake one.
         // Implicit pipelines default to having a single primary output port names "result"
         if (outputs.size() == 0) {
             outputs.put("result", new Output("-"));
         }
 
-        final String lastStepName = "cmdlineStep" + steps.size();
+        final String lastStepName = IMPLICIT_STEP + implicitSteps.size();
         for (String port : outputs.keySet()) {
             if (port == null) {
                 port = "result";
@@ -657,114 +805,45 @@ public class UserArgs {
         }
 
         for (final Input library : libraries) {
-            switch (library.getKind()) {
-                case URI:
-                    tree.addStartElement(p_import);
-                    tree.addAttribute(new QName("href"), library.getUri());
-                    tree.startContent();
-                    tree.addEndElement();
-                    break;
-
-                case INPUT_STREAM:
-                    final InputStream libraryInputStream = library.getInputStream();
-                    File tempLibrary = createTempFile("calabashLibrary", null);
-                    tempLibrary.deleteOnExit();
-                    FileOutputStream fileOutputStream = new FileOutputStream(tempLibrary);
-                    fileOutputStream.getChannel().transferFrom(newChannel(libraryInputStream), 0, MAX_VALUE);
-                    fileOutputStream.close();
-                    libraryInputStream.close();
-
-                    tree.addStartElement(p_import);
-                    tree.addAttribute(new QName("href"), tempLibrary.toURI().toASCIIString());
-                    tree.startContent();
-                    tree.addEndElement();
-                    break;
-
-                default:
-                    throw new UnsupportedOperationException(format("Unsupported library kind '%s'", library.getKind()));
-            }
+            tree.addStartElement(p_import);
+            tree.addAttribute(new QName("href"), library.getUri());
+            tree.startContent();
+            tree.addEndElement();
         }
 
-        int stepNum = 0;
-        for (StepArgs step : steps) {
-            stepNum++;
+        for (int stepNum = 1; stepNum <= implicitSteps.size(); stepNum++) {
+            final StepArgs step = implicitSteps.get(stepNum - 1);
 
             tree.addStartElement(step.stepName);
-            tree.addAttribute(new QName("name"), "cmdlineStep" + stepNum);
-
-            for (QName optname : step.options.keySet()) {
-                tree.addAttribute(optname, step.options.get(optname));
-            }
-
+            tree.addAttribute(new QName("name"), IMPLICIT_STEP + stepNum);
             tree.startContent();
 
-            for (final String port : step.inputs.keySet()) {
+            for (final String port : sortedPorts(step.inputs.keySet())) {
                 tree.addStartElement(p_input);
                 tree.addAttribute(new QName("port"), (port == null) ? "source" : port);
                 tree.startContent();
+                tree.addStartElement(p_pipe);
+                tree.addAttribute(new QName("step"), IMPLICIT_PIPELINE);
+                tree.addAttribute(new QName("port"), implicitInputPort(stepNum, port));
+                tree.startContent();
+                tree.addEndElement();
+                tree.addEndElement();
+            }
 
-                for (final Input input : step.inputs.get(port)) {
-                    final QName qname = (input.getType() == DATA) ? p_data : p_document;
-                    switch (input.getKind()) {
-                        case URI:
-                            final String uri = input.getUri();
-
-                            if ("p:empty".equals(uri)) {
-                                tree.addStartElement(p_empty);
-                                tree.startContent();
-                                tree.addEndElement();
-                            } else {
-                                tree.addStartElement(qname);
-                                tree.addAttribute(new QName("href"), uri);
-                                if (input.getType() == DATA) {
-                                    tree.addAttribute(new QName("content-type"), input.getContentType());
-                                }
-                                tree.startContent();
-                                tree.addEndElement();
-                            }
-                            break;
-
-                        case INPUT_STREAM:
-                            final InputStream inputStream = input.getInputStream();
-                            if (System.in.equals(inputStream)) {
-                                tree.addStartElement(qname);
-                                tree.addAttribute(new QName("href"), "-");
-                                if (input.getType() == DATA) {
-                                    tree.addAttribute(new QName("content-type"), input.getContentType());
-                                }
-                                tree.startContent();
-                                tree.addEndElement();
-                            } else {
-                                final File tempInput = createTempFile("calabashInput", null);
-                                tempInput.deleteOnExit();
-                                final FileOutputStream fileOutputStream = new FileOutputStream(tempInput);
-                                fileOutputStream.getChannel().transferFrom(newChannel(inputStream), 0, MAX_VALUE);
-                                fileOutputStream.close();
-                                inputStream.close();
-
-                                tree.addStartElement(qname);
-                                tree.addAttribute(new QName("href"), tempInput.toURI().toASCIIString());
-                                if (input.getType() == DATA) {
-                                    tree.addAttribute(new QName("content-type"), input.getContentType());
-                                }
-                                tree.startContent();
-                                tree.addEndElement();
-                            }
-                            break;
-
-                        default:
-                            throw new UnsupportedOperationException(format("Unsupported input kind '%s'", input.getKind()));
-                    }
+            int optionNum = 0;
+            for (final QName optname : sortedNames(step.options.keySet())) {
+                tree.addStartElement(p_with_option);
+                if (!optname.getPrefix().isEmpty() || !optname.getNamespaceURI().isEmpty()) {
+                    tree.addNamespace(optname.getPrefix(), optname.getNamespaceURI());
                 }
+                tree.addAttribute(new QName("name"), optname.toString());
+                tree.addAttribute(new QName("select"), "$" + implicitOption(stepNum, ++optionNum).getLocalName());
+                tree.startContent();
                 tree.addEndElement();
             }
 
-            for (final String port : step.params.keySet()) {
-                for (final QName pname : step.params.get(port).keySet()) {
-                    String value = step.params.get(port).get(pname);
-                    // Double single quotes to escape them between the enclosing single quotes
-                    value = "'" + value.replace("'", "''") + "'";
-
+            for (final String port : sortedPorts(step.params.keySet())) {
+                for (final QName pname : sortedNames(step.params.get(port).keySet())) {
                     tree.addStartElement(p_with_param);
                     if (!"*".equals(port)) {
                         tree.addAttribute(new QName("port"), port);
@@ -773,14 +852,13 @@ public class UserArgs {
                         tree.addNamespace(pname.getPrefix(), pname.getNamespaceURI());
                     }
                     tree.addAttribute(new QName("name"), pname.toString());
-                    tree.addAttribute(new QName("select"), value);
+                    tree.addAttribute(new QName("select"), "$" + implicitOption(stepNum, ++optionNum).getLocalName());
                     tree.startContent();
                     tree.addEndElement();
                 }
             }
 
             tree.addEndElement();
-            tree.endDocument();
         }
 
         tree.addEndElement();
@@ -789,6 +867,132 @@ public class UserArgs {
         return tree.getResult();
     }
 
+    /**
+     * Describes the implicit pipeline built by {@link #getImplicitPipeline(XProcRuntime)}:
+     * the steps with the names of their input ports, options and parameters,
+     * the libraries and the output ports. Two argument sets with the same shape
+     * produce the same pipeline, which only differs in what is passed to it
+     * by {@link #getImplicitInputs()} and {@link #getImplicitOptions()}.
+     *
+     * @return the shape
+     */
+    public String getImplicitPipelineShape() {
+        checkArgs();
+
+        final StringBuilder shape = new StringBuilder("libraries=");
+        for (final Input library : libraries) {
+            shape.append(library.getUri()).append(' ');
+        }
+
+        shape.append(";outputs=").append(outputs.isEmpty() ? "result" : sortedPorts(outputs.keySet()));
+
+        // without steps the step is the first pipeline of the library
+        for (final StepArgs step : implicitSteps()) {
+            shape.append(";step=").append(steps.isEmpty() ? null : step.stepName.getClarkName());
+            shape.append(";inputs=").append(sortedPorts(step.inputs.keySet()));
+            shape.append(";options=");
+            for (final QName optname : sortedNames(step.options.keySet())) {
+                shape.append(optname.getClarkName()).append(' ');
+            }
+            shape.append(";params=");
+            for (final String port : sortedPorts(step.params.keySet())) {
+                for (final QName pname : sortedNames(step.params.get(port).keySet())) {
+                    shape.append(port).append('@').append(pname.getClarkName()).append(' ');
+                }
+            }
+        }
+        return shape.toString();
+    }
+
+    /**
+     * The documents given for the inputs of the steps of the implicit pipeline.
+     *
+     * @return the documents by input port of the implicit pipeline
+     */
+    public Map<String, List<Input>> getImplicitInputs() {
+        checkArgs();
+        if (!hasImplicitPipelineInternal()) {
+            // the inputs belong to the pipeline itself, see getInputs(String)
+            return emptyMap();
+        }
+
+        final Map<String, List<Input>> implicitInputs = new HashMap<>();
+        final List<StepArgs> implicitSteps = implicitSteps();
+        for (int stepNum = 1; stepNum <= implicitSteps.size(); stepNum++) {
+            final StepArgs step = implicitSteps.get(stepNum - 1);
+            for (final String port : sortedPorts(step.inputs.keySet())) {
+                implicitInputs.put(implicitInputPort(stepNum, port), step.inputs.get(port));
+            }
+        }
+        return implicitInputs;
+    }
+
+    /**
+     * The values given for the options and parameters of the steps of the implicit pipeline,
+     * with the namespace bindings given for the steps, so that e.g. match patterns may use them.
+     *
+     * @return the values by option name of the implicit pipeline
+     */
+    public Map<QName, RuntimeValue> getImplicitOptions() {
+        checkArgs();
+        if (!hasImplicitPipelineInternal()) {
+            // the options belong to the pipeline itself, see getOption(QName)
+            return emptyMap();
+        }
+
+        final Map<QName, RuntimeValue> implicitOptions = new HashMap<>();
+        final List<StepArgs> implicitSteps = implicitSteps();
+        for (int stepNum = 1; stepNum <= implicitSteps.size(); stepNum++) {
+            final StepArgs step = implicitSteps.get(stepNum - 1);
+            int optionNum = 0;
+            for (final QName optname : sortedNames(step.options.keySet())) {
+                implicitOptions.put(implicitOption(stepNum, ++optionNum), implicitValue(step.options.get(optname)));
+            }
+            for (final String port : sortedPorts(step.params.keySet())) {
+                for (final QName pname : sortedNames(step.params.get(port).keySet())) {
+                    implicitOptions.put(implicitOption(stepNum, ++optionNum), implicitValue(step.params.get(port).get(pname)));
+                }
+            }
+        }
+        return implicitOptions;
+    }
+
+    public List<Input> getLibraries() {
+        checkArgs();
+        return unmodifiableList(libraries);
+    }
+
+    /**
+     * @return the steps of the implicit pipeline, without steps the first pipeline of the library
+     */
+    private List<StepArgs> implicitSteps() {
+        return steps.isEmpty() ? singletonList(curStep) : steps;
+    }
+
+    private static String implicitInputPort(final int stepNum, final String port) {
+        return IMPLICIT_STEP + stepNum + "-" + (port == null ? "source" : port);
+    }
+
+    private static QName implicitOption(final int stepNum, final int optionNum) {
+        return new QName("", IMPLICIT_STEP + stepNum + "-option" + optionNum);
+    }
+
+    private RuntimeValue implicitValue(final String value) {
+        return new RuntimeValue(value, null, new Hashtable<>(bindings));
+    }
+
+    private static List<String> sortedPorts(final Set<String> ports) {
+        final List<String> sorted = new ArrayList<>(ports);
+        sorted.sort(Comparator.nullsFirst(Comparator.naturalOrder()));
+        return sorted;
+    }
+
+    private static List<QName> sortedNames(final Set<QName> names) {
+        final List<QName> sorted = new ArrayList<>(names);
+        sorted.sort(Comparator.comparing(QName::getClarkName));
+        return sorted;
+    }
+
     private String fixUpURI(final String uri) {
 
         if (baseURI == null) {
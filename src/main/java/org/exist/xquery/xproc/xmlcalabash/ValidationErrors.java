@@ -0,0 +1,97 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.net.URI;
+
+import net.sf.saxon.s9api.QName;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import com.xmlcalabash.core.XProcConstants;
+import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.runtime.XAtomicStep;
+import com.xmlcalabash.util.TreeWriter;
+
+/**
+ * Reports the errors of a validation step as <code>c:error</code> documents,
+ * like the validation steps of Calabash do, and remembers the first error.
+ */
+class ValidationErrors implements ErrorHandler {
+
+    private static final QName _line = new QName("line");
+    private static final QName _column = new QName("column");
+
+    private final XProcRuntime runtime;
+    private final XAtomicStep step;
+    private final URI docBaseURI;
+
+    private SAXParseException error = null;
+
+    ValidationErrors(final XProcRuntime runtime, final XAtomicStep step, final URI docBaseURI) {
+        this.runtime = runtime;
+        this.step = step;
+        this.docBaseURI = docBaseURI;
+    }
+
+    /**
+     * @return the first error reported, or null if the document is valid
+     */
+    SAXParseException getError() {
+        return error;
+    }
+
+    @Override
+    public void warning(final SAXParseException e) {
+        if (runtime.getShowMessages()) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    @Override
+    public void error(final SAXParseException e) throws SAXException {
+        if (runtime.getShowMessages()) {
+            System.err.println(e.getMessage());
+        }
+
+        final TreeWriter treeWriter = new TreeWriter(runtime);
+        treeWriter.startDocument(docBaseURI);
+        treeWriter.addStartElement(XProcConstants.c_error);
+        if (e.getLineNumber() != -1) {
+            treeWriter.addAttribute(_line, Integer.toString(e.getLineNumber()));
+        }
+        if (e.getColumnNumber() != -1) {
+            treeWriter.addAttribute(_column, Integer.toString(e.getColumnNumber()));
+        }
+        treeWriter.startContent();
+        treeWriter.addText(e.toString());
+        treeWriter.addEndElement();
+        treeWriter.endDocument();
+        step.reportError(treeWriter.getResult());
+
+        if (error == null) {
+            error = e;
+        }
+    }
+
+    @Override
+    public void fatalError(final SAXParseException e) throws SAXException {
+        error(e);
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.security.AbstractAccount;
+import org.exist.security.Account;
+import org.exist.security.SecurityManager;
+import org.exist.security.Subject;
+import org.exist.security.internal.SubjectAccreditedImpl;
+import org.exist.storage.DBBroker;
+import org.exist.storage.StartupTrigger;
+import org.exist.storage.txn.Txn;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XQueryContext;
+
+import static org.exist.xquery.xproc.xmlcalabash.XProcXmlCalabashModule.PARAM_PRELOAD_CATALOG;
+import static org.exist.xquery.xproc.xmlcalabash.XProcXmlCalabashModule.PARAM_PRELOAD_PIPELINE;
+import static org.exist.xquery.xproc.xmlcalabash.XProcXmlCalabashModule.PARAM_PRELOAD_STYLESHEET;
+import static org.exist.xquery.xproc.xmlcalabash.XProcXmlCalabashModule.PARAM_WARM_UP_RUNS;
+import static org.exist.xquery.xproc.xmlcalabash.XProcXmlCalabashModule.PARAM_WARM_UP_USER;
+
+/**
+ * Compiles the pipelines and stylesheets listed in the module parameters
+ * when the database starts, so that the first calls after a restart do not
+ * have to. Registered in conf.xml with
+ * {@code <trigger class="org.exist.xquery.xproc.xmlcalabash.WarmUpTrigger"/>}
+ * in {@code <startup><triggers>}.
+ *
+ * The parameters of the module, and those of the trigger, may list:
+ * <ul>
+ *     <li>{@code preload-pipeline}: a pipeline stored in the database, loaded
+ *     into the {@link PipelineCache} and run {@code warm-up-runs} times
+ *     (default 0) without inputs</li>
+ *     <li>{@code preload-stylesheet}: a stylesheet compiled into the stylesheet
+ *     cache shared by the runtimes, see {@link CachingProcessor}</li>
+ *     <li>{@code preload-catalog}: a catalog list parsed into the {@link CatalogRegistry}</li>
+ * </ul>
+ *
+ * Each parameter may be given more than once. Pipelines are keyed by their
+ * URI, which should be written the way the calls write it, and by the user,
+ * so the warm-up runs as the user given by {@code warm-up-user} (default
+ * guest); a user with DBA rights is not accepted and guest is used instead.
+ * The time each took is logged.
+ *
+ * The sizes of the caches and pools given to the trigger are kept when the
+ * module is loaded afterwards, see {@link XProcXmlCalabashModule#configure(Map)}.
+ */
+public class WarmUpTrigger implements StartupTrigger {
+
+    private static final Logger LOG = LogManager.getLogger(WarmUpTrigger.class);
+
+    @Override
+    public void execute(final DBBroker sysBroker, final Txn transaction, final Map<String, List<? extends Object>> params) {
+        final Map<String, List<? extends Object>> parameters = new HashMap<>(moduleParameters(sysBroker));
+        if (params != null) {
+            parameters.putAll(params);
+        }
+
+        XProcXmlCalabashModule.configure(parameters);
+
+        final Subject subject = warmUpSubject(sysBroker, parameters);
+        sysBroker.pushSubject(subject);
+        try {
+            warmUp(sysBroker, parameters);
+        } finally {
+            sysBroker.popSubject();
+        }
+    }
+
+    private static void warmUp(final DBBroker broker, final Map<String, List<? extends Object>> parameters) {
+        final boolean sharedSaxonConfiguration = XProcXmlCalabashModule.isSharedSaxonConfiguration(parameters);
+        final int runs = XProcXmlCalabashModule.intParameter(parameters, PARAM_WARM_UP_RUNS, 0);
+
+        final URI staticBaseURI = URI.create(XmldbURI.EMBEDDED_SERVER_URI_PREFIX + XmldbURI.ROOT_COLLECTION + "/");
+        final long start = System.nanoTime();
+        int ready = 0;
+
+        for (final String catalogList : values(parameters, PARAM_PRELOAD_CATALOG)) {
+            final long time = System.nanoTime();
+            CatalogRegistry.getInstance().get(catalogList);
+            LOG.info("Preloaded catalogs '{}' in {} ms", catalogList, (System.nanoTime() - time) / 1000000);
+            ready++;
+        }
+
+        for (final String stylesheet : values(parameters, PARAM_PRELOAD_STYLESHEET)) {
+            final long time = System.nanoTime();
+            try {
+                XProcRunner.preloadStylesheet(broker, staticBaseURI, newUserArgs(broker, sharedSaxonConfiguration), stylesheet);
+                LOG.info("Preloaded stylesheet '{}' in {} ms", stylesheet, (System.nanoTime() - time) / 1000000);
+                ready++;
+            } catch (final Exception e) {
+                LOG.error("Could not preload stylesheet '{}': {}", stylesheet, e.getMessage(), e);
+            }
+        }
+
+        for (final String pipeline : values(parameters, PARAM_PRELOAD_PIPELINE)) {
+            final long time = System.nanoTime();
+            try {
+                final UserArgs userArgs = newUserArgs(broker, sharedSaxonConfiguration);
+                userArgs.setPipeline(pipeline);
+                if (!XProcRunner.preload(broker, staticBaseURI, userArgs)) {
+                    LOG.warn("Pipeline '{}' cannot be preloaded, only pipelines stored in the database are cached", pipeline);
+                    continue;
+                }
+                final long compiled = System.nanoTime();
+
+                for (int i = 0; i < runs; i++) {
+                    final UserArgs runArgs = newUserArgs(broker, sharedSaxonConfiguration);
+                    runArgs.setPipeline(pipeline);
+                    try (final RunResult result = XProcRunner.run(broker, staticBaseURI, null, runArgs)) {
+                        for (final PortOutput output : result.getOutputs().values()) {
+                            output.discard();
+                        }
+                    }
+                }
+
+                LOG.info("Preloaded pipeline '{}' in {} ms, compiled in {} ms", pipeline,
+                        (System.nanoTime() - time) / 1000000, (compiled - time) / 1000000);
+                ready++;
+            } catch (final Exception e) {
+                LOG.error("Could not preload pipeline '{}': {}", pipeline, e.getMessage(), e);
+            }
+        }
+
+        if (ready > 0) {
+            LOG.info("XProc warm-up of {} items took {} ms", ready, (System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    /**
+     * @return the user the warm-up runs as, guest unless another user without DBA rights is configured
+     */
+    private static Subject warmUpSubject(final DBBroker broker, final Map<String, List<? extends Object>> parameters) {
+        final SecurityManager securityManager = broker.getBrokerPool().getSecurityManager();
+        final String name = XProcXmlCalabashModule.stringParameter(parameters, PARAM_WARM_UP_USER, "");
+        if (name.isEmpty()) {
+            return securityManager.getGuestSubject();
+        }
+
+        final Account account = securityManager.getAccount(name);
+        if (account == null) {
+            LOG.warn("User '{}' given by '{}' does not exist, warming up as guest", name, PARAM_WARM_UP_USER);
+            return securityManager.getGuestSubject();
+        }
+        if (securityManager.hasAdminPrivileges(account)) {
+            LOG.warn("User '{}' given by '{}' has DBA rights, warming up as guest", name, PARAM_WARM_UP_USER);
+            return securityManager.getGuestSubject();
+        }
+        return new SubjectAccreditedImpl((AbstractAccount) account, null);
+    }
+
+    private static UserArgs newUserArgs(final DBBroker broker, final boolean sharedSaxonConfiguration) {
+        final UserArgs userArgs = new UserArgs();
+        // like ProcessFunction, so that the calls use the same runtimes
+        if (sharedSaxonConfiguration) {
+            userArgs.setSharedSaxonConfiguration(SaxonConfigurations.getConfiguration(broker.getBrokerPool()));
+        }
+        return userArgs;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, List<? extends Object>> moduleParameters(final DBBroker broker) {
+        final Map<String, Map<String, List<? extends Object>>> modules =
+                (Map<String, Map<String, List<? extends Object>>>) broker.getConfiguration().getProperty(XQueryContext.PROPERTY_MODULE_PARAMETERS);
+        final Map<String, List<? extends Object>> parameters = modules == null ? null : modules.get(XProcXmlCalabashModule.NAMESPACE_URI);
+        return parameters == null ? Collections.emptyMap() : parameters;
+    }
+
+    private static List<String> values(final Map<String, List<? extends Object>> parameters, final String name) {
+        final List<? extends Object> values = parameters.get(name);
+        if (values == null) {
+            return Collections.emptyList();
+        }
+        final List<String> strings = new ArrayList<>(values.size());
+        for (final Object value : values) {
+            final String string = value.toString().trim();
+            if (!string.isEmpty()) {
+                strings.add(string);
+            }
+        }
+        return strings;
+    }
+}
@@ -27,19 +27,27 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 
-import net.sf.saxon.Configuration;
 import net.sf.saxon.s9api.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import org.exist.EXistException;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
 import org.exist.storage.DBBroker;
+import org.exist.util.LockException;
 import org.exist.util.io.Resource;
+import org.exist.xmldb.XmldbURI;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
 import com.xmlcalabash.core.XProcConfiguration;
 import com.xmlcalabash.core.XProcException;
@@ -62,57 +70,370 @@ public class XProcRunner {
 
     private static Logger logger = LogManager.getLogger(XProcRunner.class.getName());
 
+    /**
+     * Run a pipeline and serialize its outputs.
+     *
+     * @param defaultIn the document for the primary input port, may be null
+     * @return the serialized documents of each output port
+     *
+     * @deprecated use {@link #run(URI, DBBroker, UserArgs, XdmInput)}, which passes
+     *     documents without serializing them, and can return them as trees
+     */
+    @Deprecated
     public static final Map<String, ByteArrayOutputStream> run(
         URI staticBaseURI,
         DBBroker broker,
         UserArgs userArgs,
         InputStream defaultIn
     ) throws Exception {
-        //final XProcConfiguration config = new XProcConfiguration();
-        final XProcConfiguration config = userArgs.createConfiguration();
+        final Map<String, ByteArrayOutputStream> serialized = new HashMap<>();
+        try (final RunResult result = run(staticBaseURI, broker, userArgs, defaultIn == null ? null : XdmInput.of(defaultIn))) {
+            for (final Map.Entry<String, PortOutput> output : result.getOutputs().entrySet()) {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                output.getValue().writeTo(bytes);
+                serialized.put(output.getKey(), bytes);
+            }
+        }
+        return serialized;
+    }
 
+    /**
+     * Run a pipeline.
+     *
+     * @param defaultIn the document for the primary input port, may be null
+     * @return the outputs of the run, which the caller closes once it has read them
+     */
+    public static final RunResult run(
+        URI staticBaseURI,
+        DBBroker broker,
+        UserArgs userArgs,
+        XdmInput defaultIn
+    ) throws Exception {
         //config.debug = true;
         //config.catalogs.add(userArgs.catalogList);
         //config.implementations.forEach((qName, aClass) -> System.out.println(qName+" "+aClass));
 
-        return run(broker, staticBaseURI, defaultIn, userArgs, config);
+        return run(broker, staticBaseURI, defaultIn, userArgs, null);
     }
 
-    protected static Map<String, ByteArrayOutputStream> run(
+    /**
+     * Run a pipeline, and record the resources it read.
+     *
+     * @param resources receives the database documents and URLs read by the run,
+     *     including those the cached artifacts it used were built from
+     * @return the outputs of the run, which the caller closes once it has read them
+     */
+    public static final RunResult run(
+        URI staticBaseURI,
+        DBBroker broker,
+        UserArgs userArgs,
+        XdmInput defaultIn,
+        ResolvedResources resources
+    ) throws Exception {
+        return run(broker, staticBaseURI, defaultIn, userArgs, resources);
+    }
+
+    protected static RunResult run(
         DBBroker broker,
         URI staticBaseURI,
-        InputStream defaultIn,
+        XdmInput defaultIn,
+        UserArgs userArgs
+    ) throws SaxonApiException, IOException, URISyntaxException, PermissionDeniedException, EXistException, LockException, SAXException {
+        return run(broker, staticBaseURI, defaultIn, userArgs, null);
+    }
+
+    private static RunResult run(
+        DBBroker broker,
+        URI staticBaseURI,
+        XdmInput defaultIn,
         UserArgs userArgs,
-        XProcConfiguration config
-    ) throws SaxonApiException, IOException, URISyntaxException {
+        ResolvedResources resources
+    ) throws SaxonApiException, IOException, URISyntaxException, PermissionDeniedException, EXistException, LockException, SAXException {
+
+        // the configuration key depends on the version of the configuration document
+        userArgs.loadConfig(broker);
+
+        final PipelineCache cache = PipelineCache.getInstance();
+        final RuntimePool pool = RuntimePool.getInstance();
+        final Subject subject = broker.getCurrentSubject();
+        final PipelineCache.Key key = cacheKey(staticBaseURI, subject, userArgs);
+
+        CompiledPipeline borrowed = key == null ? null : cache.borrow(broker, key);
+
+        final PooledRuntime runtime;
+        final XPipeline pipeline;
+        if (borrowed != null) {
+            runtime = borrowed.getRuntime();
+            final EXistURIResolver resolver = setResolver(broker, runtime, staticBaseURI, userArgs);
+            if (resolver != null) {
+                resolver.getResources().addCached(borrowed.getDependencies());
+            }
 
-        final XProcRuntime runtime = new XProcRuntime(config);
+            pipeline = borrowed.newInstance();
+        } else if (key != null) {
+            borrowed = compile(broker, key, staticBaseURI, userArgs);
+            runtime = borrowed.getRuntime();
+            pipeline = borrowed.newInstance();
+        } else {
+            runtime = pool.borrow(subject, userArgs);
+            try {
+                setResolver(broker, runtime, staticBaseURI, userArgs);
+
+                pipeline = load(runtime, userArgs, runtime.getConfiguration());
+            } catch (final SaxonApiException | IOException | URISyntaxException | RuntimeException e) {
+                runtime.close();
+                throw e;
+            }
+        }
 
-        if (staticBaseURI != null) {
-            EXistURIResolver resolver = new EXistURIResolver(broker.getBrokerPool(), staticBaseURI.toString(), userArgs.catalogList);
+        final CompiledPipeline compiled = borrowed;
+        boolean completed = false;
+        try {
+            final Map<String, PortOutput> outputs = run(broker, runtime, pipeline, staticBaseURI, defaultIn, userArgs, runtime.getConfiguration());
+            recordResources(runtime, key, resources);
+            completed = true;
+            // the pipes of the outputs are read from the runtime, which is only given back once they have been
+            return new RunResult(outputs, () -> {
+                if (compiled != null) {
+                    cache.release(compiled);
+                } else {
+                    pool.release(subject, userArgs, runtime);
+                }
+            });
+        } finally {
+            if (!completed) {
+                if (compiled != null) {
+                    compiled.close();
+                } else {
+                    runtime.close();
+                }
+            }
+        }
+    }
 
-            runtime.setURIResolver(resolver);
-            //runtime.setEntityResolver(resolver);
+    /**
+     * Hand the resources read by a run to the caller, and log how many there were.
+     */
+    private static void recordResources(final XProcRuntime runtime, final PipelineCache.Key key, final ResolvedResources resources) {
+        final EXistURIResolver resolver = EXistURIResolver.getResolver(runtime.getProcessor().getUnderlyingConfiguration());
+        if (resolver == null) {
+            return;
+        }
+
+        final ResolvedResources read = resolver.getResources();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Run of '{}' read {} resources {} times", key == null ? "pipeline" : key.getUri(), read.size(), read.getReads());
+        }
+        if (resources != null) {
+            resources.addAll(read);
+        }
+    }
+
+    /**
+     * Load a pipeline into a runtime from the {@link RuntimePool}, and record the
+     * database documents it was loaded from.
+     */
+    private static CompiledPipeline compile(
+        final DBBroker broker,
+        final PipelineCache.Key key,
+        final URI staticBaseURI,
+        final UserArgs userArgs
+    ) throws SaxonApiException, IOException, URISyntaxException, PermissionDeniedException {
+        final PooledRuntime runtime = RuntimePool.getInstance().borrow(broker.getCurrentSubject(), userArgs);
+        try {
+            final EXistURIResolver resolver = setResolver(broker, runtime, staticBaseURI, userArgs);
+
+            final XPipeline pipeline = load(runtime, userArgs, runtime.getConfiguration());
+
+            final Dependencies dependencies = resolver.getDependencies().copy();
+            if (!key.isImplicit()) {
+                dependencies.addDocument(broker, EXistURIResolver.toDatabaseURI(key.getUri()));
+            }
+            final CompiledPipeline compiled = new CompiledPipeline(key, runtime, pipeline, dependencies);
+            PipelineCache.getInstance().register(compiled);
+            return compiled;
+        } catch (final SaxonApiException | IOException | URISyntaxException | PermissionDeniedException | RuntimeException e) {
+            runtime.close();
+            throw e;
+        }
+    }
 
-            runtime.setStaticBaseURI(staticBaseURI);
-            runtime.setBaseURI(staticBaseURI);
+    /**
+     * Load a pipeline into the {@link PipelineCache} without running it,
+     * unless it has already been loaded.
+     *
+     * @return false if the pipeline cannot be cached, see {@link #cacheKey(URI, Subject, UserArgs)}
+     */
+    static boolean preload(
+        final DBBroker broker,
+        final URI staticBaseURI,
+        final UserArgs userArgs
+    ) throws SaxonApiException, IOException, URISyntaxException, PermissionDeniedException {
+        userArgs.loadConfig(broker);
+
+        final PipelineCache cache = PipelineCache.getInstance();
+        final PipelineCache.Key key = cacheKey(staticBaseURI, broker.getCurrentSubject(), userArgs);
+        if (key == null) {
+            return false;
         }
 
+        CompiledPipeline compiled = cache.borrow(broker, key);
+        if (compiled == null) {
+            compiled = compile(broker, key, staticBaseURI, userArgs);
+        }
+        cache.release(compiled);
+        return true;
+    }
+
+    /**
+     * Compile a stylesheet with the processor of a runtime from the {@link RuntimePool},
+     * the way <code>p:xslt</code> does, so that it is kept in the stylesheet cache
+     * shared by the runtimes, see {@link CachingProcessor}.
+     *
+     * @param stylesheet the URI of the stylesheet
+     */
+    static void preloadStylesheet(
+        final DBBroker broker,
+        final URI staticBaseURI,
+        final UserArgs userArgs,
+        final String stylesheet
+    ) throws SaxonApiException, IOException, PermissionDeniedException {
+        userArgs.loadConfig(broker);
+
+        final RuntimePool pool = RuntimePool.getInstance();
+        final Subject subject = broker.getCurrentSubject();
+        final PooledRuntime runtime = pool.borrow(subject, userArgs);
+        boolean completed = false;
+        try {
+            setResolver(broker, runtime, staticBaseURI, userArgs);
+
+            final XdmNode doc = runtime.parse(stylesheet, staticBaseURI.toASCIIString());
+            final XsltCompiler compiler = runtime.getProcessor().newXsltCompiler();
+            compiler.setSchemaAware(runtime.getProcessor().isSchemaAware());
+            compiler.compile(doc.asSource());
+            completed = true;
+        } finally {
+            if (completed) {
+                pool.release(subject, userArgs, runtime);
+            } else {
+                runtime.close();
+            }
+        }
+    }
+
+    /**
+     * Get the key of the compiled pipeline in the {@link PipelineCache}, only pipelines
+     * stored in the database, and implicit pipelines using libraries stored in the
+     * database, are cached.
+     *
+     * @return the key, or null if the pipeline cannot be cached
+     */
+    private static PipelineCache.Key cacheKey(final URI staticBaseURI, final Subject subject, final UserArgs userArgs) {
+        if (staticBaseURI == null) {
+            return null;
+        }
+
+        final Optional<String> configuration = userArgs.getConfigurationKey();
+        if (!configuration.isPresent()) {
+            return null;
+        }
+
+        final Input input = userArgs.getPipeline();
+        if (input == null && userArgs.getPipelineNode() == null && userArgs.hasImplicitPipeline()) {
+            return implicitCacheKey(staticBaseURI, subject.getName(), userArgs, configuration.get());
+        }
+        if (input == null && userArgs.getPipelineNode() != null && userArgs.getPipelineNode().getDigest() != null) {
+            // a pipeline compiled with xmlcalabash:compile
+            return new PipelineCache.Key(staticBaseURI.toString(), subject.getName(), configuration.get(), userArgs.catalogList,
+                    "node:" + userArgs.getPipelineNode().getDigest());
+        }
+        if (input == null || input.getKind() != Input.Kind.URI) {
+            return null;
+        }
+
+        final String uri;
+        try {
+            uri = staticBaseURI.resolve(input.getUri()).toString();
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+
+        if (EXistURIResolver.toDatabaseURI(uri) == null) {
+            return null;
+        }
+
+        return new PipelineCache.Key(uri, subject.getName(), configuration.get(), userArgs.catalogList);
+    }
+
+    /**
+     * Implicit pipelines are cached by their shape, i.e. the steps with the names
+     * of their ports and options, as the documents and values are passed on each run.
+     */
+    private static PipelineCache.Key implicitCacheKey(final URI staticBaseURI, final String user, final UserArgs userArgs,
+            final String configuration) {
+        // a change to a library is only noticed in the database, registered libraries do not change
+        final List<String> registered = new ArrayList<>();
+        for (final Input library : userArgs.getLibraries()) {
+            if (LibraryRegistry.isLibraryURI(library.getUri())) {
+                registered.add(library.getUri());
+                continue;
+            }
+            try {
+                if (EXistURIResolver.toDatabaseURI(staticBaseURI.resolve(library.getUri()).toString()) == null) {
+                    return null;
+                }
+            } catch (final IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        return new PipelineCache.Key(staticBaseURI.toString(), user, configuration, userArgs.catalogList,
+                userArgs.getImplicitPipelineShape(), registered);
+    }
+
+    private static EXistURIResolver setResolver(
+        final DBBroker broker,
+        final XProcRuntime runtime,
+        final URI staticBaseURI,
+        final UserArgs userArgs
+    ) {
+        if (staticBaseURI == null) {
+            return null;
+        }
+
+        final EXistURIResolver resolver = new EXistURIResolver(broker.getBrokerPool(), broker.getCurrentSubject(),
+                runtime.getProcessor().getUnderlyingConfiguration(), staticBaseURI.toString(), userArgs.catalogList);
+
+        runtime.setURIResolver(resolver);
+        runtime.getResolver().setUnderlyingModuleURIResolver(resolver);
+        //runtime.setEntityResolver(resolver);
+
+        runtime.setStaticBaseURI(staticBaseURI);
+        runtime.setBaseURI(staticBaseURI);
+
+        return resolver;
+    }
+
+    private static XPipeline load(
+        final XProcRuntime runtime,
+        final UserArgs userArgs,
+        final XProcConfiguration config
+    ) throws SaxonApiException, IOException, URISyntaxException {
         boolean debug = config.debug;
 
         XPipeline pipeline;
 
         if (userArgs.getPipeline() != null) {
             pipeline = runtime.load(userArgs.getPipeline());
+        } else if (userArgs.getPipelineNode() != null) {
+            pipeline = runtime.use(userArgs.getPipelineNode().read(runtime));
         } else if (userArgs.hasImplicitPipeline()) {
             final XdmNode implicitPipeline = userArgs.getImplicitPipeline(runtime);
 
             if (debug) {
                 System.err.println("Implicit pipeline:");
 
-                final Configuration configuration = Configuration.newConfiguration();
-                final Processor processor = new Processor(configuration);
-                final Serializer serializer = processor.newSerializer();
+                final Serializer serializer = runtime.getProcessor().newSerializer();
 
                 serializer.setOutputProperty(Serializer.Property.INDENT, "yes");
                 serializer.setOutputProperty(Serializer.Property.METHOD, "xml");
@@ -130,6 +451,73 @@ public class XProcRunner {
             throw new UnsupportedOperationException("Either a pipeline or libraries and / or steps must be given");
         }
 
+        return pipeline;
+    }
+
+    private static XdmNode readInput(final XProcRuntime runtime, final Input input, final URI staticBaseURI)
+            throws SaxonApiException, IOException {
+        XdmNode doc;
+        switch (input.getType()) {
+            case XML:
+                switch (input.getKind()) {
+                    case URI:
+                        final String uri = input.getUri();
+                        if ("-".equals(uri)) {
+                            throw new IOException("unsupported '-'");
+//                            doc = runtime.parse(new InputSource(System.in));
+                        } else {
+                            doc = runtime.parse(uri, staticBaseURI.toASCIIString());
+                        }
+                        break;
+
+                    case INPUT_STREAM:
+                        try (final InputStream inputStream = input.getInputStream()) {
+                            doc = runtime.parse(new InputSource(inputStream));
+                        }
+                        break;
+
+                    default:
+                        throw new UnsupportedOperationException(format("Unsupported input kind '%s'", input.getKind()));
+                }
+                break;
+
+            case DATA:
+                ReadableData rd;
+                switch (input.getKind()) {
+                    case URI:
+                        rd = new ReadableData(runtime, c_data, input.getUri(), input.getContentType());
+                        doc = rd.read();
+                        break;
+
+                    case INPUT_STREAM:
+                        try (final InputStream inputStream = input.getInputStream()) {
+                            rd = new ReadableData(runtime, c_data, inputStream, input.getContentType());
+                            doc = rd.read();
+                        }
+                        break;
+
+                    default:
+                        throw new UnsupportedOperationException(format("Unsupported input kind '%s'", input.getKind()));
+                }
+                break;
+
+            default:
+                throw new UnsupportedOperationException(format("Unsupported input type '%s'", input.getType()));
+        }
+
+        return doc;
+    }
+
+    private static Map<String, PortOutput> run(
+        final DBBroker broker,
+        final XProcRuntime runtime,
+        final XPipeline pipeline,
+        final URI staticBaseURI,
+        final XdmInput defaultIn,
+        final UserArgs userArgs,
+        final XProcConfiguration config
+    ) throws SaxonApiException, IOException, URISyntaxException, PermissionDeniedException, EXistException, LockException, SAXException {
+
         // Process parameters from the configuration...
         for (final String port : config.params.keySet()) {
             final Map<QName, String> parameters = config.params.get(port);
@@ -172,66 +560,28 @@ public class XProcRunner {
             pipeline.clearInputs(port);
 
             if (userArgsInputPorts.contains(port)) {
-                XdmNode doc;
                 for (final Input input : userArgs.getInputs(port)) {
-                    switch (input.getType()) {
-                        case XML:
-                            switch (input.getKind()) {
-                                case URI:
-                                    final String uri = input.getUri();
-                                    if ("-".equals(uri)) {
-                                        throw new IOException("unsupported '-'");
-//                                        doc = runtime.parse(new InputSource(System.in));
-                                    } else {
-                                        doc = runtime.parse(uri, staticBaseURI.toASCIIString());
-                                    }
-                                    break;
-
-                                case INPUT_STREAM:
-                                    try (final InputStream inputStream = input.getInputStream()) {
-                                        doc = runtime.parse(new InputSource(inputStream));
-                                    }
-                                    break;
-
-                                default:
-                                    throw new UnsupportedOperationException(format("Unsupported input kind '%s'", input.getKind()));
-                            }
-                            break;
-
-                        case DATA:
-                            ReadableData rd;
-                            switch (input.getKind()) {
-                                case URI:
-                                    rd = new ReadableData(runtime, c_data, input.getUri(), input.getContentType());
-                                    doc = rd.read();
-                                    break;
-
-                                case INPUT_STREAM:
-                                    try (final InputStream inputStream = input.getInputStream()) {
-                                        rd = new ReadableData(runtime, c_data, inputStream, input.getContentType());
-                                        doc = rd.read();
-                                    }
-                                    break;
-
-                                default:
-                                    throw new UnsupportedOperationException(format("Unsupported input kind '%s'", input.getKind()));
-                            }
-                            break;
-
-                        default:
-                            throw new UnsupportedOperationException(format("Unsupported input type '%s'", input.getType()));
-                    }
-
+                    final XdmNode doc = readInput(runtime, input, staticBaseURI);
                     pipeline.writeTo(port, doc);
                 }
             } else {
                 for (final ReadablePipe pipe : config.inputs.get(port)) {
+                    // the configuration is shared by the runs of a pooled runtime
+                    pipe.resetReader();
                     XdmNode doc = pipe.read();
                     pipeline.writeTo(port, doc);
                 }
             }
         }
 
+        // the documents for the steps of an implicit pipeline
+        for (final Map.Entry<String, List<Input>> implicitInput : userArgs.getImplicitInputs().entrySet()) {
+            pipeline.clearInputs(implicitInput.getKey());
+            for (final Input input : implicitInput.getValue()) {
+                pipeline.writeTo(implicitInput.getKey(), readInput(runtime, input, staticBaseURI));
+            }
+        }
+
         // Implicit binding for stdin?
         String implicitPort = null;
         for (final String port : ports) {
@@ -245,7 +595,7 @@ public class XProcRunner {
 
         if (implicitPort != null && !pipeline.hasReadablePipes(implicitPort) && defaultIn != null) {
 //            throw new XProcException("no implicitPort or it is not readable.");
-            XdmNode doc = runtime.parse(new InputSource(defaultIn));
+            XdmNode doc = defaultIn.read(runtime);
             pipeline.writeTo(implicitPort, doc);
         }
 
@@ -284,108 +634,138 @@ public class XProcRunner {
             pipeline.passOption(optname, value);
         }
 
+        for (final Map.Entry<QName, RuntimeValue> implicitOption : userArgs.getImplicitOptions().entrySet()) {
+            pipeline.passOption(implicitOption.getKey(), implicitOption.getValue());
+        }
+
         pipeline.run();
 
-        Map<String, ByteArrayOutputStream> outputs = new HashMap<>();
-        for (final String port : pipeline.getOutputs()) {
-            Output output;
-            if (portOutputs.containsKey(port)) {
-                output = portOutputs.get(port);
-            } else {
-                // You didn't bind it, and it isn't going to stdout, so it's going into the bit bucket.
-                continue;
-            }
+        Map<String, PortOutput> outputs = new HashMap<>();
+        boolean collected = false;
+        try {
+            for (final String port : pipeline.getOutputs()) {
+                Output output;
+                if (portOutputs.containsKey(port)) {
+                    output = portOutputs.get(port);
+                } else {
+                    // You didn't bind it, and it isn't going to stdout, so it's going into the bit bucket.
+                    continue;
+                }
 
-            if ((output == null) || ((output.getKind() == OUTPUT_STREAM) && System.out.equals(output.getOutputStream()))) {
-                finest(logger, null, "Copy output from " + port + " to stdout");
-            } else {
-                switch (output.getKind()) {
-                    case URI:
-                        finest(logger, null, "Copy output from " + port + " to " + output.getUri());
-                        break;
+                if ((output == null) || ((output.getKind() == OUTPUT_STREAM) && System.out.equals(output.getOutputStream()))) {
+                    finest(logger, null, "Copy output from " + port + " to stdout");
+                } else {
+                    switch (output.getKind()) {
+                        case URI:
+                            finest(logger, null, "Copy output from " + port + " to " + output.getUri());
+                            break;
 
-                    case OUTPUT_STREAM:
-                        final String outputStreamClassName = output.getOutputStream().getClass().getName();
-                        finest(logger, null, "Copy output from " + port + " to " + outputStreamClassName + " stream");
-                        break;
+                        case OUTPUT_STREAM:
+                            final String outputStreamClassName = output.getOutputStream().getClass().getName();
+                            finest(logger, null, "Copy output from " + port + " to " + outputStreamClassName + " stream");
+                            break;
 
-                    default:
-                        throw new UnsupportedOperationException(format("Unsupported output kind '%s'", output.getKind()));
+                        default:
+                            throw new UnsupportedOperationException(format("Unsupported output kind '%s'", output.getKind()));
+                    }
                 }
-            }
 
-            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-            outputs.put(port, byteStream);
-
-            Serialization serial = pipeline.getSerialization(port);
-
-            if (serial == null) {
-                // Use the configuration options
-                // FIXME: should each of these be considered separately?
-                // FIXME: should there be command-line options to override these settings?
-                serial = new Serialization(runtime, pipeline.getNode()); // The node's a hack
-                for (String name : config.serializationOptions.keySet()) {
-                    String value = config.serializationOptions.get(name);
-
-                    if ("byte-order-mark".equals(name)) serial.setByteOrderMark("true".equals(value));
-                    if ("escape-uri-attributes".equals(name)) serial.setEscapeURIAttributes("true".equals(value));
-                    if ("include-content-type".equals(name)) serial.setIncludeContentType("true".equals(value));
-                    if ("indent".equals(name)) serial.setIndent("true".equals(value));
-                    if ("omit-xml-declaration".equals(name)) serial.setOmitXMLDeclaration("true".equals(value));
-                    if ("undeclare-prefixes".equals(name)) serial.setUndeclarePrefixes("true".equals(value));
-                    if ("method".equals(name)) serial.setMethod(new QName("", value));
-
-                    // FIXME: if ("cdata-section-elements".equals(name)) serial.setCdataSectionElements();
-                    if ("doctype-public".equals(name)) serial.setDoctypePublic(value);
-                    if ("doctype-system".equals(name)) serial.setDoctypeSystem(value);
-                    if ("encoding".equals(name)) serial.setEncoding(value);
-                    if ("media-type".equals(name)) serial.setMediaType(value);
-                    if ("normalization-form".equals(name)) serial.setNormalizationForm(value);
-                    if ("standalone".equals(name)) serial.setStandalone(value);
-                    if ("version".equals(name)) serial.setVersion(value);
+                if (output == null && !userArgs.getOutputMode(port).isSerialized()) {
+                    outputs.put(port, new PortOutput(runtime.getProcessor(), pipeline.readFrom(port)));
+                    continue;
                 }
-            }
 
-            // I wonder if there's a better way...
-            WritableDocument wd = null;
-            if (output == null) {
-                //wd = new EXistDocument(runtime, null, serial);
-                wd = new WritableDocument(runtime, null, serial, byteStream);
-            } else {
-                switch (output.getKind()) {
-                    case URI:
-                        URI uri = new URI(output.getUri());
+                final OutputBuffer buffer = new OutputBuffer();
+                outputs.put(port, new PortOutput(buffer));
+
+                Serialization serial = pipeline.getSerialization(port);
+
+                if (serial == null) {
+                    // Use the configuration options
+                    // FIXME: should each of these be considered separately?
+                    // FIXME: should there be command-line options to override these settings?
+                    serial = new Serialization(runtime, pipeline.getNode()); // The node's a hack
+                    for (String name : config.serializationOptions.keySet()) {
+                        String value = config.serializationOptions.get(name);
+
+                        if ("byte-order-mark".equals(name)) serial.setByteOrderMark("true".equals(value));
+                        if ("escape-uri-attributes".equals(name)) serial.setEscapeURIAttributes("true".equals(value));
+                        if ("include-content-type".equals(name)) serial.setIncludeContentType("true".equals(value));
+                        if ("indent".equals(name)) serial.setIndent("true".equals(value));
+                        if ("omit-xml-declaration".equals(name)) serial.setOmitXMLDeclaration("true".equals(value));
+                        if ("undeclare-prefixes".equals(name)) serial.setUndeclarePrefixes("true".equals(value));
+                        if ("method".equals(name)) serial.setMethod(new QName("", value));
+
+                        // FIXME: if ("cdata-section-elements".equals(name)) serial.setCdataSectionElements();
+                        if ("doctype-public".equals(name)) serial.setDoctypePublic(value);
+                        if ("doctype-system".equals(name)) serial.setDoctypeSystem(value);
+                        if ("encoding".equals(name)) serial.setEncoding(value);
+                        if ("media-type".equals(name)) serial.setMediaType(value);
+                        if ("normalization-form".equals(name)) serial.setNormalizationForm(value);
+                        if ("standalone".equals(name)) serial.setStandalone(value);
+                        if ("version".equals(name)) serial.setVersion(value);
+                    }
+                }
 
-                        final String filename = uri.getPath();
+                if (output != null && output.getKind() == Kind.URI) {
+                    final XmldbURI databaseURI = EXistURIResolver.toDatabaseURI(output.getUri());
+                    if (databaseURI != null) {
+                        finest(logger, null, "Store output from " + port + " in " + databaseURI);
+                        DatabaseOutput.store(broker, runtime, databaseURI, serial, pipeline.readFrom(port));
+                        continue;
+                    }
+                }
 
-                        final Resource resource = new Resource(filename);
-                        OutputStream outfile = resource.getOutputStream();
+                // I wonder if there's a better way...
+                WritableDocument wd = null;
+                if (output == null) {
+                    //wd = new EXistDocument(runtime, null, serial);
+                    wd = new WritableDocument(runtime, null, serial, buffer);
+                } else {
+                    switch (output.getKind()) {
+                        case URI:
+                            URI uri = new URI(output.getUri());
 
-//                        URI furi = new URI(output.getUri());
-//                        String filename = furi.getPath();
-//                        FileOutputStream outfile = new FileOutputStream(filename);
+                            final String filename = uri.getPath();
 
-                        wd = new WritableDocument(runtime, filename, serial, outfile);
-                        break;
+                            final Resource resource = new Resource(filename);
+                            OutputStream outfile = resource.getOutputStream();
 
-                    case OUTPUT_STREAM:
-                        final OutputStream outputStream = output.getOutputStream();
-                        wd = new WritableDocument(runtime, null, serial, outputStream);
-                        break;
+    //                        URI furi = new URI(output.getUri());
+    //                        String filename = furi.getPath();
+    //                        FileOutputStream outfile = new FileOutputStream(filename);
 
-                    default:
-                        throw new UnsupportedOperationException(format("Unsupported output kind '%s'", output.getKind()));
+                            wd = new WritableDocument(runtime, filename, serial, outfile);
+                            break;
+
+                        case OUTPUT_STREAM:
+                            final OutputStream outputStream = output.getOutputStream();
+                            wd = new WritableDocument(runtime, null, serial, outputStream);
+                            break;
+
+                        default:
+                            throw new UnsupportedOperationException(format("Unsupported output kind '%s'", output.getKind()));
+                    }
                 }
-            }
 
-            final ReadablePipe rpipe = pipeline.readFrom(port);
-            try {
-                while (rpipe.moreDocuments()) {
-                    wd.write(rpipe.read());
+                final ReadablePipe rpipe = pipeline.readFrom(port);
+                try {
+                    while (rpipe.moreDocuments()) {
+                        wd.write(rpipe.read());
+                    }
+                } finally {
+                    if (output != null) {
+                        wd.close();
+                    } else {
+                        buffer.close();
+                    }
                 }
-            } finally {
-                if (output != null) {
-                    wd.close();
+            }
+            collected = true;
+        } finally {
+            if (!collected) {
+                for (final PortOutput output : outputs.values()) {
+                    output.discard();
                 }
             }
         }
@@ -20,24 +20,165 @@ package org.exist.xquery.xproc.xmlcalabash;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.exist.xquery.AbstractInternalModule;
 import org.exist.xquery.FunctionDef;
 
 public class XProcXmlCalabashModule extends AbstractInternalModule {
 
+    private static final Logger LOG = LogManager.getLogger(XProcXmlCalabashModule.class);
+
     public final static String NAMESPACE_URI = "http://exist-db.org/xquery/xproc/xmlcalabash";
     public final static String PREFIX = "xmlcalabash";
     public final static String INCLUSION_DATE = "2013-11-04";
     public final static String RELEASED_IN_VERSION = "eXist-2.1";
 
+    /**
+     * Module parameters, set in conf.xml with
+     * {@code <parameter name="..." value="..."/>}.
+     */
+    public final static String PARAM_RUNTIME_POOL_SIZE = "runtime-pool-size";
+    public final static String PARAM_PIPELINE_CACHE_SIZE = "pipeline-cache-size";
+    public final static String PARAM_SAXON_CONFIGURATION = "saxon-configuration";
+    public final static String PARAM_OUTPUT_MEMORY_THRESHOLD = "output-memory-threshold";
+    public final static String PARAM_DOCUMENT_CACHE_SIZE = "document-cache-size";
+    public final static String PARAM_STYLESHEET_CACHE_SIZE = "stylesheet-cache-size";
+    public final static String PARAM_QUERY_CACHE_SIZE = "query-cache-size";
+    public final static String PARAM_SCHEMA_CACHE_SIZE = "schema-cache-size";
+    public final static String PARAM_PRELOAD_PIPELINE = "preload-pipeline";
+    public final static String PARAM_PRELOAD_STYLESHEET = "preload-stylesheet";
+    public final static String PARAM_PRELOAD_CATALOG = "preload-catalog";
+    public final static String PARAM_WARM_UP_RUNS = "warm-up-runs";
+    public final static String PARAM_WARM_UP_USER = "warm-up-user";
+    public final static String PARAM_BATCH_THREADS = "batch-threads";
+    public final static String PARAM_JOB_THREADS = "job-threads";
+    public final static String PARAM_JOB_RESULT_TTL = "job-result-ttl";
+    public final static String PARAM_JOB_QUEUE_SIZE = "job-queue-size";
+
+    public final static String SAXON_CONFIGURATION_SHARED = "shared";
+    public final static String SAXON_CONFIGURATION_PRIVATE = "private";
+
+    private static boolean configured = false;
+
+    private final boolean sharedSaxonConfiguration;
+
     private final static FunctionDef[] functions = {
             new FunctionDef(ProcessFunction.FNS_PROCESS_1, ProcessFunction.class),
             new FunctionDef(ProcessFunction.FNS_PROCESS_2, ProcessFunction.class),
             new FunctionDef(ProcessFunction.FNS_PROCESS_3, ProcessFunction.class),
+            new FunctionDef(ProcessFunction.FNS_COMPILE_1, ProcessFunction.class),
+            new FunctionDef(ProcessFunction.FNS_COMPILE_2, ProcessFunction.class),
+            new FunctionDef(ProcessFunction.FNS_RUN_1, ProcessFunction.class),
+            new FunctionDef(ProcessFunction.FNS_RUN_2, ProcessFunction.class),
+            new FunctionDef(ProcessFunction.FNS_RUN_3, ProcessFunction.class),
+            new FunctionDef(ProcessFunction.FNS_PROCESS_BATCH_2, ProcessFunction.class),
+            new FunctionDef(ProcessFunction.FNS_PROCESS_BATCH_3, ProcessFunction.class),
+            new FunctionDef(ProcessFunction.FNS_SUBMIT_1, ProcessFunction.class),
+            new FunctionDef(ProcessFunction.FNS_SUBMIT_2, ProcessFunction.class),
+            new FunctionDef(ProcessFunction.FNS_SUBMIT_3, ProcessFunction.class),
+            new FunctionDef(JobFunction.FNS_STATUS, JobFunction.class),
+            new FunctionDef(JobFunction.FNS_AWAIT_1, JobFunction.class),
+            new FunctionDef(JobFunction.FNS_AWAIT_2, JobFunction.class),
+            new FunctionDef(JobFunction.FNS_CANCEL, JobFunction.class),
+            new FunctionDef(CacheStatisticsFunction.FNS_CACHE_STATISTICS, CacheStatisticsFunction.class),
     };
 
     public XProcXmlCalabashModule(Map<String, List<? extends Object>> parameters) {
         super(functions, parameters);
+
+        configureOnce(parameters);
+        this.sharedSaxonConfiguration = isSharedSaxonConfiguration(parameters);
+    }
+
+    /**
+     * Size the caches and pools from the module parameters, unless they have
+     * been sized already. The module is instantiated for every query that
+     * imports it, which must not override the sizes set by {@link WarmUpTrigger}.
+     *
+     * @param parameters the module parameters
+     */
+    private static synchronized void configureOnce(final Map<String, List<? extends Object>> parameters) {
+        if (!configured) {
+            configure(parameters);
+        }
+    }
+
+    /**
+     * Size the caches and pools from the module parameters. Called when the
+     * module is first loaded and by {@link WarmUpTrigger} when the database
+     * starts, whose parameters win over those of the module.
+     *
+     * @param parameters the module parameters
+     */
+    static synchronized void configure(final Map<String, List<? extends Object>> parameters) {
+        configured = true;
+        RuntimePool.getInstance().setMaxSize(
+                intParameter(parameters, PARAM_RUNTIME_POOL_SIZE, RuntimePool.DEFAULT_SIZE));
+        PipelineCache.getInstance().setMaxSize(
+                intParameter(parameters, PARAM_PIPELINE_CACHE_SIZE, PipelineCache.DEFAULT_MAX_SIZE));
+        DocumentCache.getInstance().setMaxSize(
+                intParameter(parameters, PARAM_DOCUMENT_CACHE_SIZE, DocumentCache.DEFAULT_MAX_SIZE));
+        CachingProcessor.getStylesheetCache().setMaxSize(
+                intParameter(parameters, PARAM_STYLESHEET_CACHE_SIZE, CachingProcessor.DEFAULT_STYLESHEET_CACHE_SIZE));
+        CachingProcessor.getQueryCache().setMaxSize(
+                intParameter(parameters, PARAM_QUERY_CACHE_SIZE, CachingProcessor.DEFAULT_QUERY_CACHE_SIZE));
+        CachingProcessor.getSchemaCache().setMaxSize(
+                intParameter(parameters, PARAM_SCHEMA_CACHE_SIZE, CachingProcessor.DEFAULT_SCHEMA_CACHE_SIZE));
+        final int batchThreads = intParameter(parameters, PARAM_BATCH_THREADS, BatchExecutor.DEFAULT_THREADS);
+        BatchExecutor.getInstance().setThreads(batchThreads);
+        // keep a compiled pipeline for each worker of a batch
+        PipelineCache.getInstance().setMaxIdle(Math.max(PipelineCache.DEFAULT_MAX_IDLE, batchThreads));
+        JobExecutor.getInstance().setThreads(
+                intParameter(parameters, PARAM_JOB_THREADS, JobExecutor.DEFAULT_THREADS));
+        JobExecutor.getInstance().setResultTtl(
+                intParameter(parameters, PARAM_JOB_RESULT_TTL, JobExecutor.DEFAULT_RESULT_TTL));
+        JobExecutor.getInstance().setQueueSize(
+                intParameter(parameters, PARAM_JOB_QUEUE_SIZE, JobExecutor.DEFAULT_QUEUE_SIZE));
+        OutputBuffer.setDefaultThreshold(
+                intParameter(parameters, PARAM_OUTPUT_MEMORY_THRESHOLD, OutputBuffer.DEFAULT_THRESHOLD));
+    }
+
+    static boolean isSharedSaxonConfiguration(final Map<String, List<? extends Object>> parameters) {
+        final String saxonConfiguration = stringParameter(parameters, PARAM_SAXON_CONFIGURATION, SAXON_CONFIGURATION_PRIVATE);
+        if (!(SAXON_CONFIGURATION_SHARED.equals(saxonConfiguration) || SAXON_CONFIGURATION_PRIVATE.equals(saxonConfiguration))) {
+            LOG.warn("Invalid value '{}' for module parameter '{}', using {}", saxonConfiguration, PARAM_SAXON_CONFIGURATION, SAXON_CONFIGURATION_PRIVATE);
+        }
+        return SAXON_CONFIGURATION_SHARED.equals(saxonConfiguration);
+    }
+
+    /**
+     * @return true if the runtimes are built on eXist-db's Saxon configuration,
+     *     see {@link SaxonConfigurations}
+     */
+    public boolean isSharedSaxonConfiguration() {
+        return sharedSaxonConfiguration;
+    }
+
+    static String stringParameter(final Map<String, List<? extends Object>> parameters, final String name, final String defaultValue) {
+        final List<? extends Object> values = parameters == null ? null : parameters.get(name);
+        if (values == null || values.isEmpty()) {
+            return defaultValue;
+        }
+        return values.get(0).toString().trim();
+    }
+
+    static int intParameter(final Map<String, List<? extends Object>> parameters, final String name, final int defaultValue) {
+        final List<? extends Object> values = parameters == null ? null : parameters.get(name);
+        if (values == null || values.isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            final int value = Integer.parseInt(values.get(0).toString().trim());
+            if (value >= 0) {
+                return value;
+            }
+        } catch (final NumberFormatException e) {
+            // fall through
+        }
+        LOG.warn("Invalid value '{}' for module parameter '{}', using {}", values.get(0), name, defaultValue);
+        return defaultValue;
     }
 
     @Override
@@ -0,0 +1,315 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URI;
+
+import net.sf.saxon.s9api.BuildingContentHandler;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SAXDestination;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import javax.xml.transform.OutputKeys;
+
+import org.exist.storage.DBBroker;
+import org.exist.storage.serializers.Serializer;
+import org.exist.xquery.value.NodeValue;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import com.xmlcalabash.core.XProcRuntime;
+
+/**
+ * A document passed to a pipeline from XQuery.
+ *
+ * Nodes are streamed from eXist-db into a Saxon tree of the runtime's
+ * processor, without being serialized and parsed again.
+ */
+public abstract class XdmInput {
+
+    /**
+     * Read the document as a tree of the runtime's processor.
+     *
+     * @param runtime the runtime the document is passed to
+     * @return the document node
+     *
+     * @throws SaxonApiException if the document cannot be built
+     */
+    public abstract XdmNode read(XProcRuntime runtime) throws SaxonApiException;
+
+    /**
+     * @return a digest of the document, or null if the input can not tell
+     *     whether it is the same document as another input
+     */
+    public String getDigest() {
+        return null;
+    }
+
+    /**
+     * @param broker the broker used to read the node
+     * @param node a document or element node, in memory or persistent
+     * @param baseURI the base URI of the document, may be null
+     *
+     * @return the input
+     */
+    public static XdmInput of(final DBBroker broker, final NodeValue node, final String baseURI) {
+        return new NodeInput(broker, node, baseURI);
+    }
+
+    /**
+     * @param xml the serialized document
+     *
+     * @return the input
+     */
+    public static XdmInput of(final String xml) {
+        return new StringInput(xml, null);
+    }
+
+    /**
+     * @param in the serialized document, read once by the run
+     *
+     * @return the input
+     */
+    public static XdmInput of(final InputStream in) {
+        return new StreamInput(in);
+    }
+
+    /**
+     * @param processor the processor the document was built with
+     * @param document a document of another runtime
+     *
+     * @return the input
+     */
+    public static XdmInput of(final Processor processor, final XdmNode document) {
+        return new XdmNodeInput(processor, document);
+    }
+
+    /**
+     * Copy a document into a tree of another processor. The events are
+     * passed as SAX events, as the processors need not share a name pool.
+     *
+     * @param processor the processor the document was built with
+     * @param document the document
+     * @param target the processor to build the copy with
+     *
+     * @return the copy
+     *
+     * @throws SaxonApiException if the document cannot be copied
+     */
+    public static XdmNode copy(final Processor processor, final XdmNode document, final Processor target) throws SaxonApiException {
+        final DocumentBuilder builder = target.newDocumentBuilder();
+        if (document.getBaseURI() != null && document.getBaseURI().isAbsolute()) {
+            builder.setBaseURI(document.getBaseURI());
+        }
+        final BuildingContentHandler handler = builder.newBuildingContentHandler();
+        processor.writeXdmValue(document, new SAXDestination(handler));
+        return handler.getDocumentNode();
+    }
+
+    /**
+     * An input that no longer depends on the node or the broker, and
+     * has a digest, so it can be read by later queries.
+     *
+     * @param broker the broker used to serialize the node
+     * @param node a document or element node, in memory or persistent
+     * @param baseURI the base URI of the document, may be null
+     *
+     * @return the input
+     *
+     * @throws SAXException if the node cannot be serialized
+     */
+    public static XdmInput detached(final DBBroker broker, final NodeValue node, final String baseURI) throws SAXException {
+        final Serializer serializer = broker.getSerializer();
+        serializer.reset();
+        try {
+            serializer.setProperty(OutputKeys.INDENT, "no");
+            return new StringInput(serializer.serialize(node), baseURI);
+        } finally {
+            serializer.reset();
+        }
+    }
+
+    private static class NodeInput extends XdmInput {
+        private final DBBroker broker;
+        private final NodeValue node;
+        private final String baseURI;
+
+        NodeInput(final DBBroker broker, final NodeValue node, final String baseURI) {
+            this.broker = broker;
+            this.node = node;
+            this.baseURI = baseURI;
+        }
+
+        @Override
+        public XdmNode read(final XProcRuntime runtime) throws SaxonApiException {
+            final DocumentBuilder builder = runtime.getProcessor().newDocumentBuilder();
+            if (baseURI != null) {
+                builder.setBaseURI(URI.create(baseURI));
+            }
+
+            final BuildingContentHandler handler = builder.newBuildingContentHandler();
+            final DocumentFilter filter = new DocumentFilter(handler);
+
+            final Serializer serializer = broker.getSerializer();
+            serializer.reset();
+            try {
+                serializer.setSAXHandlers(filter, filter);
+
+                handler.startDocument();
+                serializer.toSAX(node);
+                handler.endDocument();
+            } catch (final SAXException e) {
+                throw new SaxonApiException(e);
+            } finally {
+                serializer.reset();
+            }
+
+            return handler.getDocumentNode();
+        }
+    }
+
+    private static class XdmNodeInput extends XdmInput {
+        private final Processor processor;
+        private final XdmNode document;
+
+        XdmNodeInput(final Processor processor, final XdmNode document) {
+            this.processor = processor;
+            this.document = document;
+        }
+
+        @Override
+        public XdmNode read(final XProcRuntime runtime) throws SaxonApiException {
+            return copy(processor, document, runtime.getProcessor());
+        }
+    }
+
+    private static class StreamInput extends XdmInput {
+        private final InputStream in;
+
+        StreamInput(final InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public XdmNode read(final XProcRuntime runtime) throws SaxonApiException {
+            return runtime.parse(new InputSource(in));
+        }
+    }
+
+    private static class StringInput extends XdmInput {
+        private final String xml;
+        private final String baseURI;
+        private volatile String digest = null;
+
+        StringInput(final String xml, final String baseURI) {
+            this.xml = xml;
+            this.baseURI = baseURI;
+        }
+
+        @Override
+        public XdmNode read(final XProcRuntime runtime) throws SaxonApiException {
+            final InputSource source = new InputSource(new StringReader(xml));
+            source.setSystemId(baseURI);
+            return runtime.parse(source);
+        }
+
+        @Override
+        public String getDigest() {
+            if (digest == null) {
+                digest = ExecutableCache.digest(baseURI + "\n" + xml);
+            }
+            return digest;
+        }
+    }
+
+    /**
+     * Passes the events of a node to a document builder. The document
+     * events are sent by {@link NodeInput} itself, as the serializer
+     * only emits them for document nodes.
+     */
+    private static class DocumentFilter extends XMLFilterImpl implements LexicalHandler {
+        private final LexicalHandler lexicalHandler;
+
+        DocumentFilter(final BuildingContentHandler handler) {
+            setContentHandler(handler);
+            this.lexicalHandler = handler instanceof LexicalHandler ? (LexicalHandler) handler : null;
+        }
+
+        @Override
+        public void startDocument() {
+        }
+
+        @Override
+        public void endDocument() {
+        }
+
+        @Override
+        public void startDTD(final String name, final String publicId, final String systemId) throws SAXException {
+            if (lexicalHandler != null) {
+                lexicalHandler.startDTD(name, publicId, systemId);
+            }
+        }
+
+        @Override
+        public void endDTD() throws SAXException {
+            if (lexicalHandler != null) {
+                lexicalHandler.endDTD();
+            }
+        }
+
+        @Override
+        public void startEntity(final String name) throws SAXException {
+            if (lexicalHandler != null) {
+                lexicalHandler.startEntity(name);
+            }
+        }
+
+        @Override
+        public void endEntity(final String name) throws SAXException {
+            if (lexicalHandler != null) {
+                lexicalHandler.endEntity(name);
+            }
+        }
+
+        @Override
+        public void startCDATA() throws SAXException {
+            if (lexicalHandler != null) {
+                lexicalHandler.startCDATA();
+            }
+        }
+
+        @Override
+        public void endCDATA() throws SAXException {
+            if (lexicalHandler != null) {
+                lexicalHandler.endCDATA();
+            }
+        }
+
+        @Override
+        public void comment(final char[] ch, final int start, final int length) throws SAXException {
+            if (lexicalHandler != null) {
+                lexicalHandler.comment(ch, start, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import java.text.Normalizer;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SAXDestination;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.exist.Namespaces;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import com.xmlcalabash.core.XProcException;
+import com.xmlcalabash.model.Serialization;
+
+/**
+ * Reports the events of a Saxon tree to a SAX handler, so that a document
+ * produced by a pipeline is stored without being serialized and parsed.
+ *
+ * The parts of the serialization that change the stored document are
+ * applied to the events: the document type declaration is reported before
+ * the document element, and the text and attribute values are normalized
+ * to the Unicode normalization form. The other parameters, such as the
+ * encoding or the indentation, only apply to serialized documents.
+ *
+ * The tree can be reported any number of times, once to validate the
+ * document and once to store it. Without a serialization, the reader
+ * copies a tree into another Saxon configuration, see {@link DocumentCache}.
+ */
+class XdmNodeReader implements XMLReader {
+
+    private static final String FEATURE_NAMESPACES = "http://xml.org/sax/features/namespaces";
+    private static final String FEATURE_NAMESPACE_PREFIXES = "http://xml.org/sax/features/namespace-prefixes";
+
+    /**
+     * Set by eXist on the readers it parses with, the tree is already built
+     * so they are recorded and have no effect.
+     */
+    private static final String[] PARSING_FEATURES = {
+        "http://xml.org/sax/features/validation",
+        "http://apache.org/xml/features/validation/dynamic",
+        "http://apache.org/xml/features/validation/schema",
+        "http://apache.org/xml/features/nonvalidating/load-external-dtd"
+    };
+
+    private final Processor processor;
+    private final XdmNode document;
+    private final String doctypePublic;
+    private final String doctypeSystem;
+    private final Normalizer.Form normalization;
+
+    private final Map<String, Boolean> parsingFeatures = new HashMap<>();
+
+    private ContentHandler contentHandler;
+    private LexicalHandler lexicalHandler;
+    private ErrorHandler errorHandler;
+    private DTDHandler dtdHandler;
+    private EntityResolver entityResolver;
+
+    /**
+     * @param processor the processor that built the document
+     * @param document the document to report
+     */
+    XdmNodeReader(final Processor processor, final XdmNode document) {
+        this.processor = processor;
+        this.document = document;
+        this.doctypePublic = null;
+        this.doctypeSystem = null;
+        this.normalization = null;
+        for (final String feature : PARSING_FEATURES) {
+            parsingFeatures.put(feature, false);
+        }
+    }
+
+    /**
+     * @param processor the processor of the runtime that built the document
+     * @param document the document to report
+     * @param serial the serialization of the output port
+     */
+    XdmNodeReader(final Processor processor, final XdmNode document, final Serialization serial) {
+        this.processor = processor;
+        this.document = document;
+        this.doctypePublic = serial.getDoctypePublic();
+        this.doctypeSystem = serial.getDoctypeSystem();
+        this.normalization = normalization(serial.getNormalizationForm());
+        for (final String feature : PARSING_FEATURES) {
+            parsingFeatures.put(feature, false);
+        }
+    }
+
+    private static Normalizer.Form normalization(final String form) {
+        if (form == null || "none".equals(form)) {
+            return null;
+        }
+        switch (form) {
+            case "NFC":
+            case "fully-normalized":
+                return Normalizer.Form.NFC;
+            case "NFD":
+                return Normalizer.Form.NFD;
+            case "NFKC":
+                return Normalizer.Form.NFKC;
+            case "NFKD":
+                return Normalizer.Form.NFKD;
+            default:
+                throw new XProcException("Unsupported normalization form '" + form + "'");
+        }
+    }
+
+    @Override
+    public void parse(final InputSource input) throws SAXException {
+        parse();
+    }
+
+    @Override
+    public void parse(final String systemId) throws SAXException {
+        parse();
+    }
+
+    private void parse() throws SAXException {
+        try {
+            processor.writeXdmValue(document, new SAXDestination(new SerializationFilter()));
+        } catch (final SaxonApiException e) {
+            if (e.getCause() instanceof SAXException) {
+                throw (SAXException) e.getCause();
+            }
+            throw new SAXException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean getFeature(final String name) throws SAXNotRecognizedException {
+        if (FEATURE_NAMESPACES.equals(name)) {
+            return true;
+        } else if (FEATURE_NAMESPACE_PREFIXES.equals(name)) {
+            return false;
+        } else if (parsingFeatures.containsKey(name)) {
+            return parsingFeatures.get(name);
+        }
+        throw new SAXNotRecognizedException(name);
+    }
+
+    @Override
+    public void setFeature(final String name, final boolean value) throws SAXNotRecognizedException {
+        if (parsingFeatures.containsKey(name)) {
+            parsingFeatures.put(name, value);
+        } else if (getFeature(name) != value) {
+            throw new SAXNotRecognizedException(name + " cannot be set to " + value);
+        }
+    }
+
+    @Override
+    public Object getProperty(final String name) throws SAXNotRecognizedException {
+        if (Namespaces.SAX_LEXICAL_HANDLER.equals(name)) {
+            return lexicalHandler;
+        }
+        throw new SAXNotRecognizedException(name);
+    }
+
+    @Override
+    public void setProperty(final String name, final Object value) throws SAXNotRecognizedException {
+        if (Namespaces.SAX_LEXICAL_HANDLER.equals(name)) {
+            lexicalHandler = (LexicalHandler) value;
+        } else {
+            throw new SAXNotRecognizedException(name);
+        }
+    }
+
+    @Override
+    public void setEntityResolver(final EntityResolver resolver) {
+        this.entityResolver = resolver;
+    }
+
+    @Override
+    public EntityResolver getEntityResolver() {
+        return entityResolver;
+    }
+
+    @Override
+    public void setDTDHandler(final DTDHandler handler) {
+        this.dtdHandler = handler;
+    }
+
+    @Override
+    public DTDHandler getDTDHandler() {
+        return dtdHandler;
+    }
+
+    @Override
+    public void setContentHandler(final ContentHandler handler) {
+        this.contentHandler = handler;
+    }
+
+    @Override
+    public ContentHandler getContentHandler() {
+        return contentHandler;
+    }
+
+    @Override
+    public void setErrorHandler(final ErrorHandler handler) {
+        this.errorHandler = handler;
+    }
+
+    @Override
+    public ErrorHandler getErrorHandler() {
+        return errorHandler;
+    }
+
+    /**
+     * Applies the serialization to the events of the tree. A text node is
+     * reported in a single call, so each call is normalized as a whole.
+     */
+    private class SerializationFilter extends XMLFilterImpl implements LexicalHandler {
+        private boolean documentElement = true;
+
+        SerializationFilter() {
+            setContentHandler(contentHandler);
+        }
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName, final Attributes atts) throws SAXException {
+            if (documentElement) {
+                documentElement = false;
+                if (doctypeSystem != null && lexicalHandler != null) {
+                    lexicalHandler.startDTD(qName, doctypePublic, doctypeSystem);
+                    lexicalHandler.endDTD();
+                }
+            }
+            super.startElement(uri, localName, qName, normalize(atts));
+        }
+
+        @Override
+        public void characters(final char[] ch, final int start, final int length) throws SAXException {
+            if (normalization == null) {
+                super.characters(ch, start, length);
+            } else {
+                final char[] normalized = Normalizer.normalize(new String(ch, start, length), normalization).toCharArray();
+                super.characters(normalized, 0, normalized.length);
+            }
+        }
+
+        private Attributes normalize(final Attributes atts) {
+            if (normalization == null || atts.getLength() == 0) {
+                return atts;
+            }
+            final AttributesImpl normalized = new AttributesImpl(atts);
+            for (int i = 0; i < normalized.getLength(); i++) {
+                normalized.setValue(i, Normalizer.normalize(normalized.getValue(i), normalization));
+            }
+            return normalized;
+        }
+
+        @Override
+        public void startDTD(final String name, final String publicId, final String systemId) {
+        }
+
+        @Override
+        public void endDTD() {
+        }
+
+        @Override
+        public void startEntity(final String name) {
+        }
+
+        @Override
+        public void endEntity(final String name) {
+        }
+
+        @Override
+        public void startCDATA() throws SAXException {
+            if (lexicalHandler != null) {
+                lexicalHandler.startCDATA();
+            }
+        }
+
+        @Override
+        public void endCDATA() throws SAXException {
+            if (lexicalHandler != null) {
+                lexicalHandler.endCDATA();
+            }
+        }
+
+        @Override
+        public void comment(final char[] ch, final int start, final int length) throws SAXException {
+            if (lexicalHandler != null) {
+                lexicalHandler.comment(ch, start, length);
+            }
+        }
+    }
+}
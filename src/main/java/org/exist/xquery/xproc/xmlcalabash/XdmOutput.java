@@ -0,0 +1,60 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SAXDestination;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.DocumentImpl;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.XQueryContext;
+
+/**
+ * Converts documents produced by a pipeline into XQuery document nodes.
+ *
+ * The events of the Saxon tree are passed to a {@link MemTreeBuilder},
+ * without serialization.
+ */
+public class XdmOutput {
+
+    private XdmOutput() {
+    }
+
+    /**
+     * @param context the context the document is built in
+     * @param processor the processor the node was built with
+     * @param node the document produced by the pipeline
+     *
+     * @return the in-memory document
+     *
+     * @throws SaxonApiException if the tree cannot be read
+     */
+    public static DocumentImpl toDocument(final XQueryContext context, final Processor processor, final XdmNode node) throws SaxonApiException {
+        context.pushDocumentContext();
+        try {
+            final MemTreeBuilder builder = context.getDocumentBuilder();
+            final DocumentBuilderReceiver receiver = new DocumentBuilderReceiver(builder, true);
+            processor.writeXdmValue(node, new SAXDestination(receiver));
+            return builder.getDocument();
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+}
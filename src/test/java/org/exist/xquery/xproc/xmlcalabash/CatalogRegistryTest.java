@@ -0,0 +1,87 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The catalogs of a catalog list are parsed once and parsed again when a
+ * catalog file is modified, see {@link CatalogRegistry}.
+ */
+public class CatalogRegistryTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void reuse() throws Exception {
+        final String catalogList = catalog("first.xml").toString();
+        final CatalogRegistry registry = CatalogRegistry.getInstance();
+
+        final CatalogRegistry.Entry entry = registry.get(catalogList);
+        assertSame(entry, registry.get(catalogList));
+
+        final long hits = registry.getHits();
+        final long misses = registry.getMisses();
+        final CatalogRegistry.Lookup lookup = entry.lookupURI("urn:test:doc", null);
+        assertEquals("file:/first.xml", lookup.getResult().uri());
+        assertSame(lookup, entry.lookupURI("urn:test:doc", null));
+        assertEquals(misses + 1, registry.getMisses());
+        assertEquals(hits + 1, registry.getHits());
+    }
+
+    @Test
+    public void reloadWhenModified() throws Exception {
+        final Path file = catalog("first.xml");
+        final String catalogList = file.toString();
+        final CatalogRegistry registry = CatalogRegistry.getInstance();
+
+        final CatalogRegistry.Entry entry = registry.get(catalogList);
+        assertEquals("file:/first.xml", entry.lookupURI("urn:test:doc", null).getResult().uri());
+
+        write(file, "second.xml");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+
+        final CatalogRegistry.Entry reloaded = registry.get(catalogList);
+        assertNotSame(entry, reloaded);
+        assertEquals("file:/second.xml", reloaded.lookupURI("urn:test:doc", null).getResult().uri());
+        assertSame(reloaded, registry.get(catalogList));
+    }
+
+    private Path catalog(final String target) throws Exception {
+        final Path file = temporaryFolder.newFile("catalog.xml").toPath();
+        write(file, target);
+        return file;
+    }
+
+    private static void write(final Path file, final String target) throws Exception {
+        final String catalog = "<catalog xmlns='urn:oasis:names:tc:entity:xmlns:xml:catalog'>"
+                + "<uri name='urn:test:doc' uri='file:/" + target + "'/>"
+                + "</catalog>";
+        Files.write(file, catalog.getBytes(StandardCharsets.UTF_8));
+    }
+}
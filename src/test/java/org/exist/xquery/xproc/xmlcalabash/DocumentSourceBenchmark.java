@@ -0,0 +1,169 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.Txn;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.junit.*;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Compares building a Saxon tree from a stored document through a DOMSource
+ * with streaming it through {@link EXistURIResolver#documentSource}.
+ *
+ * Generates and stores 1, 10 and 100 MB documents, so it only runs when the
+ * <code>xmlcalabash.benchmark</code> system property is set.
+ */
+public class DocumentSourceBenchmark {
+
+    private static final String PROPERTY = "xmlcalabash.benchmark";
+    private static final int RUNS = 3;
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(true, true);
+
+    @BeforeClass
+    public static void enabled() {
+        assumeTrue(Boolean.getBoolean(PROPERTY));
+    }
+
+    @Test
+    public void oneMegabyte() throws Exception {
+        benchmark(1);
+    }
+
+    @Test
+    public void tenMegabytes() throws Exception {
+        benchmark(10);
+    }
+
+    @Test
+    public void hundredMegabytes() throws Exception {
+        benchmark(100);
+    }
+
+    private void benchmark(final int megabytes) throws Exception {
+        final XmldbURI docUri = store("bench-" + megabytes + "mb.xml", megabytes);
+        final Processor processor = new Processor(false);
+
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final LockedDocument lockedDoc = broker.getXMLResource(docUri, LockMode.READ_LOCK)) {
+            final DocumentImpl doc = lockedDoc.getDocument();
+
+            // warm up both paths and check that they build the same tree
+            final XdmNode dom = build(processor, new DOMSource(doc));
+            final XdmNode streamed = build(processor, EXistURIResolver.documentSource(broker, doc));
+            assertEquals(count(dom), count(streamed));
+
+            long domTime = 0;
+            long streamTime = 0;
+            for (int i = 0; i < RUNS; i++) {
+                long start = System.nanoTime();
+                build(processor, new DOMSource(doc));
+                domTime += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                build(processor, EXistURIResolver.documentSource(broker, doc));
+                streamTime += System.nanoTime() - start;
+            }
+
+            System.out.println(String.format("%d MB: DOMSource %d ms, streamed %d ms (average of %d runs)",
+                    megabytes, domTime / RUNS / 1000000, streamTime / RUNS / 1000000, RUNS));
+        }
+    }
+
+    private static XdmNode build(final Processor processor, final Source source) throws SaxonApiException {
+        return processor.newDocumentBuilder().build(source);
+    }
+
+    private static long count(final XdmNode node) {
+        long count = 0;
+        final XdmSequenceIterator descendants = node.axisIterator(Axis.DESCENDANT);
+        while (descendants.hasNext()) {
+            descendants.next();
+            count++;
+        }
+        return count;
+    }
+
+    private XmldbURI store(final String docName, final int megabytes) throws IOException, EXistException, PermissionDeniedException, LockException, SAXException {
+        final Path file = Files.createTempFile("xmlcalabash-bench", ".xml");
+        try {
+            final long size = megabytes * 1024L * 1024L;
+            try (final Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                writer.write("<root xmlns:b='urn:bench'>");
+                long written = 0;
+                for (int i = 0; written < size; i++) {
+                    final String record = "<b:record id='" + i + "'><name>Record " + i + "</name>"
+                            + "<!-- record " + i + " --><value>" + (i * 31) + "</value></b:record>\n";
+                    writer.write(record);
+                    written += record.length();
+                }
+                writer.write("</root>");
+            }
+
+            final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+            try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+                 final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+
+                final Collection root = broker.getOrCreateCollection(transaction, XmldbURI.ROOT_COLLECTION_URI.append("bench"));
+                broker.saveCollection(transaction, root);
+
+                final IndexInfo info = root.validateXMLResource(transaction, broker, XmldbURI.create(docName), new InputSource(file.toUri().toString()));
+                assertNotNull(info);
+                root.store(transaction, broker, info, new InputSource(file.toUri().toString()));
+
+                transaction.commit();
+                return root.getURI().append(docName);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
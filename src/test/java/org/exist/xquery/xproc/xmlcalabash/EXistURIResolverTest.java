@@ -0,0 +1,149 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.trans.XPathException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.xmldb.XmldbURI;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+/**
+ * The {@link EXistURIResolver} resolves the XQuery library modules imported
+ * by a query from the database as the user of the run, on threads that do
+ * not hold a broker.
+ */
+public class EXistURIResolverTest {
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(true, true);
+
+    private static final String COLLECTION = "/db/xproc-resolver";
+    private static final String NAMESPACE = "http://exist-db.org/xproc/test/lib";
+    private static final String BASE = "xmldb:exist://" + COLLECTION + "/query.xq";
+
+    @BeforeClass
+    public static void store() throws Exception {
+        query("xmldb:create-collection('/db', 'xproc-resolver'),"
+                + "xmldb:store('" + COLLECTION + "', 'lib.xqm',"
+                + "  'module namespace lib=\"" + NAMESPACE + "\"; declare function lib:value() { 1 };',"
+                + "  'application/xquery'),"
+                + "xmldb:store('" + COLLECTION + "', 'secret.xqm',"
+                + "  'module namespace lib=\"" + NAMESPACE + "\"; declare function lib:value() { 2 };',"
+                + "  'application/xquery'),"
+                + "sm:chmod(xs:anyURI('" + COLLECTION + "/secret.xqm'), 'rw-------')");
+    }
+
+    @AfterClass
+    public static void remove() throws Exception {
+        query("xmldb:remove('" + COLLECTION + "')");
+    }
+
+    @Test
+    public void resolveModule() throws Exception {
+        final EXistURIResolver resolver = resolver();
+        final StreamSource[] sources = resolver.resolve(NAMESPACE, BASE, new String[] { "lib.xqm" });
+        assertEquals(1, sources.length);
+        assertEquals(COLLECTION + "/lib.xqm", sources[0].getSystemId());
+        assertTrue(read(sources[0]).contains("lib:value() { 1 }"));
+
+        // imported modules are dependencies of the query that imports them
+        assertTrue(resolver.getDependencies().dependsOn(XmldbURI.create(COLLECTION + "/lib.xqm")));
+        assertEquals(1, resolver.getResources().getReads());
+    }
+
+    @Test
+    public void moduleNotReadable() throws Exception {
+        for (final String location : new String[] { "secret.xqm", "missing.xqm" }) {
+            try {
+                resolver().resolve(NAMESPACE, BASE, new String[] { location });
+                fail("The module " + location + " cannot be read by guest");
+            } catch (final XPathException e) {
+                assertEquals("XQST0059", e.getErrorCodeLocalPart());
+            }
+        }
+    }
+
+    @Test
+    public void concurrentResolution() throws Exception {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final int activeBrokers = pool.countActiveBrokers();
+        final EXistURIResolver resolver = resolver();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                // none of the threads holds a broker
+                results.add(executor.submit(() -> read(resolver.resolve(NAMESPACE, BASE, new String[] { "lib.xqm" })[0])));
+            }
+            for (final Future<String> result : results) {
+                assertTrue(result.get().contains("lib:value() { 1 }"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(40, resolver.getResources().getReads());
+        assertEquals(1, resolver.getDependencies().getDocuments().size());
+        // every broker borrowed by the resolver was given back
+        assertEquals(activeBrokers, pool.countActiveBrokers());
+    }
+
+    private static EXistURIResolver resolver() {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        return new EXistURIResolver(pool, pool.getSecurityManager().getGuestSubject(), null, COLLECTION, null);
+    }
+
+    private static String read(final StreamSource source) throws Exception {
+        try (final InputStream is = source.getInputStream()) {
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+            return new String(os.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void query(final String query) throws Exception {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            pool.getXQueryService().execute(broker, query, null);
+        }
+    }
+}
@@ -234,6 +234,284 @@ public class ExternalTests {
         );
     }
 
+    @Test
+    public void test_10() throws Exception {
+        storeXML("a.xml");
+        final BinaryDocument xq = storeBinary("test-10.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<InputAndOption>"
+                        + "<XProc-test-A option-passed=\"passed-value-for-option\">This is file a.xml for the EXist XProc integration test</XProc-test-A>"
+                        + "</InputAndOption>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_11() throws Exception {
+        final BinaryDocument xq = storeBinary("test-11.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<Cached>true</Cached>"
+                        + "<Runs><value>first</value><value>first</value></Runs>"
+                        + "<Batch>32 true</Batch>"
+                        + "<Modified><value>second</value></Modified>"
+                        + "<Evicted>65 true<value>1</value>1</Evicted>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_12() throws Exception {
+        final BinaryDocument xq = storeBinary("test-12.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<Pooled>true</Pooled>"
+                        + "<FirstRun><collection><doc>first</doc></collection></FirstRun>"
+                        + "<SecondRun><collection/></SecondRun>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_13() throws Exception {
+        final BinaryDocument xq = storeBinary("test-13.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<String>&lt;a/&gt;&lt;b/&gt;&lt;c/&gt;</String>"
+                        + "<Document>3 true a b c</Document>"
+                        + "<Lazy>3 true a b c</Lazy>"
+                        + "<Binary>true true</Binary>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_14() throws Exception {
+        final BinaryDocument xq = storeBinary("test-14.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<Text>text/plain text</Text>"
+                        + "<XML>application/tei+xml<doc>xml</doc></XML>"
+                        + "<HTML>text/html true</HTML>"
+                        + "<Doctype>true 1 1 1</Doctype>"
+                        + "<Sequence>failed false</Sequence>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_15() throws Exception {
+        final BinaryDocument xq = storeBinary("test-15.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<Cached>true</Cached>"
+                        + "<Runs><doc>first</doc><doc>first</doc></Runs>"
+                        + "<Modified><doc>second</doc></Modified>"
+                        + "<Private>private private denied 0</Private>"
+                        + "<Doc><doc>second</doc>1</Doc>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_16() throws Exception {
+        final BinaryDocument xq = storeBinary("test-16.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<Cached>true</Cached>"
+                        + "<Runs><value>first</value><value>first</value></Runs>"
+                        + "<Modified><value>second</value></Modified>"
+                        + "<Imported><value>imported</value><value>imported</value>0<value>changed</value>1</Imported>"
+                        + "<Shared><value>changed</value>0</Shared>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_17() throws Exception {
+        final BinaryDocument xq = storeBinary("test-17.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<Cached>true</Cached>"
+                        + "<Runs><value>first</value><value>first</value></Runs>"
+                        + "<Modified><value>second</value></Modified>"
+                        + "<Shared><count>1</count><count>3</count>1</Shared>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_18() throws Exception {
+        final BinaryDocument xq = storeBinary("test-18.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<Invalidated>true</Invalidated>"
+                        + "<Runs><value>first</value><value>second</value></Runs>"
+                        + "<Removed>true</Removed>"
+                        + "<Documents><value>first</value><value>first</value>true<value>second</value></Documents>"
+                        + "<Permissions>second second denied</Permissions>"
+                        + "<Metadata>true</Metadata>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_19() throws Exception {
+        final BinaryDocument xq = storeBinary("test-19.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<Runs>1:option-default-value 2:passed-value-for-option 3:option-default-value</Runs>"
+                        + "<State><collection><doc>first</doc></collection><collection/></State>"
+                        + "<Unknown>failed</Unknown>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_20() throws Exception {
+        final BinaryDocument xq = storeBinary("test-20.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<Results>12</Results>"
+                        + "<Outputs>1,2,3,4,5,6,7,8,9,10,11 batch</Outputs>"
+                        + "<Errors>1 true</Errors>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_21() throws Exception {
+        final BinaryDocument xq = storeBinary("test-21.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<Result>submitted</Result>"
+                        + "<Status>true completed true</Status>"
+                        + "<Cancel>true true</Cancel>"
+                        + "<Failed>failed failed</Failed>"
+                        + "<Unknown>true false</Unknown>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_22() throws Exception {
+        final BinaryDocument xq = storeBinary("test-22.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<Order>1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20</Order>"
+                        + "<Options>parallel</Options>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_23() throws Exception {
+        final BinaryDocument xq = storeBinary("test-23.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<A>doc 0 doc 1</A>"
+                        + "<B>denied 0</B>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_24() throws Exception {
+        final BinaryDocument xq = storeBinary("test-24.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<String>true true</String>"
+                        + "<Document>true a,b</Document>"
+                        + "<Lazy>2 a,b</Lazy>"
+                        + "<Binary>true true</Binary>"
+                        + "<Default>true true true</Default>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_25() throws Exception {
+        final BinaryDocument xq = storeBinary("test-25.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<Lazy>a a,b,c true</Lazy>"
+                        + "<Borrowed>0 1</Borrowed>"
+                        + "<Released>1</Released>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_26() throws Exception {
+        final BinaryDocument xq = storeBinary("test-26.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<Cached>abc abc 0</Cached>"
+                        + "<Shared>abc 0</Shared>"
+                        + "<Modified>invalid 1</Modified>"
+                        + "<Private>abc invalid</Private>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_27() throws Exception {
+        final BinaryDocument xq = storeBinary("test-27.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<First>configured 1 0 1</First>"
+                        + "<Second>configured 0 1 0</Second>"
+                        + "<Modified>configured 1 0 1</Modified>"
+                        + "<Binary>configured 1 0 1 configured 0 1 0</Binary>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_28() throws Exception {
+        final BinaryDocument xq = storeBinary("test-28.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<First>data lookup<dependency reads=\"1\" current=\"true\">test-xproc-28.xpl</dependency><dependency reads=\"1\" current=\"true\">test-28.xsl</dependency><dependency reads=\"1\" current=\"true\">test-28.xml</dependency><dependency reads=\"1\" current=\"true\">test-28-lookup.xml</dependency></First>"
+                        + "<Second>data lookup<dependency reads=\"0\" current=\"true\">test-xproc-28.xpl</dependency><dependency reads=\"1\" current=\"true\">test-28.xsl</dependency><dependency reads=\"1\" current=\"true\">test-28.xml</dependency><dependency reads=\"1\" current=\"true\">test-28-lookup.xml</dependency></Second>"
+                        + "</XProcTest>"
+        );
+    }
+
+    @Test
+    public void test_29() throws Exception {
+        final BinaryDocument xq = storeBinary("test-29.xql");
+        runTest(
+                xq,
+                "<XProcTest>"
+                        + "<First><value>first</value><module reads=\"1\">test-29-lib.xqm</module></First>"
+                        + "<Again>true<value>first</value><module reads=\"0\">test-29-lib.xqm</module></Again>"
+                        + "<Modified><value>second</value><module reads=\"1\">test-29-lib.xqm</module></Modified>"
+                        + "<Denied><value>second</value>denied</Denied>"
+                        + "</XProcTest>"
+        );
+    }
+
     public void runTest(final BinaryDocument xq, final String expect) throws Exception {
         final BrokerPool pool = existEmbeddedServer.getBrokerPool();
         try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
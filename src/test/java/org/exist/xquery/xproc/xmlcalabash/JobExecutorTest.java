@@ -0,0 +1,129 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
+import org.exist.test.ExistEmbeddedServer;
+import org.junit.After;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+/**
+ * The {@link JobExecutor} rejects jobs while its queue is full, and removes
+ * expired jobs together with their temporary files in the background.
+ */
+public class JobExecutorTest {
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(true, true);
+
+    @After
+    public void reset() {
+        final JobExecutor executor = JobExecutor.getInstance();
+        executor.setThreads(JobExecutor.DEFAULT_THREADS);
+        executor.setQueueSize(JobExecutor.DEFAULT_QUEUE_SIZE);
+        executor.setResultTtl(JobExecutor.DEFAULT_RESULT_TTL);
+    }
+
+    @Test
+    public void queueFull() throws Exception {
+        final JobExecutor executor = JobExecutor.getInstance();
+        executor.setThreads(1);
+        executor.setQueueSize(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final Job running = submit(broker -> {
+            release.await();
+            return null;
+        });
+        try {
+            awaitState(running, Job.State.RUNNING);
+            final Job queued = submit(broker -> null);
+            assertEquals(Job.State.QUEUED, queued.getState());
+            try {
+                submit(broker -> null);
+                fail("The queue is full");
+            } catch (final RejectedExecutionException e) {
+                // expected
+            }
+
+            // a cancelled job leaves the queue
+            executor.cancel(queued);
+            final Job next = submit(broker -> null);
+
+            release.countDown();
+            assertTrue(next.await(10000));
+            assertEquals(Job.State.COMPLETED, next.getState());
+            assertEquals(Job.State.COMPLETED, running.getState());
+            assertEquals(Job.State.CANCELLED, queued.getState());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void purgeExpired() throws Exception {
+        final JobExecutor executor = JobExecutor.getInstance();
+        executor.setResultTtl(1);
+
+        final OutputBuffer buffer = new OutputBuffer(0);
+        buffer.write("<spilled/>".getBytes(StandardCharsets.UTF_8));
+        final Job job = submit(broker -> Job.Result.of(new UserArgs(),
+                Collections.singletonMap("result", new PortOutput(buffer)), null));
+        assertTrue(job.await(10000));
+        assertEquals(Job.State.COMPLETED, job.getState());
+
+        final Path file = buffer.getFile();
+        assertNotNull(file);
+        assertTrue(Files.exists(file));
+
+        // nothing is submitted or looked up, the scheduled purge removes the job
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (executor.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, executor.size());
+        assertNull(job.getResult());
+        assertFalse(Files.exists(file));
+    }
+
+    private static Job submit(final JobExecutor.Task task) {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final Subject guest = pool.getSecurityManager().getGuestSubject();
+        return JobExecutor.getInstance().submit(pool, guest, task);
+    }
+
+    private static void awaitState(final Job job, final Job.State state) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (job.getState() != state && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(state, job.getState());
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Test;
+
+/**
+ * Libraries given as streams are kept in memory by the digest of their
+ * content and base URI, see {@link LibraryRegistry}.
+ */
+public class LibraryRegistryTest {
+
+    private static final String BASE = "xmldb:exist:///db/apps/lib/library.xpl";
+
+    @Test
+    public void sameLibrarySameURI() throws Exception {
+        final LibraryRegistry registry = new LibraryRegistry();
+
+        final String uri = registry.register(stream(library("a")), BASE);
+        assertTrue(LibraryRegistry.isLibraryURI(uri));
+        assertEquals(uri, registry.register(library("a"), BASE));
+        assertEquals(1, registry.size());
+        assertEquals(1, registry.getMisses());
+        assertEquals(1, registry.getHits());
+
+        // the base URI is part of the identity, relative references depend on it
+        assertNotEquals(uri, registry.register(library("a"), "xmldb:exist:///db/apps/other/library.xpl"));
+        assertNotEquals(uri, registry.register(library("a"), null));
+        assertNotEquals(uri, registry.register(library("b"), BASE));
+        assertEquals(4, registry.size());
+    }
+
+    @Test
+    public void resolve() throws Exception {
+        final LibraryRegistry registry = new LibraryRegistry();
+        final String uri = registry.register(library("a"), BASE);
+        final String withoutBase = registry.register(library("a"), null);
+
+        final StreamSource source = (StreamSource) registry.resolve(uri);
+        assertEquals(BASE, source.getSystemId());
+        assertArrayEquals(library("a"), read(source.getInputStream()));
+        assertEquals(withoutBase, registry.resolve(withoutBase).getSystemId());
+
+        assertNull(registry.resolve(BASE));
+        try {
+            registry.resolve(LibraryRegistry.SCHEME + ":unknown");
+            fail("An unknown library cannot be resolved");
+        } catch (final TransformerException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void evictUnpinned() throws Exception {
+        final LibraryRegistry registry = new LibraryRegistry();
+        final String pinned = registry.register(library("pinned"), BASE);
+        registry.pin(pinned);
+        final String first = registry.register(library("first"), BASE);
+
+        for (int i = 0; i < LibraryRegistry.MAX_LIBRARIES; i++) {
+            registry.register(library("library-" + i), BASE);
+        }
+        assertEquals(LibraryRegistry.MAX_LIBRARIES, registry.size());
+        assertNotNull(registry.resolve(pinned));
+        try {
+            registry.resolve(first);
+            fail("The least recently used library is forgotten");
+        } catch (final TransformerException e) {
+            // expected
+        }
+
+        registry.unpin(pinned);
+        for (int i = 0; i < LibraryRegistry.MAX_LIBRARIES; i++) {
+            registry.register(library("other-" + i), BASE);
+        }
+        try {
+            registry.resolve(pinned);
+            fail("An unpinned library is forgotten like any other");
+        } catch (final TransformerException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void clearKeepsPinned() throws Exception {
+        final LibraryRegistry registry = new LibraryRegistry();
+        final String pinned = registry.register(library("pinned"), BASE);
+        final String unpinned = registry.register(library("unpinned"), BASE);
+        registry.pin(pinned);
+
+        registry.clear();
+        assertEquals(1, registry.size());
+        assertNotNull(registry.resolve(pinned));
+        assertEquals(unpinned, registry.register(library("unpinned"), BASE));
+    }
+
+    private static byte[] library(final String name) {
+        return ("<p:library xmlns:p=\"http://www.w3.org/ns/xproc\" name=\"" + name + "\"/>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static InputStream stream(final byte[] content) {
+        return new ByteArrayInputStream(content);
+    }
+
+    private static byte[] read(final InputStream is) throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, read);
+        }
+        return os.toByteArray();
+    }
+}
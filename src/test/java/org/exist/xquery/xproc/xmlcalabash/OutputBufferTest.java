@@ -0,0 +1,104 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+/**
+ * Serialized outputs are kept in memory up to the threshold of the buffer
+ * and written to a temporary file beyond it, see {@link OutputBuffer}.
+ */
+public class OutputBufferTest {
+
+    private static final byte[] CONTENT = "<doc>0123456789</doc>".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void belowThreshold() throws Exception {
+        final OutputBuffer buffer = new OutputBuffer(CONTENT.length);
+        buffer.write(CONTENT);
+
+        assertTrue(buffer.isInMemory());
+        assertNull(buffer.getFile());
+        assertEquals(CONTENT.length, buffer.size());
+        assertArrayEquals(CONTENT, read(buffer.openInputStream()));
+    }
+
+    @Test
+    public void spillPastThreshold() throws Exception {
+        final OutputBuffer buffer = new OutputBuffer(CONTENT.length - 1);
+        buffer.write(CONTENT, 0, 5);
+        assertTrue(buffer.isInMemory());
+        buffer.write(CONTENT, 5, CONTENT.length - 5);
+
+        assertFalse(buffer.isInMemory());
+        final Path file = buffer.getFile();
+        assertTrue(Files.exists(file));
+        assertEquals(CONTENT.length, buffer.size());
+
+        // the buffer is kept until it is discarded, and can be read again
+        assertArrayEquals(CONTENT, read(buffer.openInputStream()));
+        assertEquals(new String(CONTENT, StandardCharsets.UTF_8), buffer.toString(StandardCharsets.UTF_8));
+        assertTrue(Files.exists(file));
+
+        buffer.discard();
+        assertFalse(Files.exists(file));
+        assertNull(buffer.getFile());
+    }
+
+    @Test
+    public void closingTheStreamRemovesTheFile() throws Exception {
+        final OutputBuffer buffer = new OutputBuffer(0);
+        buffer.write(CONTENT);
+        final Path file = buffer.getFile();
+        assertTrue(Files.exists(file));
+
+        assertArrayEquals(CONTENT, read(buffer.getInputStream()));
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void discardTwice() throws Exception {
+        final OutputBuffer buffer = new OutputBuffer(0);
+        buffer.write(CONTENT);
+        final Path file = buffer.getFile();
+
+        buffer.discard();
+        buffer.discard();
+        assertFalse(Files.exists(file));
+    }
+
+    private static byte[] read(final InputStream is) throws Exception {
+        try (final InputStream in = is) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[4096];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
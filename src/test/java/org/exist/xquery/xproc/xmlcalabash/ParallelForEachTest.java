@@ -0,0 +1,199 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpServer;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.test.ExistEmbeddedServer;
+import org.junit.*;
+
+/**
+ * The iterations of <code>xmlcalabash:for-each</code> run at the same time,
+ * on at most as many workers as its <code>threads</code> option and the
+ * <code>batch-threads</code> of the {@link BatchExecutor} allow, and their
+ * outputs keep the order of the source documents.
+ *
+ * Each iteration loads a document from a local HTTP server, which counts
+ * the requests it serves at the same time. A request waits until as many
+ * requests as expected are served, so that the count reaches the bound.
+ */
+public class ParallelForEachTest {
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(true, true);
+
+    private static final String COLLECTION = "/db/xproc-for-each";
+    private static final URI STATIC_BASE_URI = URI.create("xmldb:exist://" + COLLECTION + "/");
+
+    private static HttpServer server;
+    private static ExecutorService serverExecutor;
+
+    private static final AtomicInteger active = new AtomicInteger();
+    private static final AtomicInteger maxActive = new AtomicInteger();
+    private static volatile CountDownLatch arrived;
+    private static volatile int documents;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> {
+            final int n = Integer.parseInt(exchange.getRequestURI().getPath().substring(1));
+            final int now = active.incrementAndGet();
+            maxActive.accumulateAndGet(now, Math::max);
+            try {
+                arrived.countDown();
+                arrived.await(10, TimeUnit.SECONDS);
+                // the later documents are done first
+                Thread.sleep(20L * (documents - n + 1));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                active.decrementAndGet();
+            }
+            final byte[] body = ("<doc n=\"" + n + "\"/>").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/xml");
+            exchange.sendResponseHeaders(200, body.length);
+            try (final OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+
+        query("xmldb:create-collection('/db', 'xproc-for-each'),"
+                + "xmldb:store('" + COLLECTION + "', 'iteration.xpl',"
+                + "  <p:declare-step xmlns:p='http://www.w3.org/ns/xproc' version='1.0' name='main'>"
+                + "    <p:input port='source'/>"
+                + "    <p:output port='result'/>"
+                + "    <p:load>"
+                + "      <p:with-option name='href' select=\"concat('http://127.0.0.1:" + server.getAddress().getPort() + "/', /doc/@n)\">"
+                + "        <p:pipe step='main' port='source'/>"
+                + "      </p:with-option>"
+                + "    </p:load>"
+                + "  </p:declare-step>)");
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        BatchExecutor.getInstance().setThreads(BatchExecutor.DEFAULT_THREADS);
+        query("xmldb:remove('" + COLLECTION + "')");
+        if (server != null) {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentIterations() throws Exception {
+        BatchExecutor.getInstance().setThreads(4);
+        assertEquals(4, run(null, 8));
+    }
+
+    @Test
+    public void threadsOption() throws Exception {
+        BatchExecutor.getInstance().setThreads(8);
+        assertEquals(2, run("2", 6));
+    }
+
+    @Test
+    public void batchThreadsBound() throws Exception {
+        BatchExecutor.getInstance().setThreads(3);
+        assertEquals(3, run("8", 9));
+    }
+
+    /**
+     * Run the iterations over a number of documents.
+     *
+     * @param threads the threads option of the step, or null
+     * @return the number of iterations that ran at the same time at most
+     */
+    private static int run(final String threads, final int count) throws Exception {
+        final int expected = Math.min(BatchExecutor.getInstance().getThreads(),
+                threads == null ? Integer.MAX_VALUE : Integer.parseInt(threads));
+        arrived = new CountDownLatch(expected);
+        documents = count;
+        active.set(0);
+        maxActive.set(0);
+
+        final String pipeline = "main-" + (threads == null ? "default" : threads) + ".xpl";
+        query("xmldb:store('" + COLLECTION + "', '" + pipeline + "',"
+                + "  <p:declare-step xmlns:p='http://www.w3.org/ns/xproc' xmlns:xmlcalabash='http://exist-db.org/xquery/xproc/xmlcalabash' version='1.0'>"
+                + "    <p:input port='source'/>"
+                + "    <p:output port='result'/>"
+                + "    <p:declare-step type='xmlcalabash:for-each'>"
+                + "      <p:input port='source' sequence='true' primary='true'/>"
+                + "      <p:input port='parameters' kind='parameter'/>"
+                + "      <p:output port='result' sequence='true'/>"
+                + "      <p:option name='pipeline' required='true'/>"
+                + "      <p:option name='port'/>"
+                + "      <p:option name='threads'/>"
+                + "    </p:declare-step>"
+                + "    <p:filter select='/*/*'/>"
+                + "    <xmlcalabash:for-each pipeline='iteration.xpl'"
+                + (threads == null ? "" : " threads='" + threads + "'") + ">"
+                + "      <p:input port='parameters'><p:empty/></p:input>"
+                + "    </xmlcalabash:for-each>"
+                + "    <p:wrap-sequence wrapper='results'/>"
+                + "  </p:declare-step>)");
+
+        final StringBuilder input = new StringBuilder("<docs>");
+        final StringBuilder order = new StringBuilder("<results>");
+        for (int n = 1; n <= count; n++) {
+            input.append("<doc n=\"").append(n).append("\"/>");
+            order.append("<doc n=\"").append(n).append("\"/>");
+        }
+        input.append("</docs>");
+        order.append("</results>");
+
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final UserArgs userArgs = new UserArgs();
+            userArgs.setPipeline(STATIC_BASE_URI + pipeline);
+            try (final RunResult result = XProcRunner.run(STATIC_BASE_URI, broker, userArgs, XdmInput.of(input.toString()))) {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                result.getOutputs().get("result").writeTo(bytes);
+                final String output = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+                assertTrue(output, output.contains(order));
+            }
+        }
+        return maxActive.get();
+    }
+
+    private static void query(final String query) throws Exception {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            pool.getXQueryService().execute(broker, query, null);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.exist.xmldb.XmldbURI;
+import org.junit.Test;
+
+/**
+ * The resources reported by a run, see {@link ResolvedResources}.
+ */
+public class ResolvedResourcesTest {
+
+    private static final XmldbURI PIPELINE = XmldbURI.create("/db/apps/test/pipeline.xpl");
+    private static final XmldbURI DATA = XmldbURI.create("/db/apps/test/data.xml");
+    private static final String URL = "http://example.org/data.xml";
+
+    @Test
+    public void documentsAndUrls() {
+        final ResolvedResources resources = new ResolvedResources();
+        resources.addDocument(PIPELINE, 10);
+        resources.addUrl(URL);
+        resources.addDocument(DATA, 20);
+        resources.addDocument(PIPELINE, 30);
+        resources.addUrl(null);
+
+        final List<ResolvedResources.Resource> list = resources.getResources();
+        assertEquals(3, list.size());
+        assertEquals(3, resources.size());
+        assertEquals(4, resources.getReads());
+
+        // in the order they were first read
+        assertResource(list.get(0), "xmldb:exist:///db/apps/test/pipeline.xpl", true, 30, 2);
+        assertResource(list.get(1), URL, false, -1, 1);
+        assertResource(list.get(2), "xmldb:exist:///db/apps/test/data.xml", true, 20, 1);
+    }
+
+    @Test
+    public void cachedAreNotReads() {
+        final Dependencies dependencies = new Dependencies();
+        dependencies.addDocument(PIPELINE, 10);
+        dependencies.addDocument(DATA, 20);
+
+        final ResolvedResources resources = new ResolvedResources();
+        resources.addDocument(DATA, 25);
+        resources.addCached(dependencies);
+
+        final List<ResolvedResources.Resource> list = resources.getResources();
+        assertEquals(2, list.size());
+        assertEquals(1, resources.getReads());
+        // a document read by the run keeps its reads and the time it was read at
+        assertResource(list.get(0), "xmldb:exist:///db/apps/test/data.xml", true, 25, 1);
+        assertResource(list.get(1), "xmldb:exist:///db/apps/test/pipeline.xpl", true, 10, 0);
+    }
+
+    @Test
+    public void addAll() {
+        final ResolvedResources first = new ResolvedResources();
+        first.addDocument(PIPELINE, 10);
+        first.addUrl(URL);
+
+        final ResolvedResources second = new ResolvedResources();
+        second.addDocument(DATA, 20);
+        second.addDocument(PIPELINE, 30);
+        second.addUrl(URL);
+
+        first.addAll(second);
+        final List<ResolvedResources.Resource> list = first.getResources();
+        assertEquals(3, list.size());
+        assertEquals(5, first.getReads());
+        assertResource(list.get(0), "xmldb:exist:///db/apps/test/pipeline.xpl", true, 30, 2);
+        assertResource(list.get(1), URL, false, -1, 2);
+        assertResource(list.get(2), "xmldb:exist:///db/apps/test/data.xml", true, 20, 1);
+
+        // the other record is left as it was
+        assertEquals(3, second.getReads());
+    }
+
+    @Test
+    public void copies() {
+        final ResolvedResources resources = new ResolvedResources();
+        resources.addDocument(DATA, 20);
+        final List<ResolvedResources.Resource> before = resources.getResources();
+
+        resources.addDocument(DATA, 40);
+        assertResource(before.get(0), "xmldb:exist:///db/apps/test/data.xml", true, 20, 1);
+        assertResource(resources.getResources().get(0), "xmldb:exist:///db/apps/test/data.xml", true, 40, 2);
+    }
+
+    private static void assertResource(final ResolvedResources.Resource resource, final String uri,
+            final boolean document, final long lastModified, final int reads) {
+        assertEquals(uri, resource.getUri());
+        assertEquals(document, resource.isDocument());
+        assertEquals(lastModified, resource.getLastModified());
+        assertEquals(reads, resource.getReads());
+    }
+}
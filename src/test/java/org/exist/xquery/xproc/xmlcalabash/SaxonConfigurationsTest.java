@@ -0,0 +1,133 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.trans.XPathException;
+import org.exist.test.ExistEmbeddedServer;
+import org.junit.*;
+
+import com.xmlcalabash.core.XProcRuntime;
+
+/**
+ * Runtimes created with the Saxon configuration of eXist-db share its name
+ * pool, see {@link SaxonConfigurations}.
+ */
+public class SaxonConfigurationsTest {
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(true, true);
+
+    private static Configuration shared;
+
+    @BeforeClass
+    public static void sharedConfiguration() {
+        shared = SaxonConfigurations.getConfiguration(existEmbeddedServer.getBrokerPool());
+        assertNotNull("eXist-db is configured to use Saxon", shared);
+    }
+
+    @Test
+    public void runtimesShareTheNamePool() throws Exception {
+        final XProcRuntime first = newRuntime(shared);
+        final XProcRuntime second = newRuntime(shared);
+        try {
+            final Configuration firstConfiguration = first.getProcessor().getUnderlyingConfiguration();
+            final Configuration secondConfiguration = second.getProcessor().getUnderlyingConfiguration();
+
+            // each runtime registers its own resolver and extension functions
+            assertNotSame(shared, firstConfiguration);
+            assertNotSame(firstConfiguration, secondConfiguration);
+
+            assertSame(shared.getNamePool(), firstConfiguration.getNamePool());
+            assertSame(shared.getNamePool(), secondConfiguration.getNamePool());
+            assertTrue(firstConfiguration.isCompatible(shared));
+            assertTrue(firstConfiguration.isCompatible(secondConfiguration));
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void treesOfEXistAreNotCopied() throws Exception {
+        final XdmNode doc = build(shared, "<doc><n>1</n></doc>");
+
+        final XProcRuntime runtime = newRuntime(shared);
+        try {
+            final XdmItem n = select(runtime, doc, "/doc/n");
+            assertEquals("1", n.getStringValue());
+            assertSame(doc.getUnderlyingNode().getTreeInfo(), ((XdmNode) n).getUnderlyingNode().getTreeInfo());
+        } finally {
+            runtime.close();
+        }
+    }
+
+    @Test
+    public void privateConfigurations() throws Exception {
+        final XdmNode doc = build(shared, "<doc/>");
+
+        final XProcRuntime runtime = newRuntime(null);
+        final XProcRuntime other = newRuntime(null);
+        try {
+            final Configuration configuration = runtime.getProcessor().getUnderlyingConfiguration();
+            assertNotSame(shared.getNamePool(), configuration.getNamePool());
+            assertFalse(configuration.isCompatible(shared));
+
+            // private runtimes share the name pool of the module, so they share compiled stylesheets
+            final Configuration otherConfiguration = other.getProcessor().getUnderlyingConfiguration();
+            assertSame(SaxonConfigurations.getModuleConfiguration().getNamePool(), configuration.getNamePool());
+            assertTrue(configuration.isCompatible(otherConfiguration));
+
+            try {
+                select(runtime, doc, "/doc");
+                fail("A tree of another name pool has to be copied");
+            } catch (final SaxonApiException e) {
+                // expected
+            }
+        } finally {
+            runtime.close();
+            other.close();
+        }
+    }
+
+    private static XProcRuntime newRuntime(final Configuration sharedSaxonConfiguration) throws Exception {
+        final UserArgs userArgs = new UserArgs();
+        userArgs.setSharedSaxonConfiguration(sharedSaxonConfiguration);
+        return new XProcRuntime(userArgs.createConfiguration());
+    }
+
+    private static XdmNode build(final Configuration configuration, final String xml) throws XPathException {
+        return new XdmNode(configuration.buildDocumentTree(new StreamSource(new StringReader(xml))).getRootNode());
+    }
+
+    private static XdmItem select(final XProcRuntime runtime, final XdmNode context, final String path) throws SaxonApiException {
+        final XPathSelector selector = runtime.getProcessor().newXPathCompiler().compile(path).load();
+        selector.setContextItem(context);
+        return selector.evaluateSingle();
+    }
+}
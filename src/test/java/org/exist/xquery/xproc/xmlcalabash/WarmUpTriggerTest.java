@@ -0,0 +1,172 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.exist.security.AbstractAccount;
+import org.exist.security.Subject;
+import org.exist.security.internal.SubjectAccreditedImpl;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.test.ExistEmbeddedServer;
+import org.junit.*;
+
+/**
+ * The pipelines and stylesheets listed in the parameters of the
+ * {@link WarmUpTrigger} are compiled as the warm-up user, and the sizes
+ * given to the trigger are kept when the module is loaded.
+ */
+public class WarmUpTriggerTest {
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(true, true);
+
+    private static final String COLLECTION = "/db/xproc-warm-up";
+    private static final String USER = "xproc-warm-up";
+    private static final URI STATIC_BASE_URI = URI.create("xmldb:exist:///db/");
+
+    @BeforeClass
+    public static void store() throws Exception {
+        query("xmldb:create-collection('/db', 'xproc-warm-up'),"
+                + "sm:create-account('" + USER + "', '" + USER + "', ()),"
+                + "xmldb:store('" + COLLECTION + "', 'warm-up.xsl',"
+                + "  <xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>"
+                + "    <xsl:template match='/'><warm><xsl:value-of select='name(*)'/></warm></xsl:template>"
+                + "  </xsl:stylesheet>),"
+                + "for $name in ('guest', 'admin', 'user') return xmldb:store('" + COLLECTION + "', $name || '.xpl',"
+                + "  <p:declare-step xmlns:p='http://www.w3.org/ns/xproc' version='1.0'>"
+                + "    <p:output port='result'/>"
+                + "    <p:xslt>"
+                + "      <p:input port='source'><p:inline><cold/></p:inline></p:input>"
+                + "      <p:input port='stylesheet'><p:document href='warm-up.xsl'/></p:input>"
+                + "      <p:input port='parameters'><p:empty/></p:input>"
+                + "    </p:xslt>"
+                + "  </p:declare-step>)");
+    }
+
+    @AfterClass
+    public static void remove() throws Exception {
+        XProcXmlCalabashModule.configure(Collections.emptyMap());
+        query("sm:remove-account('" + USER + "'), xmldb:remove('" + COLLECTION + "')");
+    }
+
+    @Test
+    public void warmUpAsGuest() throws Exception {
+        final String pipeline = COLLECTION + "/guest.xpl";
+        warmUp(parameters(
+                XProcXmlCalabashModule.PARAM_PRELOAD_PIPELINE, pipeline,
+                XProcXmlCalabashModule.PARAM_PRELOAD_STYLESHEET, COLLECTION + "/warm-up.xsl"));
+
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        final long compilations = CachingProcessor.getStylesheetCache().getCompilations();
+        assertRun(pool.getSecurityManager().getGuestSubject(), pipeline, 1, 0);
+        // the stylesheet preloaded for guest is shared by the runtime of the call
+        assertEquals(compilations, CachingProcessor.getStylesheetCache().getCompilations());
+
+        // pipelines are compiled per user
+        assertRun(pool.getSecurityManager().getSystemSubject(), pipeline, 0, 1);
+    }
+
+    @Test
+    public void dbaWarmsUpAsGuest() throws Exception {
+        final String pipeline = COLLECTION + "/admin.xpl";
+        warmUp(parameters(
+                XProcXmlCalabashModule.PARAM_PRELOAD_PIPELINE, pipeline,
+                XProcXmlCalabashModule.PARAM_WARM_UP_USER, "admin"));
+
+        assertRun(existEmbeddedServer.getBrokerPool().getSecurityManager().getGuestSubject(), pipeline, 1, 0);
+    }
+
+    @Test
+    public void warmUpAsUser() throws Exception {
+        final String pipeline = COLLECTION + "/user.xpl";
+        warmUp(parameters(
+                XProcXmlCalabashModule.PARAM_PRELOAD_PIPELINE, pipeline,
+                XProcXmlCalabashModule.PARAM_WARM_UP_USER, USER,
+                XProcXmlCalabashModule.PARAM_WARM_UP_RUNS, "1"));
+
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        assertRun(new SubjectAccreditedImpl((AbstractAccount) pool.getSecurityManager().getAccount(USER), null), pipeline, 1, 0);
+        assertRun(pool.getSecurityManager().getGuestSubject(), pipeline, 0, 1);
+    }
+
+    @Test
+    public void triggerSizesWin() throws Exception {
+        warmUp(parameters(XProcXmlCalabashModule.PARAM_PIPELINE_CACHE_SIZE, "7"));
+        assertEquals(7, PipelineCache.getInstance().getMaxSize());
+
+        // each query importing the module instantiates it again
+        new XProcXmlCalabashModule(parameters(XProcXmlCalabashModule.PARAM_PIPELINE_CACHE_SIZE, "3"));
+        assertEquals(7, PipelineCache.getInstance().getMaxSize());
+    }
+
+    private static void warmUp(final Map<String, List<? extends Object>> parameters) throws Exception {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            new WarmUpTrigger().execute(broker, transaction, parameters);
+            assertSame(pool.getSecurityManager().getSystemSubject(), broker.getCurrentSubject());
+            transaction.commit();
+        }
+    }
+
+    private static void assertRun(final Subject subject, final String pipeline, final long hits, final long misses) throws Exception {
+        final PipelineCache cache = PipelineCache.getInstance();
+        final long hitsBefore = cache.getHits();
+        final long missesBefore = cache.getMisses();
+
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(subject))) {
+            final UserArgs userArgs = new UserArgs();
+            userArgs.setPipeline(pipeline);
+            try (final RunResult result = XProcRunner.run(broker, STATIC_BASE_URI, null, userArgs)) {
+                for (final PortOutput output : result.getOutputs().values()) {
+                    output.discard();
+                }
+            }
+        }
+
+        assertEquals("hits of " + subject.getName(), hits, cache.getHits() - hitsBefore);
+        assertEquals("misses of " + subject.getName(), misses, cache.getMisses() - missesBefore);
+    }
+
+    private static Map<String, List<? extends Object>> parameters(final String... nameValues) {
+        final Map<String, List<? extends Object>> parameters = new HashMap<>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            parameters.put(nameValues[i], Arrays.asList(nameValues[i + 1]));
+        }
+        return parameters;
+    }
+
+    private static void query(final String query) throws Exception {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            pool.getXQueryService().execute(broker, query, null);
+        }
+    }
+}
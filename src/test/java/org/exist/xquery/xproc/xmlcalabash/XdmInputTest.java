@@ -0,0 +1,111 @@
+/**
+ * XProc Calabash Module - Calabash XProc Module for eXist-db XQuery
+ * Copyright © 2013 The eXist Project (exit-open@lists.sourceforge.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exist.xquery.xproc.xmlcalabash;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.util.Optional;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmNode;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.xquery.value.NodeValue;
+import org.exist.xquery.value.Sequence;
+import org.junit.*;
+import org.xml.sax.InputSource;
+
+import com.xmlcalabash.core.XProcConfiguration;
+import com.xmlcalabash.core.XProcRuntime;
+
+/**
+ * Nodes passed from XQuery are streamed into the tree of a runtime, see
+ * {@link XdmInput#of(DBBroker, NodeValue, String)}.
+ */
+public class XdmInputTest {
+
+    @ClassRule
+    public static final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(true, true);
+
+    private static final String XML = "<doc xmlns:x='urn:x' a='1'><!--c--><?pi data?><x:n>text &amp; more</x:n></doc>";
+
+    @Test
+    public void inMemoryNode() throws Exception {
+        assertStreamed("document { " + XML + " }", null);
+    }
+
+    @Test
+    public void inMemoryElement() throws Exception {
+        assertStreamed(XML, "xmldb:exist:///db/xdm-input/doc.xml");
+    }
+
+    @Test
+    public void storedDocument() throws Exception {
+        assertStreamed("doc(xmldb:store(xmldb:create-collection('/db', 'xdm-input'), 'doc.xml', " + XML + "))", null);
+    }
+
+    private static void assertStreamed(final String query, final String baseURI) throws Exception {
+        final BrokerPool pool = existEmbeddedServer.getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final Sequence seq = pool.getXQueryService().execute(broker, query, null);
+            assertEquals(1, seq.getItemCount());
+
+            final XProcRuntime runtime = new NoParsingRuntime(new XProcConfiguration("he", false));
+            try {
+                final XdmNode doc = XdmInput.of(broker, (NodeValue) seq.itemAt(0), baseURI).read(runtime);
+
+                final XdmNode expected = new Processor(false).newDocumentBuilder()
+                        .build(new StreamSource(new StringReader(XML)));
+                assertEquals(expected.toString(), doc.toString());
+                if (baseURI != null) {
+                    assertEquals(baseURI, doc.getBaseURI().toString());
+                }
+            } finally {
+                runtime.close();
+            }
+        }
+    }
+
+    /**
+     * A runtime that may not parse documents.
+     */
+    private static class NoParsingRuntime extends XProcRuntime {
+        NoParsingRuntime(final XProcConfiguration config) {
+            super(config);
+        }
+
+        @Override
+        public XdmNode parse(final InputSource isource) {
+            throw new AssertionError("The node has been serialized and parsed");
+        }
+
+        @Override
+        public XdmNode parse(final String uri, final String base) {
+            throw new AssertionError("The node has been serialized and parsed");
+        }
+
+        @Override
+        public XdmNode parse(final String uri, final String base, final boolean validate) {
+            throw new AssertionError("The node has been serialized and parsed");
+        }
+    }
+}